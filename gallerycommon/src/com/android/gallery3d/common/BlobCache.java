@@ -51,13 +51,40 @@
 // [16] Length of this blob (not including header)
 // [20] Blob
 //
-// Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// Below are the interface for BlobCache. The instance of this class can be
+// used by multiple threads. Lookups only hold a read lock, so they probe the
+// memory-mapped index concurrently; insert, clearEntry and the sync methods
+// hold the write lock. See ShardedBlobCache for spreading writes over several
+// independent caches.
+//
+// If the cache is created with mapDataFiles set, the data files are also
+// memory-mapped (read-only) and lookups read blobs straight from the mapping:
+// no syscall per read and, with a large enough LookupRequest.buffer, no
+// allocation. Each data file is extended to maxBytes (sparse, so this takes
+// no disk space) and mapped once, when the cache is opened. It is never
+// shrunk afterwards, because touching mapped pages past the end of a file
+// crashes the process; a flip just starts overwriting the file from the
+// beginning. Note that the mappings take 2 * maxBytes of address space.
+//
+// A flip drops every entry of the old inactive region at once. By default,
+// a lookup that hits in the inactive region copies the blob forward into the
+// active region right away, under the write lock. With compaction enabled
+// (setCompactionEnabled), lookups instead only mark the hash slot they hit,
+// and compact() copies the marked blobs of the inactive region forward in
+// small batches, meant to be called from a background thread. Marks made in
+// the active region carry over to the inactive region at a flip, so blobs
+// that were used recently survive it even before they are hit again. This
+// approximates LRU eviction. The marks are kept in memory only. getStats()
+// reports hit rates before and after the last flip.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
+// public void setCompactionEnabled(boolean enabled);
+// public boolean needsCompaction();
+// public int compact(int maxBytes) throws IOException;
+// public Stats getStats();
 // public void close();
 // public void syncIndex();
 // public void syncAll();
@@ -71,10 +98,13 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
 public class BlobCache implements Closeable {
@@ -120,10 +150,52 @@ public class BlobCache implements Closeable {
     private RandomAccessFile mInactiveDataFile;
     private int mActiveHashStart;
     private int mInactiveHashStart;
+    private final boolean mMapDataFiles;
+    // Read-only mappings of the whole of mDataFile0 and mDataFile1.
+    private MappedByteBuffer mDataMap0;
+    private MappedByteBuffer mDataMap1;
+    // One byte per hash slot of both regions, set when the blob is hit.
+    private byte[] mHitMarks;
+    private volatile boolean mCompactionEnabled;
+    private volatile boolean mNeedsCompaction;
+    // The next slot of the inactive region that compact() looks at.
+    private int mCompactSlot;
+    private final LookupRequest mCompactRequest = new LookupRequest();
+
+    private final AtomicLong mLookups = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mLookupsSinceFlip = new AtomicLong();
+    private final AtomicLong mHitsSinceFlip = new AtomicLong();
+    private long mLookupsBeforeFlip;
+    private long mHitsBeforeFlip;
+    private int mFlips;
+    private int mCopiedForward;
+
     private byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE];
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
 
+    // Guards the index and the data files. The fields above are only changed
+    // while holding the write lock.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    // Scratch buffers for the read path, which runs on many threads at once.
+    private static class ReadScratch {
+        final byte[] header = new byte[BLOB_HEADER_SIZE];
+        final Adler32 adler32 = new Adler32();
+        // This thread's views of the data file mappings, so that setting the
+        // position does not interfere with other threads.
+        final ByteBuffer[] mapView = new ByteBuffer[2];
+    }
+
+    private final ThreadLocal<ReadScratch> mReadScratch =
+            new ThreadLocal<ReadScratch>() {
+        @Override
+        protected ReadScratch initialValue() {
+            return new ReadScratch();
+        }
+    };
+
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
     // The ".0" file and the ".1" file each stores data for a region. Each of
@@ -137,10 +209,16 @@ public class BlobCache implements Closeable {
 
     public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
             int version) throws IOException {
+        this(path, maxEntries, maxBytes, reset, version, false);
+    }
+
+    public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+            int version, boolean mapDataFiles) throws IOException {
         mIndexFile = new RandomAccessFile(path + ".idx", "rw");
         mDataFile0 = new RandomAccessFile(path + ".0", "rw");
         mDataFile1 = new RandomAccessFile(path + ".1", "rw");
         mVersion = version;
+        mMapDataFiles = mapDataFiles;
 
         if (!reset && loadIndex()) {
             return;
@@ -174,8 +252,13 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        mLock.writeLock().lock();
+        try {
+            syncAllLocked();
+            closeAll();
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     private void closeAll() {
@@ -273,7 +356,9 @@ public class BlobCache implements Closeable {
                     0, mIndexFile.length());
             mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
+            mHitMarks = new byte[mMaxEntries * 2];
             setActiveVariables();
+            if (mMapDataFiles) mapDataFiles();
             return true;
         } catch (IOException ex) {
             Log.e(TAG, "loadIndex failed.", ex);
@@ -284,7 +369,10 @@ public class BlobCache implements Closeable {
     private void setActiveVariables() throws IOException {
         mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
         mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
-        mActiveDataFile.setLength(mActiveBytes);
+        // A mapped data file must not shrink (see the top of this file).
+        if (!mMapDataFiles) {
+            mActiveDataFile.setLength(mActiveBytes);
+        }
         mActiveDataFile.seek(mActiveBytes);
 
         mActiveHashStart = INDEX_HEADER_SIZE;
@@ -336,7 +424,19 @@ public class BlobCache implements Closeable {
 
         setActiveVariables();
         clearHash(mActiveHashStart);
-        syncIndex();
+        syncIndexLocked();
+
+        // The marks of the new inactive region tell compact() which blobs to
+        // carry over.
+        int activeMarkStart = markIndex(mActiveHashStart);
+        Arrays.fill(mHitMarks, activeMarkStart,
+                activeMarkStart + mMaxEntries, (byte) 0);
+        mCompactSlot = 0;
+        mNeedsCompaction = mCompactionEnabled;
+
+        mFlips++;
+        mLookupsBeforeFlip = mLookupsSinceFlip.getAndSet(0);
+        mHitsBeforeFlip = mHitsSinceFlip.getAndSet(0);
     }
 
     // Sync mIndexHeader to the index file.
@@ -364,30 +464,40 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
-            flipRegion();
-        }
+        mLock.writeLock().lock();
+        try {
+            if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
+                    || mActiveEntries * 2 >= mMaxEntries) {
+                flipRegion();
+            }
 
-        if (!lookupInternal(key, mActiveHashStart)) {
-            // If we don't have an existing entry with the same key, increase
-            // the entry count.
-            mActiveEntries++;
-            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-        }
+            if (!lookupInternal(key, mActiveHashStart)) {
+                // If we don't have an existing entry with the same key,
+                // increase the entry count.
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            }
 
-        insertInternal(key, data, data.length);
-        updateIndexHeader();
+            insertInternal(key, data, data.length);
+            updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     public void clearEntry(long key) throws IOException {
-        if (!lookupInternal(key, mActiveHashStart)) {
-            return; // Nothing to clear
+        mLock.writeLock().lock();
+        try {
+            if (!lookupInternal(key, mActiveHashStart)) {
+                return; // Nothing to clear
+            }
+            byte[] header = mBlobHeader;
+            Arrays.fill(header, (byte) 0);
+            mActiveDataFile.seek(mFileOffset);
+            mActiveDataFile.write(header);
+        } finally {
+            mLock.writeLock().unlock();
         }
-        byte[] header = mBlobHeader;
-        Arrays.fill(header, (byte) 0);
-        mActiveDataFile.seek(mFileOffset);
-        mActiveDataFile.write(header);
     }
 
     // Appends the data to the active file. It also updates the hash entry.
@@ -396,7 +506,7 @@ public class BlobCache implements Closeable {
     private void insertInternal(long key, byte[] data, int length)
             throws IOException {
         byte[] header = mBlobHeader;
-        int sum = checkSum(data);
+        int sum = checkSum(data, 0, length);
         writeLong(header, BH_KEY, key);
         writeInt(header, BH_CHECKSUM, sum);
         writeInt(header, BH_OFFSET, mActiveBytes);
@@ -418,12 +528,11 @@ public class BlobCache implements Closeable {
 
     // This method is for one-off lookup. For repeated lookup, use the version
     // accepting LookupRequest to avoid repeated memory allocation.
-    private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -440,44 +549,206 @@ public class BlobCache implements Closeable {
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
     public boolean lookup(LookupRequest req) throws IOException {
-        // Look up in the active region first.
-        if (lookupInternal(req.key, mActiveHashStart)) {
-            if (getBlob(mActiveDataFile, mFileOffset, req)) {
+        mLookups.incrementAndGet();
+        mLookupsSinceFlip.incrementAndGet();
+        mLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            int slotOffset = findSlot(req.key, mActiveHashStart);
+            int fileOffset = mIndexBuffer.getInt(slotOffset + 8);
+            if (fileOffset != 0
+                    && getBlob(mActiveDataFile, fileOffset, req)) {
+                onHit(slotOffset);
                 return true;
             }
+
+            // Look up in the inactive region.
+            slotOffset = findSlot(req.key, mInactiveHashStart);
+            fileOffset = mIndexBuffer.getInt(slotOffset + 8);
+            if (fileOffset == 0
+                    || !getBlob(mInactiveDataFile, fileOffset, req)) {
+                return false;
+            }
+            onHit(slotOffset);
+            if (mCompactionEnabled) {
+                // compact() will copy it over.
+                mNeedsCompaction = true;
+                return true;
+            }
+        } finally {
+            mLock.readLock().unlock();
         }
 
         // We want to copy the data from the inactive file to the active file
-        // if it's available. So we keep the offset of the hash entry so we can
-        // avoid looking it up again.
-        int insertOffset = mSlotOffset;
-
-        // Look up in the inactive region.
-        if (lookupInternal(req.key, mInactiveHashStart)) {
-            if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-                // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
+        // so it survives the next flip. That needs the write lock, which
+        // cannot be acquired while holding the read lock.
+        mLock.writeLock().lock();
+        try {
+            // If we don't have enough space to insert this blob into the
+            // active file, just return it.
+            if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
                     || mActiveEntries * 2 >= mMaxEntries) {
-                    return true;
+                return true;
+            }
+            // Otherwise copy it over, unless another thread did already.
+            if (!lookupInternal(req.key, mActiveHashStart)) {
+                insertInternal(req.key, req.buffer, req.length);
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                updateIndexHeader();
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+
+    private int markIndex(int slotOffset) {
+        return (slotOffset - INDEX_HEADER_SIZE) / 12;
+    }
+
+    // Called with the read lock held. Concurrent writes of the same mark are
+    // harmless.
+    private void onHit(int slotOffset) {
+        mHits.incrementAndGet();
+        mHitsSinceFlip.incrementAndGet();
+        mHitMarks[markIndex(slotOffset)] = 1;
+    }
+
+    // With compaction enabled, lookups leave copying blobs forward to
+    // compact().
+    public void setCompactionEnabled(boolean enabled) {
+        mCompactionEnabled = enabled;
+    }
+
+    // Returns true if compact() has work to do.
+    public boolean needsCompaction() {
+        return mNeedsCompaction;
+    }
+
+    // Copies the marked blobs of the inactive region into the active region,
+    // so that they survive the next flip. Each call copies about maxBytes at
+    // most, so the write lock is not held for long. Copying stops when the
+    // active region is half full, to leave room for new entries. Returns the
+    // number of bytes copied; 0 means there is nothing more to do for now.
+    public int compact(int maxBytes) throws IOException {
+        if (!mNeedsCompaction) return 0;
+        mLock.writeLock().lock();
+        try {
+            LookupRequest req = mCompactRequest;
+            int markStart = markIndex(mInactiveHashStart);
+            int copied = 0;
+            while (mCompactSlot < mMaxEntries) {
+                if (copied >= maxBytes) {
+                    return copied;
                 }
-                // Otherwise copy it over.
-                mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
-                    mActiveEntries++;
-                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-                    updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
+                if (mActiveBytes * 2 > mMaxBytes
+                        || mActiveEntries * 4 >= mMaxEntries) {
+                    break;
                 }
-                return true;
+                int slot = mCompactSlot++;
+                if (mHitMarks[markStart + slot] == 0) continue;
+                mHitMarks[markStart + slot] = 0;
+
+                int slotOffset = mInactiveHashStart + slot * 12;
+                int fileOffset = mIndexBuffer.getInt(slotOffset + 8);
+                if (fileOffset == 0) continue;
+                req.key = mIndexBuffer.getLong(slotOffset);
+                if (lookupInternal(req.key, mActiveHashStart)) continue;
+                int insertOffset = mSlotOffset;
+                if (!getBlob(mInactiveDataFile, fileOffset, req)) continue;
+                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes) {
+                    break;
+                }
+                mSlotOffset = insertOffset;
+                insertInternal(req.key, req.buffer, req.length);
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                copied += BLOB_HEADER_SIZE + req.length;
+                mCopiedForward++;
             }
+            // A pass is done. New hits in the inactive region start another.
+            mCompactSlot = 0;
+            mNeedsCompaction = false;
+            return copied;
+        } finally {
+            if (mCompactRequest.buffer != null
+                    && mCompactRequest.buffer.length > mMaxBytes / 16) {
+                mCompactRequest.buffer = null;  // don't keep large buffers
+            }
+            updateIndexHeader();
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public static class Stats {
+        public long lookups;
+        public long hits;
+        public int flips;
+        public int copiedForward;   // blobs copied forward by compact()
+        // The lookups and hits between the previous flip and the last flip,
+        // and those since the last flip.
+        public long lookupsBeforeFlip;
+        public long hitsBeforeFlip;
+        public long lookupsSinceFlip;
+        public long hitsSinceFlip;
+
+        public float getHitRate() {
+            return ratio(hits, lookups);
+        }
+
+        public float getHitRateBeforeFlip() {
+            return ratio(hitsBeforeFlip, lookupsBeforeFlip);
+        }
+
+        public float getHitRateSinceFlip() {
+            return ratio(hitsSinceFlip, lookupsSinceFlip);
+        }
+
+        private static float ratio(long hits, long lookups) {
+            return lookups == 0 ? 0f : (float) hits / lookups;
+        }
+
+        public void add(Stats other) {
+            lookups += other.lookups;
+            hits += other.hits;
+            flips += other.flips;
+            copiedForward += other.copiedForward;
+            lookupsBeforeFlip += other.lookupsBeforeFlip;
+            hitsBeforeFlip += other.hitsBeforeFlip;
+            lookupsSinceFlip += other.lookupsSinceFlip;
+            hitsSinceFlip += other.hitsSinceFlip;
         }
 
-        return false;
+        @Override
+        public String toString() {
+            return "lookups=" + lookups + " hits=" + hits
+                    + " flips=" + flips + " copiedForward=" + copiedForward
+                    + " hitRateBeforeFlip=" + getHitRateBeforeFlip()
+                    + " hitRateSinceFlip=" + getHitRateSinceFlip();
+        }
     }
 
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.lookups = mLookups.get();
+        stats.hits = mHits.get();
+        stats.lookupsSinceFlip = mLookupsSinceFlip.get();
+        stats.hitsSinceFlip = mHitsSinceFlip.get();
+        mLock.readLock().lock();
+        try {
+            stats.flips = mFlips;
+            stats.copiedForward = mCopiedForward;
+            stats.lookupsBeforeFlip = mLookupsBeforeFlip;
+            stats.hitsBeforeFlip = mHitsBeforeFlip;
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return stats;
+    }
 
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
@@ -485,9 +756,100 @@ public class BlobCache implements Closeable {
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
+    //
+    // The caller must hold the read lock. Since the file pointer is shared,
+    // the read itself is serialized on the file object unless the data files
+    // are mapped.
     private boolean getBlob(RandomAccessFile file, int offset,
             LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
+        ReadScratch scratch = mReadScratch.get();
+        if (mMapDataFiles) {
+            return getMappedBlob(file, offset, req, scratch);
+        }
+        byte[] header = scratch.header;
+        synchronized (file) {
+            return getBlobLocked(file, offset, req, header, scratch.adler32);
+        }
+    }
+
+    // Like getBlob, but reads the blob through the mapping of the file.
+    private boolean getMappedBlob(RandomAccessFile file, int offset,
+            LookupRequest req, ReadScratch scratch) {
+        try {
+            if (offset < 0 || offset > mMaxBytes - BLOB_HEADER_SIZE) {
+                Log.w(TAG, "invalid blob offset: " + offset);
+                return false;
+            }
+            ByteBuffer view = getDataView(file, scratch);
+            long blobKey = view.getLong(offset + BH_KEY);
+            if (blobKey == 0) {
+                return false; // This entry has been cleared.
+            }
+            if (blobKey != req.key) {
+                Log.w(TAG, "blob key does not match: " + blobKey);
+                return false;
+            }
+            int sum = view.getInt(offset + BH_CHECKSUM);
+            int blobOffset = view.getInt(offset + BH_OFFSET);
+            if (blobOffset != offset) {
+                Log.w(TAG, "blob offset does not match: " + blobOffset);
+                return false;
+            }
+            int length = view.getInt(offset + BH_LENGTH);
+            if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
+                Log.w(TAG, "invalid blob length: " + length);
+                return false;
+            }
+
+            if (req.buffer == null || req.buffer.length < length) {
+                req.buffer = new byte[length];
+            }
+            view.position(offset + BLOB_HEADER_SIZE);
+            view.get(req.buffer, 0, length);
+            req.length = length;
+            Adler32 adler32 = scratch.adler32;
+            adler32.reset();
+            adler32.update(req.buffer, 0, length);
+            if ((int) adler32.getValue() != sum) {
+                Log.w(TAG, "blob checksum does not match: " + sum);
+                return false;
+            }
+            return true;
+        } catch (Throwable t)  {
+            Log.e(TAG, "getMappedBlob failed.", t);
+            return false;
+        }
+    }
+
+    // Returns this thread's view of the mapping of the given data file.
+    private ByteBuffer getDataView(RandomAccessFile file, ReadScratch scratch) {
+        int index = (file == mDataFile0) ? 0 : 1;
+        if (scratch.mapView[index] == null) {
+            MappedByteBuffer map = (index == 0) ? mDataMap0 : mDataMap1;
+            scratch.mapView[index] =
+                    map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return scratch.mapView[index];
+    }
+
+    // Extends the data files to mMaxBytes and maps them. A blob never ends
+    // past mMaxBytes, so the mappings never need to grow.
+    private void mapDataFiles() throws IOException {
+        mDataMap0 = mapDataFile(mDataFile0);
+        mDataMap1 = mapDataFile(mDataFile1);
+    }
+
+    private MappedByteBuffer mapDataFile(RandomAccessFile file)
+            throws IOException {
+        if (file.length() < mMaxBytes) {
+            file.setLength(mMaxBytes);
+        }
+        return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mMaxBytes);
+    }
+
+    private boolean getBlobLocked(RandomAccessFile file, int offset,
+            LookupRequest req, byte[] header, Adler32 adler32)
+            throws IOException {
         long oldPosition = file.getFilePointer();
         try {
             file.seek(offset);
@@ -525,7 +887,9 @@ public class BlobCache implements Closeable {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            adler32.reset();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -545,9 +909,19 @@ public class BlobCache implements Closeable {
     // insertion.
     // If the lookup is successful, the file offset is also saved in
     // mFileOffset.
+    //
+    // The caller must hold the write lock.
     private int mSlotOffset;
     private int mFileOffset;
     private boolean lookupInternal(long key, int hashStart) {
+        mSlotOffset = findSlot(key, hashStart);
+        mFileOffset = mIndexBuffer.getInt(mSlotOffset + 8);
+        return mFileOffset != 0;
+    }
+
+    // Returns the offset in the index file of the slot holding the key, or
+    // of the free slot where the key would be inserted.
+    private int findSlot(long key, int hashStart) {
         int slot = (int) (key % mMaxEntries);
         if (slot < 0) slot += mMaxEntries;
         int slotBegin = slot;
@@ -555,13 +929,8 @@ public class BlobCache implements Closeable {
             int offset = hashStart + slot * 12;
             long candidateKey = mIndexBuffer.getLong(offset);
             int candidateOffset = mIndexBuffer.getInt(offset + 8);
-            if (candidateOffset == 0) {
-                mSlotOffset = offset;
-                return false;
-            } else if (candidateKey == key) {
-                mSlotOffset = offset;
-                mFileOffset = candidateOffset;
-                return true;
+            if (candidateOffset == 0 || candidateKey == key) {
+                return offset;
             } else {
                 if (++slot >= mMaxEntries) {
                     slot = 0;
@@ -575,6 +944,24 @@ public class BlobCache implements Closeable {
     }
 
     public void syncIndex() {
+        mLock.writeLock().lock();
+        try {
+            syncIndexLocked();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public void syncAll() {
+        mLock.writeLock().lock();
+        try {
+            syncAllLocked();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void syncIndexLocked() {
         try {
             mIndexBuffer.force();
         } catch (Throwable t) {
@@ -582,8 +969,8 @@ public class BlobCache implements Closeable {
         }
     }
 
-    public void syncAll() {
-        syncIndex();
+    private void syncAllLocked() {
+        syncIndexLocked();
         try {
             mDataFile0.getFD().sync();
         } catch (Throwable t) {
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// This is a BlobCache split into several independent shards. Each shard is a
+// complete BlobCache with its own index file, data files and lock, stored at
+// path + "." + i. A key always goes to the same shard, chosen by its high
+// bits (the low bits are used by BlobCache to pick the hash slot).
+//
+// Lookups in a shard already run concurrently; sharding also lets inserts
+// and region flips in one shard proceed without blocking the others.
+//
+// public ShardedBlobCache(String path, int shardCount, int maxEntries, int maxBytes, boolean reset, int version, boolean mapDataFiles) throws IOException;
+// public void insert(long key, byte[] data) throws IOException;
+// public byte[] lookup(long key) throws IOException;
+// public boolean lookup(LookupRequest req) throws IOException;
+// public void setCompactionEnabled(boolean enabled);
+// public boolean needsCompaction();
+// public int compact(int maxBytes) throws IOException;
+// public BlobCache.Stats getStats();
+// public void clearEntry(long key) throws IOException;
+// public void close();
+// public void syncIndex();
+// public void syncAll();
+// public static void deleteFiles(String path);
+//
+package com.android.gallery3d.common;
+
+import com.android.gallery3d.common.BlobCache.LookupRequest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+public class ShardedBlobCache implements Closeable {
+    private final BlobCache[] mShards;
+
+    // Creates the cache. The maxEntries and maxBytes parameters are the
+    // totals for the whole cache; they are divided evenly among the shards.
+    // See BlobCache for mapDataFiles.
+    public ShardedBlobCache(String path, int shardCount, int maxEntries,
+            int maxBytes, boolean reset, int version, boolean mapDataFiles)
+            throws IOException {
+        Utils.assertTrue(shardCount > 0);
+        mShards = new BlobCache[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                mShards[i] = new BlobCache(shardPath(path, i),
+                        maxEntries / shardCount, maxBytes / shardCount,
+                        reset, version, mapDataFiles);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static String shardPath(String path, int shard) {
+        return path + "." + shard;
+    }
+
+    // Delete the files of all shards previously created for the given path.
+    public static void deleteFiles(String path) {
+        for (int i = 0; new File(shardPath(path, i) + ".idx").exists(); i++) {
+            BlobCache.deleteFiles(shardPath(path, i));
+        }
+    }
+
+    private BlobCache shardFor(long key) {
+        int hash = (int) (key >>> 32) & 0x7fffffff;
+        return mShards[hash % mShards.length];
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    public void insert(long key, byte[] data) throws IOException {
+        shardFor(key).insert(key, data);
+    }
+
+    public void clearEntry(long key) throws IOException {
+        shardFor(key).clearEntry(key);
+    }
+
+    public byte[] lookup(long key) throws IOException {
+        return shardFor(key).lookup(key);
+    }
+
+    public boolean lookup(LookupRequest req) throws IOException {
+        return shardFor(req.key).lookup(req);
+    }
+
+    public void setCompactionEnabled(boolean enabled) {
+        for (BlobCache shard : mShards) {
+            shard.setCompactionEnabled(enabled);
+        }
+    }
+
+    public boolean needsCompaction() {
+        for (BlobCache shard : mShards) {
+            if (shard.needsCompaction()) return true;
+        }
+        return false;
+    }
+
+    // Runs one compaction step on each shard that needs it. Returns the
+    // total number of bytes copied.
+    public int compact(int maxBytes) throws IOException {
+        int copied = 0;
+        for (BlobCache shard : mShards) {
+            copied += shard.compact(maxBytes);
+        }
+        return copied;
+    }
+
+    public BlobCache.Stats getStats() {
+        BlobCache.Stats stats = new BlobCache.Stats();
+        for (BlobCache shard : mShards) {
+            stats.add(shard.getStats());
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        for (BlobCache shard : mShards) {
+            if (shard != null) shard.close();
+        }
+    }
+
+    public void syncIndex() {
+        for (BlobCache shard : mShards) {
+            shard.syncIndex();
+        }
+    }
+
+    public void syncAll() {
+        for (BlobCache shard : mShards) {
+            shard.syncAll();
+        }
+    }
+}
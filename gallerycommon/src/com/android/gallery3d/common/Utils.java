@@ -160,6 +160,17 @@ public class Utils {
         return crc;
     }
 
+    // The finalizer of MurmurHash3: every bit of the input affects every bit
+    // of the output.
+    public static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     public static byte[] getBytes(String in) {
         byte[] result = new byte[in.length() * 2];
         int output = 0;
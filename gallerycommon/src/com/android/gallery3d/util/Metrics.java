@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Metrics is a registry of named counters, latency histograms and hit
+// ratios, cheap enough to be left on in release builds. A metric is created
+// the first time its name is asked for; callers keep it in a static field.
+// Recording is lock-free and can be done from any thread.
+//
+// dump() prints all the metrics, sorted by name, as text. It is hooked to
+// the activity dump, so on a device:
+//
+//   adb shell dumpsys activity com.android.gallery3d
+//
+// The names are dot-separated, stage first, e.g. "microthumb.decode".
+public class Metrics {
+    private static final Map<String, Metric> sMetrics =
+            new TreeMap<String, Metric>();
+
+    private interface Metric {
+        void dump(PrintWriter writer);
+        void reset();
+    }
+
+    public static class Counter implements Metric {
+        private final AtomicLong mCount = new AtomicLong();
+
+        public void increment() {
+            mCount.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mCount.addAndGet(delta);
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+
+        @Override
+        public void dump(PrintWriter writer) {
+            writer.print(mCount.get());
+        }
+
+        @Override
+        public void reset() {
+            mCount.set(0);
+        }
+    }
+
+    // Counts hits and misses, e.g. of a cache.
+    public static class HitRatio implements Metric {
+        private final AtomicLong mHits = new AtomicLong();
+        private final AtomicLong mMisses = new AtomicLong();
+
+        public void hit() {
+            mHits.incrementAndGet();
+        }
+
+        public void miss() {
+            mMisses.incrementAndGet();
+        }
+
+        public void record(boolean hit) {
+            (hit ? mHits : mMisses).incrementAndGet();
+        }
+
+        // Returns the ratio of hits, or NaN if there has been no lookup.
+        public float getRatio() {
+            long hits = mHits.get();
+            long total = hits + mMisses.get();
+            return total == 0 ? Float.NaN : (float) hits / total;
+        }
+
+        @Override
+        public void dump(PrintWriter writer) {
+            long hits = mHits.get();
+            long total = hits + mMisses.get();
+            writer.print(hits + "/" + total);
+            if (total > 0) {
+                writer.print(String.format(" (%.1f%%)", 100f * hits / total));
+            }
+        }
+
+        @Override
+        public void reset() {
+            mHits.set(0);
+            mMisses.set(0);
+        }
+    }
+
+    // A latency histogram with buckets of bounded relative size, like an
+    // HdrHistogram: values are kept in microseconds, exactly below
+    // SUB_BUCKET_COUNT, and above that in SUB_BUCKET_COUNT linear buckets per
+    // power of two. So a percentile is off by at most 1 / SUB_BUCKET_COUNT
+    // (12.5%) of its value. Values beyond MAX_VALUE go to the last bucket.
+    public static class Histogram implements Metric {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_VALUE_BITS = 32;  // about 71 minutes
+        private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+        private static final int BUCKET_COUNT =
+                (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        // Records the time since startTime, a System.nanoTime() value.
+        public void recordSince(long startTime) {
+            record((System.nanoTime() - startTime) / 1000);
+        }
+
+        // Records a value in microseconds.
+        public void record(long value) {
+            if (value < 0) value = 0;
+            if (value > MAX_VALUE) value = MAX_VALUE;
+            mCounts.incrementAndGet(getBucket(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        static int getBucket(long value) {
+            if (value < SUB_BUCKET_COUNT) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            int sub = (int) (value >> shift) & (SUB_BUCKET_COUNT - 1);
+            return (shift + 1) * SUB_BUCKET_COUNT + sub;
+        }
+
+        // Returns the smallest value which goes to the bucket.
+        static long getBucketStart(int bucket) {
+            if (bucket < SUB_BUCKET_COUNT) return bucket;
+            int shift = bucket / SUB_BUCKET_COUNT - 1;
+            int sub = bucket % SUB_BUCKET_COUNT;
+            return (long) (SUB_BUCKET_COUNT + sub) << shift;
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        // Returns an upper bound of the given percentile, in microseconds,
+        // or 0 if nothing has been recorded.
+        public long getPercentile(float percentile) {
+            long count = mCount.get();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; ++i) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(getBucketStart(i + 1) - 1, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        @Override
+        public void dump(PrintWriter writer) {
+            long count = mCount.get();
+            writer.print("n=" + count);
+            if (count == 0) return;
+            writer.print(String.format(
+                    " mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    mSum.get() / 1000.0 / count,
+                    getPercentile(50) / 1000.0,
+                    getPercentile(90) / 1000.0,
+                    getPercentile(99) / 1000.0,
+                    mMax.get() / 1000.0));
+        }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                mCounts.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+    }
+
+    public static Counter counter(String name) {
+        return get(name, Counter.class);
+    }
+
+    public static Histogram histogram(String name) {
+        return get(name, Histogram.class);
+    }
+
+    public static HitRatio hitRatio(String name) {
+        return get(name, HitRatio.class);
+    }
+
+    private static <T extends Metric> T get(String name, Class<T> type) {
+        synchronized (sMetrics) {
+            Metric metric = sMetrics.get(name);
+            if (metric == null) {
+                try {
+                    metric = type.newInstance();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+                sMetrics.put(name, metric);
+            } else if (!type.isInstance(metric)) {
+                throw new IllegalArgumentException(name + " is not a " + type);
+            }
+            return type.cast(metric);
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        synchronized (sMetrics) {
+            for (Map.Entry<String, Metric> entry : sMetrics.entrySet()) {
+                writer.print(prefix);
+                writer.print(entry.getKey());
+                writer.print(": ");
+                entry.getValue().dump(writer);
+                writer.println();
+            }
+        }
+    }
+
+    public static void reset() {
+        synchronized (sMetrics) {
+            for (Metric metric : sMetrics.values()) {
+                metric.reset();
+            }
+        }
+    }
+}
@@ -16,20 +16,32 @@
 
 package com.android.gallery3d.util;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
     @SuppressWarnings("unused")
     private static final String TAG = "ThreadPool";
-    private static final int CORE_POOL_SIZE = 4;
-    private static final int MAX_POOL_SIZE = 8;
+    private static final int NUM_CPUS = Runtime.getRuntime().availableProcessors();
+    private static final int CORE_POOL_SIZE = Math.max(4, NUM_CPUS);
+    private static final int MAX_POOL_SIZE = Math.max(8, NUM_CPUS * 2);
     private static final int KEEP_ALIVE_TIME = 10; // 10 seconds
 
+    // Job priority. Waiting jobs are started in priority order, and in the
+    // order they were submitted within the same priority.
+    public static final int PRIORITY_VISIBLE = 0;       // on screen now
+    public static final int PRIORITY_NEAR_VISIBLE = 1;  // about to be
+    public static final int PRIORITY_PREFETCH = 2;
+    public static final int PRIORITY_BACKGROUND = 3;    // maintenance work
+    public static final int PRIORITY_COUNT = 4;
+
     // Resource type
     public static final int MODE_NONE = 0;
     public static final int MODE_CPU = 1;
@@ -37,7 +49,30 @@ public class ThreadPool {
 
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
-    ResourceCounter mCpuCounter = new ResourceCounter(2);
+    // A deadline (in uptimeMillis) that never passes.
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // At least two, so I/O bound jobs can overlap on single-core devices.
+    private static final int CPU_SLOTS = Math.max(2, NUM_CPUS);
+
+    // How long jobs wait for a thread, by priority, and for a CPU slot, and
+    // how long they run. Shared by all the pools.
+    private static final Metrics.Histogram[] sQueueTime =
+            new Metrics.Histogram[PRIORITY_COUNT];
+    private static final Metrics.Histogram sCpuWaitTime =
+            Metrics.histogram("threadpool.cpu_wait");
+    private static final Metrics.Histogram sRunTime =
+            Metrics.histogram("threadpool.run");
+    private static final Metrics.Counter sCancelledCount =
+            Metrics.counter("threadpool.cancelled_before_run");
+
+    static {
+        for (int i = 0; i < PRIORITY_COUNT; ++i) {
+            sQueueTime[i] = Metrics.histogram("threadpool.queue.priority" + i);
+        }
+    }
+
+    ResourceCounter mCpuCounter = new ResourceCounter(CPU_SLOTS);
     ResourceCounter mNetworkCounter = new ResourceCounter(2);
 
     // A Job is like a Callable, but it has an addition JobContext parameter.
@@ -71,8 +106,57 @@ public class ThreadPool {
         public void onCancel();
     }
 
+    // A JobContext for work that does not run in a ThreadPool, for example
+    // inside MediaSet.reload(). It can be cancelled from any thread, and is
+    // cancelled automatically once its deadline passes.
+    public static class CancellationToken implements JobContext {
+        private volatile boolean mIsCancelled;
+        private volatile long mDeadline = NO_DEADLINE;
+        private CancelListener mCancelListener;
+
+        public void cancel() {
+            CancelListener listener;
+            synchronized (this) {
+                if (mIsCancelled) return;
+                mIsCancelled = true;
+                listener = mCancelListener;
+            }
+            if (listener != null) listener.onCancel();
+        }
+
+        public void setDeadline(long uptimeMillis) {
+            mDeadline = uptimeMillis;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            if (mIsCancelled) return true;
+            if (mDeadline != NO_DEADLINE
+                    && SystemClock.uptimeMillis() >= mDeadline) {
+                cancel();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void setCancelListener(CancelListener listener) {
+            synchronized (this) {
+                mCancelListener = listener;
+                if (!mIsCancelled || listener == null) return;
+            }
+            listener.onCancel();
+        }
+
+        @Override
+        public boolean setMode(int mode) {
+            return !isCancelled();
+        }
+    }
+
     private static class ResourceCounter {
         public int value;
+        public int waiting;  // number of jobs waiting for this resource
         public ResourceCounter(int v) {
             value = v;
         }
@@ -80,6 +164,14 @@ public class ThreadPool {
 
     private final Executor mExecutor;
 
+    // The number of jobs of each priority submitted but not started yet, and
+    // the largest that number has been.
+    private final AtomicIntegerArray mQueueDepth =
+            new AtomicIntegerArray(PRIORITY_COUNT);
+    private final AtomicIntegerArray mMaxQueueDepth =
+            new AtomicIntegerArray(PRIORITY_COUNT);
+    private final AtomicLong mSequence = new AtomicLong();
+
     public ThreadPool() {
         this(CORE_POOL_SIZE, MAX_POOL_SIZE);
     }
@@ -87,7 +179,7 @@ public class ThreadPool {
     public ThreadPool(int initPoolSize, int maxPoolSize) {
         mExecutor = new ThreadPoolExecutor(
                 initPoolSize, maxPoolSize, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
                 new PriorityThreadFactory("thread-pool",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND));
     }
@@ -95,16 +187,59 @@ public class ThreadPool {
     // Submit a job to the thread pool. The listener will be called when the
     // job is finished (or cancelled).
     public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<T>(job, listener);
-        mExecutor.execute(w);
-        return w;
+        return submit(job, listener, PRIORITY_VISIBLE);
     }
 
     public <T> Future<T> submit(Job<T> job) {
         return submit(job, null);
     }
 
-    private class Worker<T> implements Runnable, Future<T>, JobContext {
+    // Like submit(job, listener), but the job waits behind the jobs with a
+    // higher priority (a lower value) that have not started yet.
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        return submit(job, listener, priority, NO_DEADLINE);
+    }
+
+    // Like submit(job, listener, priority), but the job is cancelled once
+    // SystemClock.uptimeMillis() reaches the deadline. The job notices this
+    // the same way as a normal cancel, through JobContext.isCancelled().
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority, long deadline) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("priority: " + priority);
+        }
+        Worker<T> w = new Worker<T>(job, listener, priority,
+                mSequence.getAndIncrement(), deadline);
+        int depth = mQueueDepth.incrementAndGet(priority);
+        if (depth > mMaxQueueDepth.get(priority)) {
+            mMaxQueueDepth.set(priority, depth);
+        }
+        mExecutor.execute(w);
+        return w;
+    }
+
+    public int getQueueDepth(int priority) {
+        return mQueueDepth.get(priority);
+    }
+
+    public int getMaxQueueDepth(int priority) {
+        return mMaxQueueDepth.get(priority);
+    }
+
+    // Returns true if submitted jobs are waiting, either for a thread or for
+    // a CPU slot. Running more jobs at once will not make them finish sooner.
+    public boolean isSaturated() {
+        for (int i = 0; i < PRIORITY_COUNT; ++i) {
+            if (mQueueDepth.get(i) > 0) return true;
+        }
+        synchronized (mCpuCounter) {
+            return mCpuCounter.waiting > 0;
+        }
+    }
+
+    private class Worker<T> implements Runnable, Future<T>, JobContext,
+            Comparable<Worker<?>> {
         @SuppressWarnings("hiding")
         private static final String TAG = "Worker";
         private Job<T> mJob;
@@ -115,25 +250,51 @@ public class ThreadPool {
         private boolean mIsDone;
         private T mResult;
         private int mMode;
+        private final int mPriority;
+        private final long mSequence;
+        private final long mDeadline;
+        private final long mSubmitTime = System.nanoTime();
 
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        public Worker(Job<T> job, FutureListener<T> listener, int priority,
+                long sequence, long deadline) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mSequence = sequence;
+            mDeadline = deadline;
+        }
+
+        // Used by the executor's queue to order waiting jobs.
+        @Override
+        public int compareTo(Worker<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1
+                    : (mSequence == other.mSequence ? 0 : 1);
         }
 
         // This is called by a thread in the thread pool.
         @Override
         public void run() {
+            mQueueDepth.decrementAndGet(mPriority);
+            sQueueTime[mPriority].recordSince(mSubmitTime);
             T result = null;
 
             // A job is in CPU mode by default. setMode returns false
             // if the job is cancelled.
-            if (setMode(MODE_CPU)) {
+            long waitStart = System.nanoTime();
+            if (!isCancelled() && setMode(MODE_CPU)) {
+                long runStart = System.nanoTime();
+                sCpuWaitTime.recordSince(waitStart);
                 try {
                     result = mJob.run(this);
                 } catch (Throwable ex) {
                     Log.w(TAG, "Exception in running a job", ex);
                 }
+                sRunTime.recordSince(runStart);
+            } else {
+                sCancelledCount.increment();
             }
 
             synchronized(this) {
@@ -160,9 +321,16 @@ public class ThreadPool {
             }
         }
 
+        // Also cancels the job if its deadline has passed.
         @Override
         public boolean isCancelled() {
-            return mIsCancelled;
+            if (mIsCancelled) return true;
+            if (mDeadline != NO_DEADLINE
+                    && SystemClock.uptimeMillis() >= mDeadline) {
+                cancel();
+                return true;
+            }
+            return false;
         }
 
         @Override
@@ -242,10 +410,13 @@ public class ThreadPool {
                         counter.value--;
                         break;
                     } else {
+                        counter.waiting++;
                         try {
                             counter.wait();
                         } catch (InterruptedException ex) {
                             // ignore.
+                        } finally {
+                            counter.waiting--;
                         }
                     }
                 }
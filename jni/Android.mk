@@ -39,6 +39,8 @@ LOCAL_SRC_FILES := filters/gradient.c \
                    filters/redEyeMath.c \
                    filters/fx.c \
                    filters/wbalance.c \
+                   filters/fused.c \
+                   filters/colorlut.c \
                    filters/redeye.c \
                    filters/bwfilter.c \
                    filters/tinyplanet.cc \
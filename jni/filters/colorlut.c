@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "filters.h"
+
+// Interpolates between two values with a weight out of 256, keeping 8 more
+// bits of precision.
+#define LERP(a, b, w) (((a) << 8) + ((b) - (a)) * (w))
+
+// Applies a size x size x size lookup table, laid out as in ColorLut.java,
+// with trilinear interpolation in fixed point. The entries are at
+// 0, step, 2 * step... and the last one at 255.
+void JNIFUNCF(ColorLut, nativeApplyLut, jobject bitmap, jint width, jint height,
+        jobject lutbitmap, jint size)
+{
+    char* destination = 0;
+    char* lut = 0;
+    AndroidBitmap_lockPixels(env, bitmap, (void**) &destination);
+    AndroidBitmap_lockPixels(env, lutbitmap, (void**) &lut);
+    unsigned char * rgb = (unsigned char * )destination;
+    unsigned char * lutrgb = (unsigned char * )lut;
+    int step = 256 / (size - 1);
+    int last = (size - 2) * step;
+    int index[256];
+    int weight[256];
+    int i;
+
+    for (i = 0; i < 256; i++) {
+        if (i < last) {
+            index[i] = i / step;
+            weight[i] = (i % step) * 256 / step;
+        } else {
+            index[i] = size - 2;
+            weight[i] = (i - last) * 256 / (255 - last);
+        }
+    }
+
+    int dr = 4;
+    int db = 4 * size;
+    int dg = 4 * size * size;
+    int len = width * height * 4;
+    for (i = 0; i < len; i+=4) {
+        int r = rgb[RED];
+        int g = rgb[GREEN];
+        int b = rgb[BLUE];
+        int wr = weight[r];
+        int wg = weight[g];
+        int wb = weight[b];
+        unsigned char *p = lutrgb + index[r] * dr + index[b] * db + index[g] * dg;
+        int c;
+        for (c = 0; c < 3; c++) {
+            int v0 = LERP(p[c], p[c + dr], wr);
+            int v1 = LERP(p[c + db], p[c + db + dr], wr);
+            int v2 = LERP(p[c + dg], p[c + dg + dr], wr);
+            int v3 = LERP(p[c + dg + db], p[c + dg + db + dr], wr);
+            int u0 = LERP(v0, v1, wb) >> 8;
+            int u1 = LERP(v2, v3, wb) >> 8;
+            rgb[i + c] = clamp((LERP(u0, u1, wg) + (1 << 15)) >> 16);
+        }
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    AndroidBitmap_unlockPixels(env, lutbitmap);
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "filters.h"
+
+// Stage types, see FusedFilterKernel.java
+#define STAGE_LUT 0
+#define STAGE_MATRIX 1
+#define STAGE_SATURATION_MAP 2
+#define STAGE_VALUE_MAP 3
+
+#define TILE_PIXELS 4096
+
+static void applyLut(unsigned char *rgb, int len, const jint *lut)
+{
+    const jint *red = lut;
+    const jint *green = lut + 256;
+    const jint *blue = lut + 512;
+    int i;
+    for (i = 0; i < len; i+=4) {
+        rgb[RED]   = red[rgb[RED]];
+        rgb[GREEN] = green[rgb[GREEN]];
+        rgb[BLUE]  = blue[rgb[BLUE]];
+    }
+}
+
+static void applyMatrix(unsigned char *rgb, int len, const jfloat *mat)
+{
+    int i;
+    for (i = 0; i < len; i+=4) {
+        int r = rgb[RED];
+        int g = rgb[GREEN];
+        int b = rgb[BLUE];
+
+        float rf = r*mat[0] + g*mat[4] +  b*mat[8] + mat[12];
+        float gf = r*mat[1] + g*mat[5] +  b*mat[9] + mat[13];
+        float bf = r*mat[2] + g*mat[6] +  b*mat[10] + mat[14];
+
+        rgb[RED]   = clamp((int)rf);
+        rgb[GREEN] = clamp((int)gf);
+        rgb[BLUE]  = clamp((int)bf);
+    }
+}
+
+static void applySaturationMap(unsigned char *rgb, int len, const jfloat *map)
+{
+    int i;
+    for (i = 0; i < len; i+=4) {
+        int r = rgb[RED];
+        int g = rgb[GREEN];
+        int b = rgb[BLUE];
+        const jfloat *t = map + 6 * (r - MAX(g, b) + 255);
+
+        float rf = r*t[0] + g*t[4] + b*t[5];
+        float gf = r*t[3] + g*t[1] + b*t[5];
+        float bf = r*t[3] + g*t[4] + b*t[2];
+
+        rgb[RED]   = clamp((int)rf);
+        rgb[GREEN] = clamp((int)gf);
+        rgb[BLUE]  = clamp((int)bf);
+    }
+}
+
+static void applyValueMap(unsigned char *rgb, int len, const jint *map)
+{
+    unsigned short hsv[3];
+    int i;
+    for (i = 0; i < len; i+=4) {
+        rgb2hsv(rgb, i, hsv, 0);
+        hsv[0] = (unsigned short) map[hsv[0] >> 4];
+        hsv2rgb(hsv, 0, rgb, i);
+    }
+}
+
+// Runs all the stages on a tile before going to the next one, so that the
+// bitmap only goes once through the cache.
+void JNIFUNCF(FusedFilterKernel, nativeApplyFilter, jobject bitmap, jint width, jint height,
+        jintArray stages, jintArray ints, jfloatArray floats)
+{
+    char* destination = 0;
+    AndroidBitmap_lockPixels(env, bitmap, (void**) &destination);
+    unsigned char * rgb = (unsigned char * )destination;
+    int stageCount = (*env)->GetArrayLength(env, stages) / 2;
+    jint* stage = (*env)->GetIntArrayElements(env, stages, 0);
+    jint* intData = (*env)->GetIntArrayElements(env, ints, 0);
+    jfloat* floatData = (*env)->GetFloatArrayElements(env, floats, 0);
+    int len = width * height * 4;
+    int tile;
+    int s;
+
+    for (tile = 0; tile < len; tile += TILE_PIXELS * 4) {
+        unsigned char *p = rgb + tile;
+        int n = MIN(TILE_PIXELS * 4, len - tile);
+        for (s = 0; s < stageCount; s++) {
+            int offset = stage[2 * s + 1];
+            switch (stage[2 * s]) {
+            case STAGE_LUT:
+                applyLut(p, n, intData + offset);
+                break;
+            case STAGE_MATRIX:
+                applyMatrix(p, n, floatData + offset);
+                break;
+            case STAGE_SATURATION_MAP:
+                applySaturationMap(p, n, floatData + offset);
+                break;
+            case STAGE_VALUE_MAP:
+                applyValueMap(p, n, intData + offset);
+                break;
+            }
+        }
+    }
+
+    (*env)->ReleaseFloatArrayElements(env, floats, floatData, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, ints, intData, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, stages, stage, JNI_ABORT);
+    AndroidBitmap_unlockPixels(env, bitmap);
+}
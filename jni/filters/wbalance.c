@@ -130,6 +130,33 @@ void estmateWhiteBox(unsigned char *src, int iw, int ih, int x,int y, int *wr, i
     *wb = b/sum;
 }
 
+void estimateWhite(unsigned char *rgb, int width, int height, int locX, int locY, int *wr, int *wg, int *wb)
+{
+    if (locX==-1)
+        estmateWhite(rgb,width * height * 4,wr,wg,wb);
+    else
+        estmateWhiteBox(rgb, width, height,locX,locY,wr,wg,wb);
+}
+
+void JNIFUNCF(ImageFilterWBalance, nativeEstimateWhite, jobject bitmap, jint width, jint height, int locX,int locY, jintArray white)
+{
+    char* destination = 0;
+    AndroidBitmap_lockPixels(env, bitmap, (void**) &destination);
+    unsigned char * rgb = (unsigned char * )destination;
+    jint* w = (*env)->GetIntArrayElements(env, white, 0);
+    int wr;
+    int wg;
+    int wb;
+
+    estimateWhite(rgb, width, height, locX, locY, &wr, &wg, &wb);
+    w[0] = wr;
+    w[1] = wg;
+    w[2] = wb;
+
+    (*env)->ReleaseIntArrayElements(env, white, w, 0);
+    AndroidBitmap_unlockPixels(env, bitmap);
+}
+
 void JNIFUNCF(ImageFilterWBalance, nativeApplyFilter, jobject bitmap, jint width, jint height, int locX,int locY)
 {
     char* destination = 0;
@@ -141,10 +168,7 @@ void JNIFUNCF(ImageFilterWBalance, nativeApplyFilter, jobject bitmap, jint width
     int wg;
     int wb;
 
-    if (locX==-1)
-        estmateWhite(rgb,len,&wr,&wg,&wb);
-    else
-        estmateWhiteBox(rgb, width, height,locX,locY,&wr,&wg,&wb);
+    estimateWhite(rgb, width, height, locX, locY, &wr, &wg, &wb);
 
     int min = MIN(wr, MIN(wg, wb));
     int max = MAX(wr, MAX(wg, wb));
@@ -51,11 +51,14 @@ import com.android.gallery3d.filtershow.cache.ImageLoader;
 import com.android.gallery3d.ui.GLRoot;
 import com.android.gallery3d.ui.GLRootView;
 import com.android.gallery3d.util.MediaSetUtils;
+import com.android.gallery3d.util.Metrics;
 import com.android.gallery3d.util.PanoramaViewHelper;
 import com.android.gallery3d.util.ThreadPool;
 import com.android.photos.data.GalleryBitmapPool;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
 
 public class AbstractGalleryActivity extends Activity implements GalleryContext {
     private static final String TAG = "AbstractGalleryActivity";
@@ -281,6 +284,23 @@ public class AbstractGalleryActivity extends Activity implements GalleryContext
         doUnbindBatchService();
     }
 
+    // Prints the metrics after the activity state, for
+    //   adb shell dumpsys activity com.android.gallery3d [--reset-metrics]
+    // With --reset-metrics the metrics are cleared after being printed.
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Metrics:");
+        Metrics.dump(prefix + "  ", writer);
+        if (args != null) {
+            for (String arg : args) {
+                if ("--reset-metrics".equals(arg)) Metrics.reset();
+            }
+        }
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         mGLRootView.lockRenderThread();
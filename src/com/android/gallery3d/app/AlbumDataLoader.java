@@ -56,6 +56,10 @@ public class AlbumDataLoader {
     public static interface DataListener {
         public void onContentChanged(int index);
         public void onSizeChanged(int size);
+        // The items were moved as described by the changes (see
+        // MediaSet.getChangesSince). Slots of inserted items are empty until
+        // onContentChanged is called for them.
+        public void onContentMoved(ArrayList<MediaSet.Change> changes);
     }
 
     private int mActiveStart = 0;
@@ -244,6 +248,8 @@ public class AlbumDataLoader {
 
         public int size;
         public ArrayList<MediaItem> items;
+        // How the items changed since the last version, if known.
+        public ArrayList<MediaSet.Change> changes;
     }
 
     private class GetUpdateInfo implements Callable<UpdateInfo> {
@@ -287,6 +293,7 @@ public class AlbumDataLoader {
         @Override
         public Void call() throws Exception {
             UpdateInfo info = mUpdateInfo;
+            if (info.changes != null) moveContent(info.changes, info.version);
             mSourceVersion = info.version;
             if (mSize != info.size) {
                 mSize = info.size;
@@ -325,6 +332,35 @@ public class AlbumDataLoader {
         }
     }
 
+    // Moves the loaded items to their new positions, so that only the
+    // inserted ones need to be loaded for the new version.
+    private void moveContent(ArrayList<MediaSet.Change> changes, long version) {
+        int start = mContentStart;
+        int n = mContentEnd - start;
+        MediaItem[] data = new MediaItem[n];
+        long[] itemVersion = new long[n];
+        for (int i = 0; i < n; i++) {
+            itemVersion[i] = MediaObject.INVALID_DATA_VERSION;
+            int from = MediaSet.getIndexBefore(changes, start + i);
+            if (from < start || from >= start + n) continue;
+            int index = from % DATA_CACHE_SIZE;
+            if (mSetVersion[index] == mSourceVersion) {
+                data[i] = mData[index];
+                itemVersion[i] = mItemVersion[index];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int index = (start + i) % DATA_CACHE_SIZE;
+            mData[index] = data[i];
+            mItemVersion[index] = itemVersion[i];
+            mSetVersion[index] = data[i] == null
+                    ? MediaObject.INVALID_DATA_VERSION : version;
+        }
+        if (mDataListener != null && !changes.isEmpty()) {
+            mDataListener.onContentMoved(changes);
+        }
+    }
+
     /*
      * The thread model of ReloadTask
      *      *
@@ -378,6 +414,12 @@ public class AlbumDataLoader {
                 updateComplete = info == null;
                 if (updateComplete) continue;
                 if (info.version != version) {
+                    // If we know how the items changed, we move the loaded
+                    // ones instead of loading them all again.
+                    if (info.version != MediaObject.INVALID_DATA_VERSION) {
+                        info.changes = mSource.getChangesSince(info.version);
+                        if (info.changes != null) info.reloadCount = 0;
+                    }
                     info.size = mSource.getMediaItemCount();
                     info.version = version;
                 }
@@ -79,7 +79,8 @@ public class GalleryAppImpl extends Application implements GalleryApp {
         // This method may block on file I/O so a dedicated lock is needed here.
         synchronized (mLock) {
             if (mImageCacheService == null) {
-                mImageCacheService = new ImageCacheService(getAndroidContext());
+                mImageCacheService = new ImageCacheService(
+                        getAndroidContext(), getThreadPool());
             }
             return mImageCacheService;
         }
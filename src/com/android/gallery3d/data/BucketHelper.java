@@ -104,6 +104,7 @@ class BucketHelper {
         }
         try {
             while (cursor.moveToNext()) {
+                if (jc.isCancelled()) return;
                 int bucketId = cursor.getInt(INDEX_BUCKET_ID);
                 int dateTaken = cursor.getInt(INDEX_DATE_TAKEN);
                 BucketEntry entry = buckets.get(bucketId);
@@ -131,6 +132,7 @@ class BucketHelper {
             updateBucketEntriesFromTable(
                     jc, resolver, Video.Media.EXTERNAL_CONTENT_URI, buckets);
         }
+        if (jc.isCancelled()) return null;
         BucketEntry[] entries = buckets.values().toArray(new BucketEntry[buckets.size()]);
         Arrays.sort(entries, new Comparator<BucketEntry>() {
             @Override
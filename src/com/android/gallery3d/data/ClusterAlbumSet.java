@@ -20,6 +20,8 @@ import android.content.Context;
 import android.net.Uri;
 
 import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.util.ThreadPool.CancellationToken;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -32,6 +34,13 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     private int mKind;
     private ArrayList<ClusterAlbum> mAlbums = new ArrayList<ClusterAlbum>();
     private boolean mFirstReloadDone;
+    // True while the albums come from clusters saved by an earlier run and
+    // have not been checked against the base set yet.
+    private boolean mShowingSavedClusters;
+    // Lets onContentDirty() stop a clustering run whose result is stale.
+    // It is only set when the run may be stopped, see reload().
+    private volatile CancellationToken mReloadToken;
+    private boolean mLastReloadCancelled;
 
     public ClusterAlbumSet(Path path, GalleryApp application,
             MediaSet baseSet, int kind) {
@@ -59,25 +68,65 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
 
     @Override
     public long reload() {
-        if (mBaseSet.reload() > mDataVersion) {
-            if (mFirstReloadDone) {
-                updateClustersContents();
+        if (!mFirstReloadDone && showSavedClusters()) {
+            mFirstReloadDone = true;
+            mShowingSavedClusters = true;
+            mDataVersion = nextVersionNumber();
+            // Check the saved clusters against the base set in the next
+            // reload().
+            notifyContentChanged();
+            return mDataVersion;
+        }
+
+        if (mBaseSet.reload() > mDataVersion || mShowingSavedClusters) {
+            CancellationToken token = new CancellationToken();
+            // Nothing is shown until the first run is done, and a run
+            // following a cancelled one always finishes, so that albums
+            // show up and keep being updated while the base set keeps
+            // changing.
+            if (mFirstReloadDone && !mLastReloadCancelled) {
+                mReloadToken = token;
+            }
+            boolean done;
+            if (mFirstReloadDone && !mShowingSavedClusters) {
+                done = updateClustersContents(token);
             } else {
-                updateClusters();
-                mFirstReloadDone = true;
+                done = updateClusters(token);
+                if (done) {
+                    mFirstReloadDone = true;
+                    mShowingSavedClusters = false;
+                }
             }
-            mDataVersion = nextVersionNumber();
+            mReloadToken = null;
+            mLastReloadCancelled = !done;
+            // If cancelled, the data version stays old so that the next
+            // reload() tries again.
+            if (done) mDataVersion = nextVersionNumber();
         }
         return mDataVersion;
     }
 
     @Override
     public void onContentDirty() {
+        CancellationToken token = mReloadToken;
+        if (token != null) token.cancel();
         notifyContentChanged();
     }
 
-    private void updateClusters() {
-        mAlbums.clear();
+    // Shows the clusters saved by the last clustering of the base set, if
+    // there are any, without enumerating the base set. Only time clusters
+    // are saved.
+    private boolean showSavedClusters() {
+        if (mKind != ClusterSource.CLUSTER_ALBUMSET_TIME) return false;
+        TimeClustering clustering =
+                new TimeClustering(mApplication.getAndroidContext());
+        if (!clustering.restore(mBaseSet)) return false;
+        setAlbums(clustering);
+        return true;
+    }
+
+    // Returns false if cancelled before the clusters were updated.
+    private boolean updateClusters(JobContext jc) {
         Clustering clustering;
         Context context = mApplication.getAndroidContext();
         switch (mKind) {
@@ -98,7 +147,15 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
                 break;
         }
 
-        clustering.run(mBaseSet);
+        clustering.run(jc, mBaseSet);
+        if (jc.isCancelled()) return false;
+
+        setAlbums(clustering);
+        return true;
+    }
+
+    private void setAlbums(Clustering clustering) {
+        mAlbums.clear();
         int n = clustering.getNumberOfClusters();
         DataManager dataManager = mApplication.getDataManager();
         for (int i = 0; i < n; i++) {
@@ -127,14 +184,16 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
         }
     }
 
-    private void updateClustersContents() {
+    // Returns false if cancelled before the clusters were updated.
+    private boolean updateClustersContents(JobContext jc) {
         final HashSet<Path> existing = new HashSet<Path>();
-        mBaseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+        boolean done = mBaseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             @Override
             public void consume(int index, MediaItem item) {
                 existing.add(item.getPath());
             }
-        });
+        }, jc);
+        if (!done) return false;
 
         int n = mAlbums.size();
 
@@ -155,5 +214,6 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
                 mAlbums.remove(i);
             }
         }
+        return true;
     }
 }
@@ -16,10 +16,14 @@
 
 package com.android.gallery3d.data;
 
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
 import java.util.ArrayList;
 
 public abstract class Clustering {
-    public abstract void run(MediaSet baseSet);
+    // Computes the clusters of baseSet. If jc gets cancelled, this returns
+    // early and the results must not be used.
+    public abstract void run(JobContext jc, MediaSet baseSet);
     public abstract int getNumberOfClusters();
     public abstract ArrayList<Path> getCluster(int index);
     public abstract String getClusterName(int index);
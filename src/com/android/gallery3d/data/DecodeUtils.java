@@ -30,6 +30,7 @@ import com.android.gallery3d.common.BitmapUtils;
 import com.android.gallery3d.common.Utils;
 import com.android.photos.data.GalleryBitmapPool;
 import com.android.gallery3d.ui.Log;
+import com.android.gallery3d.util.Metrics;
 import com.android.gallery3d.util.ThreadPool.CancelListener;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
@@ -41,6 +42,12 @@ import java.io.InputStream;
 public class DecodeUtils {
     private static final String TAG = "DecodeUtils";
 
+    // How often decodeUsingPool finds a bitmap to reuse, and how long it takes.
+    private static final Metrics.HitRatio sPoolHits =
+            Metrics.hitRatio("bitmap_pool.hits");
+    private static final Metrics.Histogram sPoolDecodeTime =
+            Metrics.histogram("bitmap_pool.decode");
+
     private static class DecodeCanceller implements CancelListener {
         Options mOptions;
 
@@ -253,14 +260,17 @@ public class DecodeUtils {
         if (options == null) options = new BitmapFactory.Options();
         if (options.inSampleSize < 1) options.inSampleSize = 1;
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        long startTime = System.nanoTime();
         options.inBitmap = (options.inSampleSize == 1)
                 ? findCachedBitmap(jc, data, offset, length, options) : null;
+        sPoolHits.record(options.inBitmap != null);
         try {
             Bitmap bitmap = decode(jc, data, offset, length, options);
             if (options.inBitmap != null && options.inBitmap != bitmap) {
                 GalleryBitmapPool.getInstance().put(options.inBitmap);
                 options.inBitmap = null;
             }
+            sPoolDecodeTime.recordSince(startTime);
             return bitmap;
         } catch (IllegalArgumentException e) {
             if (options.inBitmap == null) throw e;
@@ -280,14 +290,17 @@ public class DecodeUtils {
         if (options == null) options = new BitmapFactory.Options();
         if (options.inSampleSize < 1) options.inSampleSize = 1;
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        long startTime = System.nanoTime();
         options.inBitmap = (options.inSampleSize == 1)
                 ? findCachedBitmap(jc, fileDescriptor, options) : null;
+        sPoolHits.record(options.inBitmap != null);
         try {
             Bitmap bitmap = DecodeUtils.decode(jc, fileDescriptor, options);
             if (options.inBitmap != null && options.inBitmap != bitmap) {
                 GalleryBitmapPool.getInstance().put(options.inBitmap);
                 options.inBitmap = null;
             }
+            sPoolDecodeTime.recordSince(startTime);
             return bitmap;
         } catch (IllegalArgumentException e) {
             if (options.inBitmap == null) throw e;
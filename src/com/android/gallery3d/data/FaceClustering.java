@@ -21,6 +21,7 @@ import android.graphics.Rect;
 
 import com.android.gallery3d.R;
 import com.android.gallery3d.picasasource.PicasaSource;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
 import java.util.TreeMap;
@@ -88,12 +89,12 @@ public class FaceClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
+    public void run(JobContext jc, MediaSet baseSet) {
         final TreeMap<Face, FaceCluster> map =
                 new TreeMap<Face, FaceCluster>();
         final FaceCluster untagged = new FaceCluster(mUntaggedString);
 
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+        boolean done = baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             @Override
             public void consume(int index, MediaItem item) {
                 Face[] faces = item.getFaces();
@@ -111,7 +112,8 @@ public class FaceClustering extends Clustering {
                     cluster.add(item, j);
                 }
             }
-        });
+        }, jc);
+        if (!done) return;
 
         int m = map.size();
         mClusters = map.values().toArray(new FaceCluster[m + ((untagged.size() > 0) ? 1 : 0)]);
@@ -22,12 +22,35 @@ import android.graphics.BitmapFactory;
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.BitmapUtils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
+import com.android.gallery3d.util.Metrics;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 abstract class ImageCacheRequest implements Job<Bitmap> {
     private static final String TAG = "ImageCacheRequest";
 
+    // The latency of each stage of a request, by image type.
+    private static class Stats {
+        final Metrics.Histogram total;
+        final Metrics.Histogram cacheLookup;
+        final Metrics.HitRatio cacheHits;
+        final Metrics.Histogram decodeCached;
+        final Metrics.Histogram decodeOriginal;
+        final Metrics.Histogram resizeAndStore;
+
+        Stats(String prefix) {
+            total = Metrics.histogram(prefix + ".request");
+            cacheLookup = Metrics.histogram(prefix + ".cache_lookup");
+            cacheHits = Metrics.hitRatio(prefix + ".cache_hits");
+            decodeCached = Metrics.histogram(prefix + ".decode_cached");
+            decodeOriginal = Metrics.histogram(prefix + ".decode_original");
+            resizeAndStore = Metrics.histogram(prefix + ".resize_and_store");
+        }
+    }
+
+    private static final Stats sThumbStats = new Stats("thumb");
+    private static final Stats sMicroThumbStats = new Stats("microthumb");
+
     protected GalleryApp mApplication;
     private Path mPath;
     private int mType;
@@ -51,13 +74,26 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
 
     @Override
     public Bitmap run(JobContext jc) {
+        Stats stats = (mType == MediaItem.TYPE_MICROTHUMBNAIL)
+                ? sMicroThumbStats : sThumbStats;
+        long startTime = System.nanoTime();
+        Bitmap bitmap = run(jc, stats);
+        if (bitmap != null) stats.total.recordSince(startTime);
+        return bitmap;
+    }
+
+    private Bitmap run(JobContext jc, Stats stats) {
         ImageCacheService cacheService = mApplication.getImageCacheService();
 
         BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
         try {
+            long lookupTime = System.nanoTime();
             boolean found = cacheService.getImageData(mPath, mTimeModified, mType, buffer);
+            stats.cacheLookup.recordSince(lookupTime);
+            stats.cacheHits.record(found);
             if (jc.isCancelled()) return null;
             if (found) {
+                long decodeTime = System.nanoTime();
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inPreferredConfig = Bitmap.Config.ARGB_8888;
                 Bitmap bitmap;
@@ -71,11 +107,13 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
                 if (bitmap == null && !jc.isCancelled()) {
                     Log.w(TAG, "decode cached failed " + debugTag());
                 }
+                if (bitmap != null) stats.decodeCached.recordSince(decodeTime);
                 return bitmap;
             }
         } finally {
             MediaItem.getBytesBufferPool().recycle(buffer);
         }
+        long decodeTime = System.nanoTime();
         Bitmap bitmap = onDecodeOriginal(jc, mType);
         if (jc.isCancelled()) return null;
 
@@ -83,7 +121,9 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
             Log.w(TAG, "decode orig failed " + debugTag());
             return null;
         }
+        stats.decodeOriginal.recordSince(decodeTime);
 
+        long storeTime = System.nanoTime();
         if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
             bitmap = BitmapUtils.resizeAndCropCenter(bitmap, mTargetSize, true);
         } else {
@@ -95,6 +135,7 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
         if (jc.isCancelled()) return null;
 
         cacheService.putImageData(mPath, mTimeModified, mType, array);
+        stats.resizeAndStore.recordSince(storeTime);
         return bitmap;
     }
 
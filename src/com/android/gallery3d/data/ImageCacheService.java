@@ -17,16 +17,23 @@
 package com.android.gallery3d.data;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.common.BlobCache.LookupRequest;
+import com.android.gallery3d.common.ShardedBlobCache;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.CacheManager;
-import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.FutureListener;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageCacheService {
     @SuppressWarnings("unused")
@@ -35,14 +42,47 @@ public class ImageCacheService {
     private static final String IMAGE_CACHE_FILE = "imgcache";
     private static final int IMAGE_CACHE_MAX_ENTRIES = 5000;
     private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
-    private static final int IMAGE_CACHE_VERSION = 7;
-
-    private BlobCache mCache;
-
-    public ImageCacheService(Context context) {
-        mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
-                IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+    // Version 8 switched from string keys to the binary keys below.
+    private static final int IMAGE_CACHE_VERSION = 8;
+    // Each shard has its own files and lock, so decode threads inserting
+    // thumbnails do not all wait on one another.
+    private static final int IMAGE_CACHE_SHARDS = 4;
+
+    // Each blob starts with this key, so a hit can be told apart from a
+    // collision of the 64-bit cache key:
+    // [0]  Path fingerprint (see Path.getFingerprint)
+    // [8]  Modified time
+    // [16] Type
+    private static final int KEY_SIZE = 20;
+
+    // How much a compaction step copies while holding a shard's write lock.
+    private static final int COMPACTION_STEP_BYTES = 256 * 1024;
+    // A compaction job gives its worker back after this long; the next
+    // lookup schedules another one if there is work left.
+    private static final long COMPACTION_TIMEOUT_MS = 2000;
+
+    private ShardedBlobCache mCache;
+
+    // Lookups run on the decode threads; each reuses its own request.
+    private final ThreadLocal<LookupRequest> mLookupRequest =
+            new ThreadLocal<LookupRequest>() {
+        @Override
+        protected LookupRequest initialValue() {
+            return new LookupRequest();
+        }
+    };
+
+    private final ThreadPool mThreadPool;
+    private final AtomicBoolean mCompacting = new AtomicBoolean();
+
+    public ImageCacheService(Context context, ThreadPool threadPool) {
+        mThreadPool = threadPool;
+        mCache = CacheManager.getShardedCache(context, IMAGE_CACHE_FILE,
+                IMAGE_CACHE_SHARDS, IMAGE_CACHE_MAX_ENTRIES,
+                IMAGE_CACHE_MAX_BYTES, IMAGE_CACHE_VERSION);
+        // Thumbnails that are hit get copied forward by compaction jobs
+        // instead of on the lookup path.
+        if (mCache != null) mCache.setCompactionEnabled(true);
     }
 
     /**
@@ -58,26 +98,30 @@ public class ImageCacheService {
     public boolean getImageData(Path path, long timeModified, int type, BytesBuffer buffer) {
         if (mCache == null) return false;
 
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
+        long pathKey = path.getFingerprint();
+        long cacheKey = makeCacheKey(pathKey, timeModified, type);
+        LookupRequest request = mLookupRequest.get();
         try {
-            LookupRequest request = new LookupRequest();
             request.key = cacheKey;
             request.buffer = buffer.data;
             if (mCache == null) {
                 return false;
             }
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
-            if (isSameKey(key, request.buffer)) {
+            boolean found = mCache.lookup(request);
+            compactInBackground();
+            if (!found) return false;
+            if (isSameKey(request.buffer, request.length,
+                    pathKey, timeModified, type)) {
                 buffer.data = request.buffer;
-                buffer.offset = key.length;
+                buffer.offset = KEY_SIZE;
                 buffer.length = request.length - buffer.offset;
                 return true;
             }
         } catch (IOException ex) {
             // ignore.
+        } finally {
+            // Do not hold on to the pooled buffer.
+            request.buffer = null;
         }
         return false;
     }
@@ -85,54 +129,97 @@ public class ImageCacheService {
     public void putImageData(Path path, long timeModified, int type, byte[] value) {
         if (mCache == null) return;
 
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
+        long pathKey = path.getFingerprint();
+        long cacheKey = makeCacheKey(pathKey, timeModified, type);
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_SIZE + value.length);
+        buffer.putLong(pathKey);
+        buffer.putLong(timeModified);
+        buffer.putInt(type);
         buffer.put(value);
         if (mCache == null) {
             return;
         }
-        synchronized (mCache) {
-            try {
-                mCache.insert(cacheKey, buffer.array());
-            } catch (IOException ex) {
-                // ignore.
-            }
+        try {
+            mCache.insert(cacheKey, buffer.array());
+        } catch (IOException ex) {
+            // ignore.
         }
     }
 
     public void clearImageData(Path path, long timeModified, int type) {
         if (mCache == null) return;
 
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
+        long cacheKey = makeCacheKey(path.getFingerprint(), timeModified, type);
         if (mCache == null) {
             return;
         }
-        synchronized (mCache) {
-            try {
-                mCache.clearEntry(cacheKey);
-            } catch (IOException ex) {
-                // ignore.
-            }
+        try {
+            mCache.clearEntry(cacheKey);
+        } catch (IOException ex) {
+            // ignore.
         }
     }
 
-    private static byte[] makeKey(Path path, long timeModified, int type) {
-        return GalleryUtils.getBytes(path.toString() + "+" + timeModified + "+" + type);
+    private void compactInBackground() {
+        if (!mCache.needsCompaction() || !mCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        mThreadPool.submit(new Job<Void>() {
+            @Override
+            public Void run(JobContext jc) {
+                try {
+                    while (!jc.isCancelled()
+                            && mCache.compact(COMPACTION_STEP_BYTES) > 0) {
+                        // keep going until all shards are done
+                    }
+                } catch (IOException ex) {
+                    // ignore.
+                }
+                return null;
+            }
+        }, new FutureListener<Void>() {
+            // Also called when the job is skipped for missing its deadline.
+            @Override
+            public void onFutureDone(Future<Void> future) {
+                mCompacting.set(false);
+            }
+        }, ThreadPool.PRIORITY_BACKGROUND,
+                SystemClock.uptimeMillis() + COMPACTION_TIMEOUT_MS);
+    }
+
+    public BlobCache.Stats getStats() {
+        return (mCache == null) ? null : mCache.getStats();
     }
 
-    private static boolean isSameKey(byte[] key, byte[] buffer) {
-        int n = key.length;
-        if (buffer.length < n) {
+    private static long makeCacheKey(long pathKey, long timeModified, int type) {
+        long h = pathKey;
+        h = h * 31 + timeModified;
+        h = h * 31 + type;
+        // BlobCache uses the low bits of the key and ShardedBlobCache the
+        // high bits, so both need to be mixed well.
+        return Utils.mix64(h);
+    }
+
+    private static boolean isSameKey(byte[] buffer, int length,
+            long pathKey, long timeModified, int type) {
+        if (length < KEY_SIZE) {
             return false;
         }
-        for (int i = 0; i < n; ++i) {
-            if (key[i] != buffer[i]) {
-                return false;
-            }
-        }
-        return true;
+        return readLong(buffer, 0) == pathKey
+                && readLong(buffer, 8) == timeModified
+                && readInt(buffer, 16) == type;
+    }
+
+    // The key is written by ByteBuffer, so the numbers are big-endian.
+    private static long readLong(byte[] buffer, int offset) {
+        return ((long) readInt(buffer, offset) << 32)
+                | (readInt(buffer, offset + 4) & 0xffffffffL);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24)
+                | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8)
+                | (buffer[offset + 3] & 0xff);
     }
 }
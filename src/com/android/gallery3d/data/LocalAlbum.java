@@ -21,9 +21,11 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
+import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
+import android.provider.MediaStore.MediaColumns;
 import android.provider.MediaStore.Video;
 import android.provider.MediaStore.Video.VideoColumns;
 
@@ -36,6 +38,7 @@ import com.android.gallery3d.util.MediaSetUtils;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 // LocalAlbumSet lists all media items in one bucket on local storage.
 // The media items need to be all images or all videos, but not both.
@@ -44,6 +47,30 @@ public class LocalAlbum extends MediaSet {
     private static final String[] COUNT_PROJECTION = { "count(*)" };
 
     private static final int INVALID_COUNT = -1;
+
+    // We remember the sort key (date taken, id) of every ANCHOR_INTERVAL-th
+    // item, so a page can be fetched by seeking to the nearest anchor instead
+    // of skipping "start" rows with an OFFSET, which SQLite does one row at a
+    // time. Queries fetch at least WINDOW_SIZE rows; the last result is kept
+    // to serve the following requests (AlbumDataLoader asks for overlapping
+    // or adjacent ranges, and single items).
+    private static final int ANCHOR_INTERVAL = 64;
+    private static final int WINDOW_SIZE = 128;
+    private static final int MAX_WINDOW_SIZE = 4 * WINDOW_SIZE;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    // When the album changes, we check whether the only change is new items
+    // sorting first (usually new captures), so that views can keep the items
+    // they already loaded. The check compares the summary of the album before
+    // and after, with the summary of the items dated after the newest item
+    // before. Ids only grow, so items inserted and deleted elsewhere can't
+    // cancel out in the id sum.
+    private static final int SUMMARY_COUNT = 0;
+    private static final int SUMMARY_ID_SUM = 1;
+    private static final int SUMMARY_DATE_SUM = 2;
+    private static final int SUMMARY_MODIFIED_SUM = 3;
+    private static final int SUMMARY_MAX_DATE = 4;
+
     private final String mWhereClause;
     private final String mOrderClause;
     private final Uri mBaseUri;
@@ -56,7 +83,21 @@ public class LocalAlbum extends MediaSet {
     private final boolean mIsImage;
     private final ChangeNotifier mNotifier;
     private final Path mItemPath;
+    private final String mDateTakenColumn;
+    private final int mDateTakenIndex;
+    private final String[] mSummaryProjection;
     private int mCachedCount = INVALID_COUNT;
+    private long[] mSummary;
+
+    // The following are guarded by "this" and reset when the data changes.
+    // Anchor k is the sort key of the item at k * ANCHOR_INTERVAL. Anchor 0
+    // (the start of the album) is always known.
+    private long[] mAnchorDate = new long[16];
+    private int[] mAnchorId = new int[16];
+    private int mAnchorCount = 1;
+    private ArrayList<MediaItem> mWindow;
+    private int mWindowStart;
+    private boolean mWindowAtEnd; // the window reaches the end of the album
 
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
             boolean isImage, String name) {
@@ -74,6 +115,8 @@ public class LocalAlbum extends MediaSet {
             mBaseUri = Images.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalImage.PROJECTION;
             mItemPath = LocalImage.ITEM_PATH;
+            mDateTakenColumn = ImageColumns.DATE_TAKEN;
+            mDateTakenIndex = LocalImage.INDEX_DATE_TAKEN;
         } else {
             mWhereClause = VideoColumns.BUCKET_ID + " = ?";
             mOrderClause = VideoColumns.DATE_TAKEN + " DESC, "
@@ -81,8 +124,17 @@ public class LocalAlbum extends MediaSet {
             mBaseUri = Video.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalVideo.PROJECTION;
             mItemPath = LocalVideo.ITEM_PATH;
+            mDateTakenColumn = VideoColumns.DATE_TAKEN;
+            mDateTakenIndex = LocalVideo.INDEX_DATE_TAKEN;
         }
 
+        mSummaryProjection = new String[] {
+                "count(*)",
+                "sum(" + BaseColumns._ID + ")",
+                "sum(" + mDateTakenColumn + ")",
+                "sum(" + MediaColumns.DATE_MODIFIED + ")",
+                "max(" + mDateTakenColumn + ")"};
+
         mNotifier = new ChangeNotifier(this, mBaseUri, application);
     }
 
@@ -113,32 +165,121 @@ public class LocalAlbum extends MediaSet {
 
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
-        DataManager dataManager = mApplication.getDataManager();
-        Uri uri = mBaseUri.buildUpon()
-                .appendQueryParameter("limit", start + "," + count).build();
-        ArrayList<MediaItem> list = new ArrayList<MediaItem>();
         GalleryUtils.assertNotInRenderThread();
-        Cursor cursor = mResolver.query(
-                uri, mProjection, mWhereClause,
-                new String[]{String.valueOf(mBucketId)},
-                mOrderClause);
+        synchronized (this) {
+            ArrayList<MediaItem> window = mWindow;
+            if (window == null || start < mWindowStart
+                    || (start + count > mWindowStart + window.size()
+                    && !mWindowAtEnd)) {
+                int k = start / ANCHOR_INTERVAL;
+                if (!findAnchor(k)) return new ArrayList<MediaItem>();
+                int from = k * ANCHOR_INTERVAL;
+                int limit = Math.max(start + count - from, WINDOW_SIZE);
+                window = new ArrayList<MediaItem>();
+                readRows(k, limit, window);
+                mWindow = window.size() <= MAX_WINDOW_SIZE ? window : null;
+                mWindowStart = from;
+                mWindowAtEnd = window.size() < limit;
+            }
+            int offset = start - mWindowStart;
+            int end = Math.min(offset + count, window.size());
+            if (offset >= end) return new ArrayList<MediaItem>();
+            return new ArrayList<MediaItem>(window.subList(offset, end));
+        }
+    }
+
+    // Makes sure anchor k is known, reading only the sort keys of the items
+    // between the last known anchor and it. Returns false if the album has
+    // no item at k * ANCHOR_INTERVAL.
+    private boolean findAnchor(int k) {
+        if (k < mAnchorCount) return true;
+        int last = mAnchorCount - 1;
+        readRows(last, (k - last) * ANCHOR_INTERVAL + 1, null);
+        return k < mAnchorCount;
+    }
+
+    // Reads up to "limit" rows starting at anchor k, adding the items to
+    // "items", or only recording the anchors if it is null. The sort order is
+    // date taken descending, then id descending, with null dates last. Rows
+    // with and without a date are read by separate queries, so that each one
+    // can seek in the (bucket id, date taken) index.
+    private void readRows(int k, int limit, ArrayList<MediaItem> items) {
+        String bucketId = String.valueOf(mBucketId);
+        int position = k * ANCHOR_INTERVAL;
+        int end = position + limit;
+        if (k > 0 && mAnchorDate[k] == NO_DATE) {
+            readRows(mWhereClause + " AND " + mDateTakenColumn + " IS NULL AND "
+                    + BaseColumns._ID + " <= ?",
+                    new String[] {bucketId, String.valueOf(mAnchorId[k])},
+                    position, end, items);
+            return;
+        }
+        if (k == 0) {
+            position = readRows(mWhereClause + " AND " + mDateTakenColumn
+                    + " IS NOT NULL", new String[] {bucketId},
+                    position, end, items);
+        } else {
+            String date = String.valueOf(mAnchorDate[k]);
+            position = readRows(mWhereClause + " AND " + mDateTakenColumn
+                    + " <= ? AND (" + mDateTakenColumn + " < ? OR "
+                    + BaseColumns._ID + " <= ?)",
+                    new String[] {bucketId, date, date, String.valueOf(mAnchorId[k])},
+                    position, end, items);
+        }
+        if (position < 0 || position == end) return;
+        readRows(mWhereClause + " AND " + mDateTakenColumn + " IS NULL",
+                new String[] {bucketId}, position, end, items);
+    }
+
+    // Runs one query for the rows from "position" (up to "end"). Returns the
+    // position after the last row read, or -1 if the query failed.
+    private int readRows(String where, String[] args, int position, int end,
+            ArrayList<MediaItem> items) {
+        DataManager dataManager = mApplication.getDataManager();
+        Uri uri = mBaseUri.buildUpon().appendQueryParameter(
+                "limit", String.valueOf(end - position)).build();
+        String[] projection = items != null
+                ? mProjection : new String[] {BaseColumns._ID, mDateTakenColumn};
+        int dateIndex = items != null ? mDateTakenIndex : 1;
+        Cursor cursor = mResolver.query(uri, projection, where, args, mOrderClause);
         if (cursor == null) {
             Log.w(TAG, "query fail: " + uri);
-            return list;
+            return -1;
         }
 
         try {
             while (cursor.moveToNext()) {
                 int id = cursor.getInt(0);  // _id must be in the first column
+                if (position == mAnchorCount * ANCHOR_INTERVAL) {
+                    addAnchor(cursor.isNull(dateIndex)
+                            ? NO_DATE : cursor.getLong(dateIndex), id);
+                }
+                position++;
+                if (items == null) continue;
                 Path childPath = mItemPath.getChild(id);
                 MediaItem item = loadOrUpdateItem(childPath, cursor,
                         dataManager, mApplication, mIsImage);
-                list.add(item);
+                items.add(item);
             }
         } finally {
             cursor.close();
         }
-        return list;
+        return position;
+    }
+
+    private void addAnchor(long date, int id) {
+        if (mAnchorCount == mAnchorId.length) {
+            mAnchorDate = Arrays.copyOf(mAnchorDate, mAnchorCount * 2);
+            mAnchorId = Arrays.copyOf(mAnchorId, mAnchorCount * 2);
+        }
+        mAnchorDate[mAnchorCount] = date;
+        mAnchorId[mAnchorCount] = id;
+        mAnchorCount++;
+    }
+
+    private synchronized void resetPages() {
+        mAnchorCount = 1;
+        mWindow = null;
     }
 
     private static MediaItem loadOrUpdateItem(Path path, Cursor cursor,
@@ -254,12 +395,70 @@ public class LocalAlbum extends MediaSet {
     @Override
     public long reload() {
         if (mNotifier.isDirty()) {
+            long version = mDataVersion;
             mDataVersion = nextVersionNumber();
             mCachedCount = INVALID_COUNT;
+            resetPages();
+
+            long[] summary = querySummary(null, null);
+            int inserted = countNewItems(mSummary, summary);
+            // An update that leaves the summary as it was (a rotation
+            // changes only the orientation and size) cannot be told apart
+            // from no change at all, so only insertions are logged and
+            // anything else is reported as unknown.
+            if (inserted > 0) logChange(version, mDataVersion, 0, 0, inserted);
+            mSummary = summary;
+            if (summary != null) mCachedCount = (int) summary[SUMMARY_COUNT];
         }
         return mDataVersion;
     }
 
+    private long[] querySummary(String extraWhere, String extraArg) {
+        String where = mWhereClause;
+        String[] args = new String[] {String.valueOf(mBucketId)};
+        if (extraWhere != null) {
+            where += " AND " + extraWhere;
+            args = new String[] {args[0], extraArg};
+        }
+        Cursor cursor = mResolver.query(mBaseUri, mSummaryProjection, where, args, null);
+        if (cursor == null) {
+            Log.w(TAG, "query fail");
+            return null;
+        }
+        try {
+            if (!cursor.moveToNext()) return null;
+            long[] summary = new long[mSummaryProjection.length];
+            for (int i = 0; i < summary.length; i++) {
+                summary[i] = cursor.getLong(i);
+            }
+            if (cursor.isNull(SUMMARY_MAX_DATE)) summary[SUMMARY_MAX_DATE] = NO_DATE;
+            return summary;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the number of items inserted at the start of the album between
+    // the two summaries, or -1 if the album changed in other ways (or we
+    // can't tell). Updates that keep the ids and dates of the items, like a
+    // rotation, are not seen at all.
+    private int countNewItems(long[] before, long[] after) {
+        if (before == null || after == null) return -1;
+        long[] added;
+        if (before[SUMMARY_COUNT] == 0) {
+            added = after;
+        } else {
+            if (before[SUMMARY_MAX_DATE] == NO_DATE) return -1;
+            added = querySummary(mDateTakenColumn + " > ?",
+                    String.valueOf(before[SUMMARY_MAX_DATE]));
+            if (added == null) return -1;
+        }
+        for (int i = SUMMARY_COUNT; i <= SUMMARY_MODIFIED_SUM; i++) {
+            if (before[i] + added[i] != after[i]) return -1;
+        }
+        return (int) added[SUMMARY_COUNT];
+    }
+
     @Override
     public int getSupportedOperations() {
         return SUPPORT_DELETE | SUPPORT_SHARE | SUPPORT_INFO;
@@ -23,10 +23,9 @@ import com.android.gallery3d.common.ApiHelper;
 
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.NoSuchElementException;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 // MergeAlbum merges items from two or more MediaSets. It uses a Comparator to
 // determine the order of items. The items are assumed to be sorted in the input
@@ -41,12 +40,26 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     private final Comparator<MediaItem> mComparator;
     private final MediaSet[] mSources;
 
-    private FetchCache[] mFetcher;
+    private final FetchCache[] mFetcher;
     private int mSupportedOperation;
     private int mBucketId;
 
-    // mIndex maps global position to the position of each underlying media sets.
-    private TreeMap<Integer, int[]> mIndex = new TreeMap<Integer, int[]>();
+    // The index maps global positions to the positions in each source, so
+    // getMediaItem can start merging close to "start". Mark m is at global
+    // position mMarkPos[m], where source j is at mMarkSub[m * n + j] (n is the
+    // number of sources). Marks are left every PAGE_SIZE items while merging.
+    //
+    // When a source changes, its positions in the marks are shifted by the
+    // change of its item count (new items usually sort first), and the marks
+    // are checked before they are used again. A mark is valid if the last
+    // item taken from each source sorts before the next item of every other
+    // source.
+    private int[] mMarkPos = new int[16];
+    private int[] mMarkSub;
+    private boolean[] mMarkVerified = new boolean[16];
+    private int mMarkCount;
+    private int[] mSourceCount;
+    private final long[] mSourceVersion;
 
     public LocalMergeAlbum(
             Path path, Comparator<MediaItem> comparator, MediaSet[] sources, int bucketId) {
@@ -54,6 +67,17 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         mComparator = comparator;
         mSources = sources;
         mBucketId = bucketId;
+        int n = sources.length;
+        mFetcher = new FetchCache[n];
+        for (int i = 0; i < n; i++) {
+            mFetcher[i] = new FetchCache(sources[i]);
+        }
+        mSourceCount = new int[n];
+        mSourceVersion = new long[n];
+        Arrays.fill(mSourceVersion, INVALID_DATA_VERSION);
+        mMarkSub = new int[mMarkPos.length * n];
+        mMarkVerified[0] = true;
+        mMarkCount = 1;
         for (MediaSet set : mSources) {
             set.addContentListener(this);
         }
@@ -69,25 +93,98 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         return true;
     }
 
-    private void updateData() {
-        ArrayList<MediaSet> matches = new ArrayList<MediaSet>();
-        int supported = mSources.length == 0 ? 0 : MediaItem.SUPPORT_ALL;
-        mFetcher = new FetchCache[mSources.length];
-        for (int i = 0, n = mSources.length; i < n; ++i) {
-            mFetcher[i] = new FetchCache(mSources[i]);
+    private void updateData(boolean[] changed) {
+        int n = mSources.length;
+        int supported = n == 0 ? 0 : MediaItem.SUPPORT_ALL;
+        for (int i = 0; i < n; ++i) {
             supported &= mSources[i].getSupportedOperations();
+            if (changed[i]) {
+                mFetcher[i].invalidate();
+                if (mMarkCount > 1) {
+                    int count = mSources[i].getMediaItemCount();
+                    shiftMarks(i, count - mSourceCount[i], count);
+                    mSourceCount[i] = count;
+                }
+            }
         }
         mSupportedOperation = supported;
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
     }
 
-    private void invalidateCache() {
-        for (int i = 0, n = mSources.length; i < n; i++) {
-            mFetcher[i].invalidate();
+    // Shifts the position of source j in all marks but the first one, and
+    // drops the marks that would become out of range. The shifted marks need
+    // to be verified before use.
+    private void shiftMarks(int j, int delta, int count) {
+        int n = mSources.length;
+        int kept = 1;
+        for (int m = 1; m < mMarkCount; m++) {
+            int sub = mMarkSub[m * n + j] + delta;
+            if (sub < 0 || sub > count) continue;
+            mMarkPos[kept] = mMarkPos[m] + delta;
+            System.arraycopy(mMarkSub, m * n, mMarkSub, kept * n, n);
+            mMarkSub[kept * n + j] = sub;
+            mMarkVerified[kept] = false;
+            kept++;
+        }
+        mMarkCount = kept;
+    }
+
+    private void addMark(int pos, int[] subPos) {
+        int n = subPos.length;
+        if (mMarkCount == 1) {
+            // The counts are only needed to shift marks, so we don't bother
+            // keeping them up to date while there are none.
+            for (int i = 0; i < n; i++) {
+                mSourceCount[i] = mSources[i].getMediaItemCount();
+            }
+        }
+        if (mMarkCount == mMarkPos.length) {
+            mMarkPos = Arrays.copyOf(mMarkPos, mMarkCount * 2);
+            mMarkSub = Arrays.copyOf(mMarkSub, mMarkCount * 2 * n);
+            mMarkVerified = Arrays.copyOf(mMarkVerified, mMarkCount * 2);
+        }
+        mMarkPos[mMarkCount] = pos;
+        System.arraycopy(subPos, 0, mMarkSub, mMarkCount * n, n);
+        mMarkVerified[mMarkCount] = true;
+        mMarkCount++;
+    }
+
+    // Returns the last mark at or before pos.
+    private int findMark(int pos) {
+        int lo = 0;
+        int hi = mMarkCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mMarkPos[mid] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private boolean verifyMark(int m) {
+        int n = mSources.length;
+        for (int a = 0; a < n; a++) {
+            int subPos = mMarkSub[m * n + a];
+            if (subPos == 0) continue;
+            MediaItem last = mFetcher[a].getItem(subPos - 1);
+            if (last == null) return false;
+            for (int b = 0; b < n; b++) {
+                if (b == a) continue;
+                MediaItem next = mFetcher[b].getItem(mMarkSub[m * n + b]);
+                if (next != null && !precedes(last, a, next, b)) return false;
+            }
         }
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        mMarkVerified[m] = true;
+        return true;
+    }
+
+    // The merge order: by the comparator, then by source index, so items
+    // comparing equal are taken from the first source first.
+    private boolean precedes(MediaItem x, int a, MediaItem y, int b) {
+        int result = mComparator.compare(x, y);
+        return result < 0 || (result == 0 && a < b);
     }
 
     @Override
@@ -117,52 +214,90 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     }
 
     @Override
-    public ArrayList<MediaItem> getMediaItem(int start, int count) {
-
-        // First find the nearest mark position <= start.
-        SortedMap<Integer, int[]> head = mIndex.headMap(start + 1);
-        int markPos = head.lastKey();
-        int[] subPos = head.get(markPos).clone();
-        MediaItem[] slot = new MediaItem[mSources.length];
+    public synchronized ArrayList<MediaItem> getMediaItem(int start, int count) {
+
+        // First find the nearest valid mark at or before start. If a mark is
+        // no longer valid, neither are the ones after it.
+        int m = findMark(start);
+        while (!mMarkVerified[m] && !verifyMark(m)) {
+            mMarkCount = m;
+            m = findMark(start);
+        }
 
         int size = mSources.length;
-
-        // fill all slots
+        int[] subPos = Arrays.copyOfRange(mMarkSub, m * size, (m + 1) * size);
+        int nextMark = m + 1;
+
+        // Fill all slots, and keep the indexes of the non-empty ones in a
+        // heap ordered by their items.
+        MediaItem[] slot = new MediaItem[size];
+        int[] heap = new int[size];
+        int heapSize = 0;
         for (int i = 0; i < size; i++) {
             slot[i] = mFetcher[i].getItem(subPos[i]);
+            if (slot[i] != null) {
+                heap[heapSize++] = i;
+                siftUp(heap, heapSize - 1, slot);
+            }
         }
 
         ArrayList<MediaItem> result = new ArrayList<MediaItem>();
 
-        for (int i = markPos; i < start + count; i++) {
-            int k = -1;  // k points to the best slot up to now.
-            for (int j = 0; j < size; j++) {
-                if (slot[j] != null) {
-                    if (k == -1 || mComparator.compare(slot[j], slot[k]) < 0) {
-                        k = j;
-                    }
-                }
-            }
-
-            // If we don't have anything, all streams are exhausted.
-            if (k == -1) break;
-
+        // If the heap is empty, all streams are exhausted.
+        for (int i = mMarkPos[m]; i < start + count && heapSize > 0; i++) {
             // Pick the best slot and refill it.
+            int k = heap[0];
             subPos[k]++;
             if (i >= start) {
                 result.add(slot[k]);
             }
             slot[k] = mFetcher[k].getItem(subPos[k]);
-
-            // Periodically leave a mark in the index, so we can come back later.
-            if ((i + 1) % PAGE_SIZE == 0) {
-                mIndex.put(i + 1, subPos.clone());
+            if (slot[k] == null) heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, slot);
+
+            // Correct the marks we pass, and periodically leave a new one at
+            // the end of the index, so we can come back later.
+            if (nextMark < mMarkCount && mMarkPos[nextMark] == i + 1) {
+                System.arraycopy(subPos, 0, mMarkSub, nextMark * size, size);
+                mMarkVerified[nextMark++] = true;
+            } else if ((i + 1) % PAGE_SIZE == 0 && nextMark == mMarkCount) {
+                addMark(i + 1, subPos);
+                nextMark++;
             }
         }
 
         return result;
     }
 
+    private void siftUp(int[] heap, int i, MediaItem[] slot) {
+        int k = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!precedes(slot[k], k, slot[heap[parent]], heap[parent])) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = k;
+    }
+
+    private void siftDown(int[] heap, int heapSize, MediaItem[] slot) {
+        if (heapSize == 0) return;
+        int k = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && precedes(slot[heap[child + 1]],
+                    heap[child + 1], slot[heap[child]], heap[child])) {
+                child++;
+            }
+            if (!precedes(slot[heap[child]], heap[child], slot[k], k)) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = k;
+    }
+
     @Override
     public int getTotalMediaItemCount() {
         int count = 0;
@@ -173,19 +308,68 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     }
 
     @Override
-    public long reload() {
-        boolean changed = false;
-        for (int i = 0, n = mSources.length; i < n; ++i) {
-            if (mSources[i].reload() > mDataVersion) changed = true;
+    public synchronized long reload() {
+        int n = mSources.length;
+        boolean[] changed = new boolean[n];
+        int[] inserted = new int[n];
+        boolean anyChanged = false;
+        for (int i = 0; i < n; ++i) {
+            long version = mSources[i].reload();
+            if (version != mSourceVersion[i]) {
+                changed[i] = true;
+                anyChanged = true;
+                inserted[i] = countNewItems(
+                        mSources[i].getChangesSince(mSourceVersion[i]));
+                mSourceVersion[i] = version;
+            }
         }
-        if (changed) {
+        if (anyChanged) {
+            long version = mDataVersion;
             mDataVersion = nextVersionNumber();
-            updateData();
-            invalidateCache();
+            updateData(changed);
+            int total = countNewItems(inserted);
+            // A source that changed without inserting anything changed in a
+            // way it couldn't describe.
+            if (total > 0) logChange(version, mDataVersion, 0, 0, total);
         }
         return mDataVersion;
     }
 
+    // Returns the number of items the changes inserted at the start of a
+    // source, or -1 if they did something else.
+    private static int countNewItems(ArrayList<Change> changes) {
+        if (changes == null) return -1;
+        int count = 0;
+        for (Change change : changes) {
+            if (change.index != 0 || change.removed != 0) return -1;
+            count += change.inserted;
+        }
+        return count;
+    }
+
+    // Given the number of items inserted at the start of each source, returns
+    // the number of items inserted at the start of the merged items, or -1 if
+    // the new items don't all sort before the old ones.
+    private int countNewItems(int[] inserted) {
+        int n = mSources.length;
+        for (int a = 0; a < n; a++) {
+            if (inserted[a] < 0) return -1;
+        }
+        int total = 0;
+        for (int a = 0; a < n; a++) {
+            if (inserted[a] == 0) continue;
+            total += inserted[a];
+            MediaItem last = mFetcher[a].getItem(inserted[a] - 1);
+            if (last == null) return -1;
+            for (int b = 0; b < n; b++) {
+                if (b == a) continue;
+                MediaItem next = mFetcher[b].getItem(inserted[b]);
+                if (next != null && !precedes(last, a, next, b)) return -1;
+            }
+        }
+        return total;
+    }
+
     @Override
     public void onContentDirty() {
         notifyContentChanged();
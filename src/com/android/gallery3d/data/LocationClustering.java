@@ -22,10 +22,14 @@ import android.os.Looper;
 import android.widget.Toast;
 
 import com.android.gallery3d.R;
+import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.OfflineGeocoder;
 import com.android.gallery3d.util.ReverseGeocoder;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 class LocationClustering extends Clustering {
     @SuppressWarnings("unused")
@@ -37,19 +41,31 @@ class LocationClustering extends Clustering {
 
     // If the total distance change is less than this ratio, stop iterating.
     private static final float STOP_CHANGE_RATIO = 0.01f;
+
+    // Stop trying larger k once the score has not improved for this many k.
+    private static final int MAX_K_WITHOUT_IMPROVEMENT = 3;
+
+    // Items are first aggregated into cells of this size (in degrees, about
+    // 11 meters of latitude), so that items taken at the same place become
+    // one weighted point.
+    private static final double CELL_SIZE_DEGREES = 0.0001;
+
+    // The seed of the k-means++ random choices, fixed so that the same items
+    // always give the same clusters.
+    private static final long SEED = 0x4c6f636174696f6eL;
+
     private Context mContext;
     private ArrayList<ArrayList<SmallItem>> mClusters;
     private ArrayList<String> mNames;
     private String mNoLocationString;
     private Handler mHandler;
 
-    private static class Point {
-        public Point(double lat, double lng) {
-            latRad = Math.toRadians(lat);
-            lngRad = Math.toRadians(lng);
-        }
-        public Point() {}
-        public double latRad, lngRad;
+    // Weighted points, in radians.
+    private static class Points {
+        int count;
+        double[] latRad;
+        double[] lngRad;
+        int[] weight;
     }
 
     private static class SmallItem {
@@ -64,12 +80,12 @@ class LocationClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
+    public void run(JobContext jc, MediaSet baseSet) {
         final int total = baseSet.getTotalMediaItemCount();
         final SmallItem[] buf = new SmallItem[total];
         // Separate items to two sets: with or without lat-long.
         final double[] latLong = new double[2];
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+        boolean done = baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             @Override
             public void consume(int index, MediaItem item) {
                 if (index < 0 || index >= total) return;
@@ -80,17 +96,16 @@ class LocationClustering extends Clustering {
                 s.lng = latLong[1];
                 buf[index] = s;
             }
-        });
+        }, jc);
+        if (!done) return;
 
         final ArrayList<SmallItem> withLatLong = new ArrayList<SmallItem>();
         final ArrayList<SmallItem> withoutLatLong = new ArrayList<SmallItem>();
-        final ArrayList<Point> points = new ArrayList<Point>();
         for (int i = 0; i < total; i++) {
             SmallItem s = buf[i];
             if (s == null) continue;
             if (GalleryUtils.isValidLocation(s.lat, s.lng)) {
                 withLatLong.add(s);
-                points.add(new Point(s.lat, s.lng));
             } else {
                 withoutLatLong.add(s);
             }
@@ -101,25 +116,39 @@ class LocationClustering extends Clustering {
         int m = withLatLong.size();
         if (m > 0) {
             // cluster the items with lat-long
-            Point[] pointsArray = new Point[m];
-            pointsArray = points.toArray(pointsArray);
+            double[] lat = new double[m];
+            double[] lng = new double[m];
+            for (int i = 0; i < m; i++) {
+                SmallItem s = withLatLong.get(i);
+                lat[i] = s.lat;
+                lng[i] = s.lng;
+            }
+            int[] cellOf = new int[m];
+            Points points = aggregate(lat, lng, cellOf);
             int[] bestK = new int[1];
-            int[] index = kMeans(pointsArray, bestK);
+            int[] index = kMeans(jc, points, bestK);
+            if (index == null) return;
 
             for (int i = 0; i < bestK[0]; i++) {
                 clusters.add(new ArrayList<SmallItem>());
             }
 
             for (int i = 0; i < m; i++) {
-                clusters.get(index[i]).add(withLatLong.get(i));
+                clusters.get(index[cellOf[i]]).add(withLatLong.get(i));
             }
         }
 
-        ReverseGeocoder geocoder = new ReverseGeocoder(mContext);
+        // Name the clusters from the local place file if there is one; it
+        // doesn't need the network and is much faster than the Geocoder.
+        OfflineGeocoder offline = OfflineGeocoder.getInstance(mContext);
+        ReverseGeocoder geocoder = offline != null
+                ? new ReverseGeocoder(mContext, offline)
+                : new ReverseGeocoder(mContext);
         mNames = new ArrayList<String>();
         boolean hasUnresolvedAddress = false;
         mClusters = new ArrayList<ArrayList<SmallItem>>();
         for (ArrayList<SmallItem> cluster : clusters) {
+            if (jc.isCancelled()) return;
             String name = generateName(cluster, geocoder);
             if (name != null) {
                 mNames.add(name);
@@ -136,7 +165,7 @@ class LocationClustering extends Clustering {
             mClusters.add(withoutLatLong);
         }
 
-        if (hasUnresolvedAddress) {
+        if (hasUnresolvedAddress && offline == null) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -198,24 +227,95 @@ class LocationClustering extends Clustering {
         return mNames.get(index);
     }
 
-    // Input: n points
+    // Aggregates the locations (in degrees) by grid cell. Returns one point
+    // per non-empty cell, at the mean location of the cell and weighted by
+    // the number of locations in it. cellOf[i] is set to the point of
+    // location i.
+    private static Points aggregate(double[] lat, double[] lng, int[] cellOf) {
+        int n = lat.length;
+
+        // An open addressing hash table from cell key to point index.
+        int capacity = Integer.highestOneBit(Math.max(n, 1) * 2 - 1) << 1;
+        int mask = capacity - 1;
+        long[] keys = new long[capacity];
+        int[] slots = new int[capacity];  // point index + 1, 0 if empty
+
+        double[] latSum = new double[n];
+        double[] lngSum = new double[n];
+        int[] weight = new int[n];
+        int count = 0;
+
+        for (int i = 0; i < n; i++) {
+            long row = (long) Math.floor((lat[i] + 90) / CELL_SIZE_DEGREES);
+            long col = (long) Math.floor((lng[i] + 180) / CELL_SIZE_DEGREES);
+            long key = (row << 32) | (col & 0xffffffffL);
+            int h = (int) Utils.mix64(key) & mask;
+            while (slots[h] != 0 && keys[h] != key) {
+                h = (h + 1) & mask;
+            }
+            if (slots[h] == 0) {
+                keys[h] = key;
+                slots[h] = ++count;
+            }
+            int p = slots[h] - 1;
+            latSum[p] += lat[i];
+            lngSum[p] += lng[i];
+            weight[p]++;
+            cellOf[i] = p;
+        }
+
+        Points points = new Points();
+        points.count = count;
+        points.latRad = new double[count];
+        points.lngRad = new double[count];
+        points.weight = weight;
+        for (int p = 0; p < count; p++) {
+            points.latRad[p] = Math.toRadians(latSum[p] / weight[p]);
+            points.lngRad[p] = Math.toRadians(lngSum[p] / weight[p]);
+        }
+        return points;
+    }
+
+    private static void toUnitVector(double latRad, double lngRad,
+            double[] vec, int offset) {
+        double cosLat = Math.cos(latRad);
+        vec[offset] = cosLat * Math.cos(lngRad);
+        vec[offset + 1] = cosLat * Math.sin(lngRad);
+        vec[offset + 2] = Math.sin(latRad);
+    }
+
+    // Input: n weighted points
     // Output: the best k is stored in bestK[0], and the return value is the
     // an array which specifies the group that each point belongs (0 to k - 1).
-    private static int[] kMeans(Point points[], int[] bestK) {
-        int n = points.length;
+    // Returns null if jc is cancelled.
+    //
+    // The centers for k are the converged centers for k - 1 plus one new
+    // center, chosen k-means++ style: a point picked with probability
+    // proportional to its weight times its squared distance to the nearest
+    // center. The search stops early once larger k stop improving the score.
+    private static int[] kMeans(JobContext jc, Points points, int[] bestK) {
+        int n = points.count;
+        double[] latRad = points.latRad;
+        double[] lngRad = points.lngRad;
+        int[] weight = points.weight;
 
         // min and max number of groups wanted
         int minK = Math.min(n, MIN_GROUPS);
         int maxK = Math.min(n, MAX_GROUPS);
 
-        Point[] center = new Point[maxK];  // center of each group.
-        Point[] groupSum = new Point[maxK];  // sum of points in each group.
-        int[] groupCount = new int[maxK];  // number of points in each group.
+        double[] centerLat = new double[maxK];  // center of each group.
+        double[] centerLng = new double[maxK];
+        double[] sumLat = new double[maxK];  // weighted sum of points in each group.
+        double[] sumLng = new double[maxK];
+        int[] groupCount = new int[maxK];  // total weight of each group.
         int[] grouping = new int[n]; // The group assignment for each point.
+        double[] nearest = new double[n]; // The distance to the nearest center.
 
-        for (int i = 0; i < maxK; i++) {
-            center[i] = new Point();
-            groupSum[i] = new Point();
+        // The points and the centers as unit vectors (x, y, z).
+        double[] pointVec = new double[n * 3];
+        double[] centerVec = new double[maxK * 3];
+        for (int i = 0; i < n; i++) {
+            toUnitVector(latRad[i], lngRad[i], pointVec, i * 3);
         }
 
         // The score we want to minimize is:
@@ -225,58 +325,100 @@ class LocationClustering extends Clustering {
         int[] bestGrouping = new int[n];
         // The best K up to now.
         bestK[0] = 1;
+        int kWithoutImprovement = 0;
 
-        float lastDistance = 0;
-        float totalDistance = 0;
+        Random random = new Random(SEED);
+
+        // The first center is the heaviest point.
+        int first = 0;
+        for (int i = 1; i < n; i++) {
+            if (weight[i] > weight[first]) first = i;
+        }
+        centerLat[0] = latRad[first];
+        centerLng[0] = lngRad[first];
+        for (int i = 0; i < n; i++) {
+            nearest[i] = GalleryUtils.fastDistanceMeters(
+                    latRad[i], lngRad[i], centerLat[0], centerLng[0]);
+        }
 
         for (int k = minK; k <= maxK; k++) {
-            // step 1: (arbitrarily) pick k points as the initial centers.
-            int delta = n / k;
-            for (int i = 0; i < k; i++) {
-                Point p = points[i * delta];
-                center[i].latRad = p.latRad;
-                center[i].lngRad = p.lngRad;
+            if (k > 1) {
+                // step 1: pick the new center.
+                double total = 0;
+                for (int i = 0; i < n; i++) {
+                    total += weight[i] * nearest[i] * nearest[i];
+                }
+                // All points are at a center already.
+                if (total == 0) break;
+                double target = random.nextDouble() * total;
+                int pick = n - 1;
+                for (int i = 0; i < n; i++) {
+                    target -= weight[i] * nearest[i] * nearest[i];
+                    if (target < 0) {
+                        pick = i;
+                        break;
+                    }
+                }
+                centerLat[k - 1] = latRad[pick];
+                centerLng[k - 1] = lngRad[pick];
             }
 
+            float lastDistance = 0;
+            float totalDistance = 0;
             for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+                if (jc.isCancelled()) return null;
                 // step 2: assign each point to the nearest center.
                 for (int i = 0; i < k; i++) {
-                    groupSum[i].latRad = 0;
-                    groupSum[i].lngRad = 0;
+                    sumLat[i] = 0;
+                    sumLng[i] = 0;
                     groupCount[i] = 0;
                 }
                 totalDistance = 0;
 
+                for (int i = 0; i < k; i++) {
+                    toUnitVector(centerLat[i], centerLng[i], centerVec, i * 3);
+                }
+
                 for (int i = 0; i < n; i++) {
-                    Point p = points[i];
-                    float bestDistance = Float.MAX_VALUE;
+                    // The nearest center on the sphere is the one with the
+                    // largest dot product, which needs no trigonometry.
+                    double x = pointVec[i * 3];
+                    double y = pointVec[i * 3 + 1];
+                    double z = pointVec[i * 3 + 2];
+                    double bestDot = -Double.MAX_VALUE;
                     int bestIndex = 0;
                     for (int j = 0; j < k; j++) {
-                        float distance = (float) GalleryUtils.fastDistanceMeters(
-                                p.latRad, p.lngRad, center[j].latRad, center[j].lngRad);
-                        // We may have small non-zero distance introduced by
-                        // floating point calculation, so zero out small
-                        // distances less than 1 meter.
-                        if (distance < 1) {
-                            distance = 0;
-                        }
-                        if (distance < bestDistance) {
-                            bestDistance = distance;
+                        double dot = x * centerVec[j * 3]
+                                + y * centerVec[j * 3 + 1]
+                                + z * centerVec[j * 3 + 2];
+                        if (dot > bestDot) {
+                            bestDot = dot;
                             bestIndex = j;
                         }
                     }
+                    double bestDistance = GalleryUtils.fastDistanceMeters(
+                            latRad[i], lngRad[i],
+                            centerLat[bestIndex], centerLng[bestIndex]);
+                    // We may have small non-zero distance introduced by
+                    // floating point calculation, so zero out small
+                    // distances less than 1 meter.
+                    if (bestDistance < 1) {
+                        bestDistance = 0;
+                    }
+                    int w = weight[i];
                     grouping[i] = bestIndex;
-                    groupCount[bestIndex]++;
-                    groupSum[bestIndex].latRad += p.latRad;
-                    groupSum[bestIndex].lngRad += p.lngRad;
-                    totalDistance += bestDistance;
+                    nearest[i] = bestDistance;
+                    groupCount[bestIndex] += w;
+                    sumLat[bestIndex] += latRad[i] * w;
+                    sumLng[bestIndex] += lngRad[i] * w;
+                    totalDistance += bestDistance * w;
                 }
 
                 // step 3: calculate new centers
                 for (int i = 0; i < k; i++) {
                     if (groupCount[i] > 0) {
-                        center[i].latRad = groupSum[i].latRad / groupCount[i];
-                        center[i].lngRad = groupSum[i].lngRad / groupCount[i];
+                        centerLat[i] = sumLat[i] / groupCount[i];
+                        centerLng[i] = sumLng[i] / groupCount[i];
                     }
                 }
 
@@ -308,6 +450,9 @@ class LocationClustering extends Clustering {
                 if (score == 0) {
                     break;
                 }
+                kWithoutImprovement = 0;
+            } else if (++kWithoutImprovement >= MAX_K_WITHOUT_IMPROVEMENT) {
+                break;
             }
         }
         return bestGrouping;
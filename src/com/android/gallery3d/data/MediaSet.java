@@ -18,9 +18,11 @@ package com.android.gallery3d.data;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
 import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
 
 // MediaSet is a directory-like data structure.
 // It contains MediaItems and sub-MediaSets.
@@ -187,6 +189,73 @@ public abstract class MediaSet extends MediaObject {
     // in the same thread as getMediaItem(int, int) and getSubMediaSet(int).
     public abstract long reload();
 
+    // A change of the media items from one data version to the next: the
+    // "removed" items at "index" were replaced by "inserted" new items. The
+    // other items are unchanged, and only their indexes may have moved.
+    public static class Change {
+        public final long fromVersion;
+        public final long toVersion;
+        public final int index;
+        public final int removed;
+        public final int inserted;
+
+        public Change(long fromVersion, long toVersion, int index,
+                int removed, int inserted) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.index = index;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+    }
+
+    private static final int MAX_LOGGED_CHANGES = 16;
+    private final ArrayList<Change> mChangeLog = new ArrayList<Change>();
+
+    // Returns the changes of the media items from the given data version to
+    // the current one, in order, or null if they are not known (in which case
+    // any item may have changed).
+    public ArrayList<Change> getChangesSince(long version) {
+        synchronized (mChangeLog) {
+            ArrayList<Change> changes = new ArrayList<Change>();
+            for (Change change : mChangeLog) {
+                if (change.fromVersion == version) {
+                    changes.add(change);
+                    version = change.toVersion;
+                }
+            }
+            return version == mDataVersion ? changes : null;
+        }
+    }
+
+    // Subclasses call this in reload() when they know how the media items
+    // changed between two data versions. Versions without a logged change
+    // are reported as unknown by getChangesSince().
+    protected void logChange(long fromVersion, long toVersion, int index,
+            int removed, int inserted) {
+        synchronized (mChangeLog) {
+            int n = mChangeLog.size();
+            if (n > 0 && mChangeLog.get(n - 1).toVersion != fromVersion) {
+                mChangeLog.clear();
+            } else if (n == MAX_LOGGED_CHANGES) {
+                mChangeLog.remove(0);
+            }
+            mChangeLog.add(new Change(fromVersion, toVersion, index, removed, inserted));
+        }
+    }
+
+    // Returns the index the item at the given index had before the changes,
+    // or -1 if it was inserted by them.
+    public static int getIndexBefore(ArrayList<Change> changes, int index) {
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Change change = changes.get(i);
+            if (index < change.index) continue;
+            if (index < change.index + change.inserted) return -1;
+            index += change.removed - change.inserted;
+        }
+        return index;
+    }
+
     @Override
     public MediaDetails getDetails() {
         MediaDetails details = super.getDetails();
@@ -205,6 +274,24 @@ public abstract class MediaSet extends MediaObject {
         enumerateTotalMediaItems(consumer, 0);
     }
 
+    // Like enumerateTotalMediaItems(consumer), but stops as soon as jc is
+    // cancelled. Returns false if the enumeration was stopped.
+    public boolean enumerateTotalMediaItems(
+            final ItemConsumer consumer, final JobContext jc) {
+        try {
+            enumerateTotalMediaItems(new ItemConsumer() {
+                @Override
+                public void consume(int index, MediaItem item) {
+                    if (jc.isCancelled()) throw new CancellationException();
+                    consumer.consume(index, item);
+                }
+            }, 0);
+            return true;
+        } catch (CancellationException e) {
+            return false;
+        }
+    }
+
     public static interface ItemConsumer {
         void consume(int index, MediaItem item);
     }
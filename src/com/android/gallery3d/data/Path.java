@@ -22,39 +22,55 @@ import com.android.gallery3d.util.IdentityCache;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
+// Paths are interned: there is only one Path object for each path string
+// while it is reachable, so Paths can be compared by identity.
+//
+// The Path tree is safe for concurrent use without a global lock. Each node
+// keeps its children in a concurrent weak-valued map, which is created on
+// first use, and caches its string form. Both only ever go from null to a
+// final value, so racing threads at worst compute the same thing twice.
 public class Path {
     private static final String TAG = "Path";
-    private static Path sRoot = new Path(null, "ROOT");
+    private static volatile Path sRoot = new Path(null, "ROOT");
 
     private final Path mParent;
     private final String mSegment;
-    private WeakReference<MediaObject> mObject;
-    private IdentityCache<String, Path> mChildren;
+    private volatile WeakReference<MediaObject> mObject;
+    private volatile IdentityCache<String, Path> mChildren;
+    private volatile String mString;
+    private volatile long mFingerprint;
 
     private Path(Path parent, String segment) {
         mParent = parent;
         mSegment = segment;
     }
 
-    public Path getChild(String segment) {
-        synchronized (Path.class) {
-            if (mChildren == null) {
-                mChildren = new IdentityCache<String, Path>();
-            } else {
-                Path p = mChildren.get(segment);
-                if (p != null) return p;
+    private IdentityCache<String, Path> getChildren() {
+        IdentityCache<String, Path> children = mChildren;
+        if (children == null) {
+            synchronized (this) {
+                children = mChildren;
+                if (children == null) {
+                    children = new IdentityCache<String, Path>();
+                    mChildren = children;
+                }
             }
-
-            Path p = new Path(this, segment);
-            mChildren.put(segment, p);
-            return p;
         }
+        return children;
+    }
+
+    public Path getChild(String segment) {
+        IdentityCache<String, Path> children = getChildren();
+        Path p = children.get(segment);
+        if (p != null) return p;
+
+        p = new Path(this, segment);
+        Path current = children.putIfAbsent(segment, p);
+        return current != null ? current : p;
     }
 
     public Path getParent() {
-        synchronized (Path.class) {
-            return mParent;
-        }
+        return mParent;
     }
 
     public Path getChild(int segment) {
@@ -65,31 +81,38 @@ public class Path {
         return getChild(String.valueOf(segment));
     }
 
+    // The callers create media objects under DataManager.LOCK, so there is
+    // no race between the check and the assignment.
     public void setObject(MediaObject object) {
-        synchronized (Path.class) {
-            Utils.assertTrue(mObject == null || mObject.get() == null);
-            mObject = new WeakReference<MediaObject>(object);
-        }
+        WeakReference<MediaObject> ref = mObject;
+        Utils.assertTrue(ref == null || ref.get() == null);
+        mObject = new WeakReference<MediaObject>(object);
     }
 
     MediaObject getObject() {
-        synchronized (Path.class) {
-            return (mObject == null) ? null : mObject.get();
-        }
+        WeakReference<MediaObject> ref = mObject;
+        return (ref == null) ? null : ref.get();
     }
 
     @Override
-    // TODO: toString() should be more efficient, will fix it later
     public String toString() {
-        synchronized (Path.class) {
-            StringBuilder sb = new StringBuilder();
-            String[] segments = split();
-            for (int i = 0; i < segments.length; i++) {
-                sb.append("/");
-                sb.append(segments[i]);
-            }
-            return sb.toString();
+        String s = mString;
+        if (s == null) {
+            s = (mParent == null) ? "" : mParent.toString() + "/" + mSegment;
+            mString = s;
         }
+        return s;
+    }
+
+    // Returns a 64-bit hash of toString(). It is stable across processes, so
+    // it can be used in persistent keys. It is computed once per Path.
+    public long getFingerprint() {
+        long fingerprint = mFingerprint;
+        if (fingerprint == 0) {
+            fingerprint = Utils.crc64Long(toString());
+            mFingerprint = fingerprint;
+        }
+        return fingerprint;
     }
 
     public boolean equalsIgnoreCase (String p) {
@@ -98,29 +121,25 @@ public class Path {
     }
 
     public static Path fromString(String s) {
-        synchronized (Path.class) {
-            String[] segments = split(s);
-            Path current = sRoot;
-            for (int i = 0; i < segments.length; i++) {
-                current = current.getChild(segments[i]);
-            }
-            return current;
+        String[] segments = split(s);
+        Path current = sRoot;
+        for (int i = 0; i < segments.length; i++) {
+            current = current.getChild(segments[i]);
         }
+        return current;
     }
 
     public String[] split() {
-        synchronized (Path.class) {
-            int n = 0;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                n++;
-            }
-            String[] segments = new String[n];
-            int i = n - 1;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                segments[i--] = p.mSegment;
-            }
-            return segments;
+        int n = 0;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            n++;
+        }
+        String[] segments = new String[n];
+        int i = n - 1;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            segments[i--] = p.mSegment;
         }
+        return segments;
     }
 
     public static String[] split(String s) {
@@ -181,21 +200,19 @@ public class Path {
     }
 
     public String getPrefix() {
-        if (this == sRoot) return "";
+        if (mParent == null) return "";
         return getPrefixPath().mSegment;
     }
 
     public Path getPrefixPath() {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) {
-                throw new IllegalStateException();
-            }
-            while (current.mParent != sRoot) {
-                current = current.mParent;
-            }
-            return current;
+        Path current = this;
+        if (current.mParent == null) {
+            throw new IllegalStateException();
+        }
+        while (current.mParent.mParent != null) {
+            current = current.mParent;
         }
+        return current;
     }
 
     public String getSuffix() {
@@ -205,9 +222,7 @@ public class Path {
 
     // Below are for testing/debugging only
     static void clearAll() {
-        synchronized (Path.class) {
-            sRoot = new Path(null, "");
-        }
+        sRoot = new Path(null, "");
     }
 
     static void dumpAll() {
@@ -215,25 +230,24 @@ public class Path {
     }
 
     static void dumpAll(Path p, String prefix1, String prefix2) {
-        synchronized (Path.class) {
-            MediaObject obj = p.getObject();
-            Log.d(TAG, prefix1 + p.mSegment + ":"
-                    + (obj == null ? "null" : obj.getClass().getSimpleName()));
-            if (p.mChildren != null) {
-                ArrayList<String> childrenKeys = p.mChildren.keys();
-                int i = 0, n = childrenKeys.size();
-                for (String key : childrenKeys) {
-                    Path child = p.mChildren.get(key);
-                    if (child == null) {
-                        ++i;
-                        continue;
-                    }
-                    Log.d(TAG, prefix2 + "|");
-                    if (++i < n) {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
-                    } else {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
-                    }
+        MediaObject obj = p.getObject();
+        Log.d(TAG, prefix1 + p.mSegment + ":"
+                + (obj == null ? "null" : obj.getClass().getSimpleName()));
+        IdentityCache<String, Path> children = p.mChildren;
+        if (children != null) {
+            ArrayList<String> childrenKeys = children.keys();
+            int i = 0, n = childrenKeys.size();
+            for (String key : childrenKeys) {
+                Path child = children.get(key);
+                if (child == null) {
+                    ++i;
+                    continue;
+                }
+                Log.d(TAG, prefix2 + "|");
+                if (++i < n) {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
+                } else {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
                 }
             }
         }
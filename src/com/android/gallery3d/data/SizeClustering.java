@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.res.Resources;
 
 import com.android.gallery3d.R;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
 
@@ -51,10 +52,10 @@ public class SizeClustering extends Clustering {
 
     @SuppressWarnings("unchecked")
     @Override
-    public void run(MediaSet baseSet) {
+    public void run(JobContext jc, MediaSet baseSet) {
         @SuppressWarnings("unchecked")
         final ArrayList<Path>[] group = new ArrayList[SIZE_LEVELS.length];
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+        boolean done = baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             @Override
             public void consume(int index, MediaItem item) {
                 // Find the cluster this item belongs to.
@@ -73,7 +74,8 @@ public class SizeClustering extends Clustering {
                 }
                 list.add(item.getPath());
             }
-        });
+        }, jc);
+        if (!done) return;
 
         int count = 0;
         for (int i = 0; i < group.length; i++) {
@@ -19,6 +19,7 @@ package com.android.gallery3d.data;
 import android.content.Context;
 
 import com.android.gallery3d.R;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
 import java.util.Map;
@@ -37,12 +38,12 @@ public class TagClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
+    public void run(JobContext jc, MediaSet baseSet) {
         final TreeMap<String, ArrayList<Path>> map =
                 new TreeMap<String, ArrayList<Path>>();
         final ArrayList<Path> untagged = new ArrayList<Path>();
 
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+        boolean done = baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             @Override
             public void consume(int index, MediaItem item) {
                 Path path = item.getPath();
@@ -62,7 +63,8 @@ public class TagClustering extends Clustering {
                     list.add(path);
                 }
             }
-        });
+        }, jc);
+        if (!done) return;
 
         int m = map.size();
         mClusters = new ArrayList<ArrayList<Path>>();
@@ -20,15 +20,23 @@ import android.content.Context;
 import android.text.format.DateFormat;
 import android.text.format.DateUtils;
 
+import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.util.CacheManager;
 import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Locale;
 
 public class TimeClustering extends Clustering {
-    @SuppressWarnings("unused")
     private static final String TAG = "TimeClustering";
 
     // If 2 items are greater than 25 miles apart, they will be in different
@@ -67,6 +75,19 @@ public class TimeClustering extends Clustering {
     // cluster.
     private static final int PARTITION_CLUSTER_SPLIT_TIME_FACTOR = 2;
 
+    // The clusters of each base set are saved in a BlobCache, keyed by the
+    // path of the set, so that they do not have to be computed again the
+    // next time the set is clustered. See restore() and run().
+    private static final String CLUSTER_CACHE_FILE = "time_clusters";
+    private static final int CLUSTER_CACHE_MAX_ENTRIES = 16;
+    private static final int CLUSTER_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int CLUSTER_CACHE_VERSION = 1;
+
+    // The cluster parameters depend on the number of items and their time
+    // range, so the clusters are computed from scratch once the set has
+    // grown by more than this since the last full computation.
+    private static final int MAX_GROWTH_PERCENT_BEFORE_FULL_RUN = 25;
+
     private Context mContext;
     private ArrayList<Cluster> mClusters;
     private String[] mNames;
@@ -79,6 +100,15 @@ public class TimeClustering extends Clustering {
     private int mMinClusterSize = (MIN_MIN_CLUSTER_SIZE + MAX_MIN_CLUSTER_SIZE) / 2;
     private int mMaxClusterSize = (MIN_MAX_CLUSTER_SIZE + MAX_MAX_CLUSTER_SIZE) / 2;
 
+    // What the clusters were computed from: the number of items, a hash of
+    // the items (see getSignature()) and the newest date among them.
+    private int mItemCount;
+    private long mSignature;
+    private long mNewestDate;
+    // The number of items in the last full computation.
+    private int mFullRunItemCount;
+    // True if the clusters differ from the saved ones.
+    private boolean mChanged;
 
     private static final Comparator<SmallItem> sDateComparator =
             new DateComparator();
@@ -97,11 +127,11 @@ public class TimeClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
+    public void run(JobContext jc, MediaSet baseSet) {
         final double[] latLng = new double[2];
 
         final ArrayList<SmallItem> items = new ArrayList<>();
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+        boolean done = baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             @Override
             public void consume(int index, MediaItem item) {
                 SmallItem s = new SmallItem();
@@ -112,15 +142,249 @@ public class TimeClustering extends Clustering {
                 s.lng = latLng[1];
                 items.add(s);
             }
-        });
+        }, jc);
+        if (!done) return;
+
+        // Use the saved clusters if they can be brought up to date cheaply,
+        // otherwise compute them from scratch.
+        if (!restore(baseSet) || !update(jc, items)) {
+            if (jc.isCancelled()) return;
+            computeAll(jc, items);
+        }
+        if (jc.isCancelled()) return;
+
+        if (mChanged) save(baseSet);
+    }
+
+    // Restores the clusters saved by the last run() on baseSet, without
+    // looking at its items. Returns false if there are none.
+    public boolean restore(MediaSet baseSet) {
+        BlobCache cache = getClusterCache();
+        if (cache == null) return false;
+        String key = baseSet.getPath().toString();
+        try {
+            byte[] data = cache.lookup(Utils.crc64Long(key));
+            if (data == null) return false;
+            DataInputStream dis = new DataInputStream(
+                    new ByteArrayInputStream(data));
+            if (!key.equals(dis.readUTF())) return false;
+            // The cluster names depend on the locale.
+            if (!Locale.getDefault().toString().equals(dis.readUTF())) {
+                return false;
+            }
+            readClusters(dis);
+            return true;
+        } catch (Throwable t) {
+            Log.w(TAG, "cannot restore clusters of " + key, t);
+            mClusters = new ArrayList<Cluster>();
+            mNames = null;
+            return false;
+        }
+    }
+
+    private void save(MediaSet baseSet) {
+        BlobCache cache = getClusterCache();
+        if (cache == null) return;
+        String key = baseSet.getPath().toString();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeUTF(key);
+            dos.writeUTF(Locale.getDefault().toString());
+            writeClusters(dos);
+            dos.flush();
+            cache.insert(Utils.crc64Long(key), bos.toByteArray());
+            mChanged = false;
+        } catch (Throwable t) {
+            Log.w(TAG, "cannot save clusters of " + key, t);
+        }
+    }
+
+    private BlobCache getClusterCache() {
+        return CacheManager.getCache(mContext, CLUSTER_CACHE_FILE,
+                CLUSTER_CACHE_MAX_ENTRIES, CLUSTER_CACHE_MAX_BYTES,
+                CLUSTER_CACHE_VERSION);
+    }
+
+    private void writeClusters(DataOutputStream dos) throws IOException {
+        dos.writeInt(mItemCount);
+        dos.writeLong(mSignature);
+        dos.writeLong(mNewestDate);
+        dos.writeInt(mFullRunItemCount);
+        dos.writeLong(mClusterSplitTime);
+        dos.writeLong(mLargeClusterSplitTime);
+        dos.writeInt(mMinClusterSize);
+        dos.writeInt(mMaxClusterSize);
+
+        int m = mClusters.size();
+        dos.writeInt(m);
+        String prevPath = "";
+        for (int i = 0; i < m; i++) {
+            Cluster cluster = mClusters.get(i);
+            dos.writeBoolean(cluster.mGeographicallySeparatedFromPrevCluster);
+            dos.writeUTF(mNames[i]);
+            ArrayList<SmallItem> items = cluster.getItems();
+            int n = items.size();
+            dos.writeInt(n);
+            for (int j = 0; j < n; j++) {
+                SmallItem item = items.get(j);
+                // Neighboring paths mostly share a long prefix, so only the
+                // rest of each path is written.
+                String path = item.path.toString();
+                int common = commonPrefixLength(prevPath, path);
+                dos.writeShort(common);
+                dos.writeUTF(path.substring(common));
+                prevPath = path;
+                dos.writeLong(item.dateInMs);
+                boolean hasLocation = item.lat != 0 || item.lng != 0;
+                dos.writeBoolean(hasLocation);
+                if (hasLocation) {
+                    dos.writeDouble(item.lat);
+                    dos.writeDouble(item.lng);
+                }
+            }
+        }
+    }
+
+    private void readClusters(DataInputStream dis) throws IOException {
+        mItemCount = dis.readInt();
+        mSignature = dis.readLong();
+        mNewestDate = dis.readLong();
+        mFullRunItemCount = dis.readInt();
+        mClusterSplitTime = dis.readLong();
+        mLargeClusterSplitTime = dis.readLong();
+        mMinClusterSize = dis.readInt();
+        mMaxClusterSize = dis.readInt();
+
+        int m = dis.readInt();
+        ArrayList<Cluster> clusters = new ArrayList<Cluster>(m);
+        String[] names = new String[m];
+        String prevPath = "";
+        for (int i = 0; i < m; i++) {
+            Cluster cluster = new Cluster();
+            cluster.mGeographicallySeparatedFromPrevCluster = dis.readBoolean();
+            names[i] = dis.readUTF();
+            int n = dis.readInt();
+            for (int j = 0; j < n; j++) {
+                SmallItem item = new SmallItem();
+                int common = dis.readShort();
+                String path = prevPath.substring(0, common) + dis.readUTF();
+                prevPath = path;
+                item.path = Path.fromString(path);
+                item.dateInMs = dis.readLong();
+                if (dis.readBoolean()) {
+                    item.lat = dis.readDouble();
+                    item.lng = dis.readDouble();
+                }
+                cluster.addItem(item);
+            }
+            clusters.add(cluster);
+        }
+        mClusters = clusters;
+        mNames = names;
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int n = Math.min(Math.min(a.length(), b.length()), Short.MAX_VALUE);
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+
+    // A hash of an item, summed over the items to get a hash of the set that
+    // does not depend on the enumeration order.
+    private static long getSignature(SmallItem item) {
+        long h = item.path.getFingerprint();
+        h = h * 31 + item.dateInMs;
+        h = h * 31 + Double.doubleToLongBits(item.lat);
+        h = h * 31 + Double.doubleToLongBits(item.lng);
+        return Utils.mix64(h);
+    }
+
+    // Brings the restored clusters up to date with the items, if the only
+    // change is items newer than all the restored ones. The new items are
+    // clustered together with the items of the newest cluster, whose
+    // boundary they may move; the older clusters are kept as they are.
+    // Returns false if the clusters must be computed from scratch.
+    private boolean update(JobContext jc, ArrayList<SmallItem> items) {
+        ArrayList<SmallItem> newItems = new ArrayList<SmallItem>();
+        int oldCount = 0;
+        long oldSignature = 0;
+        long newSignature = 0;
+        long newestDate = mNewestDate;
+        for (int i = 0, n = items.size(); i < n; i++) {
+            SmallItem item = items.get(i);
+            if (item.dateInMs > mNewestDate) {
+                newItems.add(item);
+                newSignature += getSignature(item);
+                newestDate = Math.max(newestDate, item.dateInMs);
+            } else {
+                ++oldCount;
+                oldSignature += getSignature(item);
+            }
+        }
+        if (oldCount != mItemCount || oldSignature != mSignature) return false;
+        if (newItems.isEmpty()) return true;
+
+        int count = oldCount + newItems.size();
+        if ((long) count * 100 > (long) mFullRunItemCount
+                * (100 + MAX_GROWTH_PERCENT_BEFORE_FULL_RUN)) {
+            return false;
+        }
+
+        Collections.sort(newItems, sDateComparator);
+        if (jc.isCancelled()) return false;
+
+        ArrayList<Cluster> oldClusters = mClusters;
+        String[] oldNames = mNames;
+        int oldClusterCount = oldClusters.size();
+        mClusters = new ArrayList<Cluster>();
+        mCurrCluster = new Cluster();
+        for (int i = 0, n = newItems.size(); i < n; i++) {
+            compute(newItems.get(i));
+        }
+        if (oldClusterCount > 0) {
+            ArrayList<SmallItem> newestItems = oldClusters.get(0).getItems();
+            for (int i = 0, n = newestItems.size(); i < n; i++) {
+                compute(newestItems.get(i));
+            }
+        }
+        compute(null);
+
+        int headCount = mClusters.size();
+        int m = headCount + Math.max(0, oldClusterCount - 1);
+        mNames = new String[m];
+        for (int i = 0; i < headCount; i++) {
+            mNames[i] = mClusters.get(i).generateCaption(mContext);
+        }
+        for (int i = 1; i < oldClusterCount; i++) {
+            mClusters.add(oldClusters.get(i));
+            mNames[headCount + i - 1] = oldNames[i];
+        }
+
+        mItemCount = count;
+        mSignature = oldSignature + newSignature;
+        mNewestDate = newestDate;
+        mChanged = true;
+        return true;
+    }
+
+    private void computeAll(JobContext jc, ArrayList<SmallItem> items) {
+        mClusters = new ArrayList<Cluster>();
+        mCurrCluster = new Cluster();
+        mNames = null;
 
         Collections.sort(items, sDateComparator);
+        if (jc.isCancelled()) return;
 
         int n = items.size();
         long minTime = 0;
         long maxTime = 0;
+        long signature = 0;
         for (int i = 0; i < n; i++) {
-            long t = items.get(i).dateInMs;
+            SmallItem item = items.get(i);
+            signature += getSignature(item);
+            long t = item.dateInMs;
             if (t == 0) continue;
             if (minTime == 0) {
                 minTime = maxTime = t;
@@ -133,6 +397,7 @@ public class TimeClustering extends Clustering {
         setTimeRange(maxTime - minTime, n);
 
         for (int i = 0; i < n; i++) {
+            if ((i & 0xff) == 0 && jc.isCancelled()) return;
             compute(items.get(i));
         }
 
@@ -143,6 +408,12 @@ public class TimeClustering extends Clustering {
         for (int i = 0; i < m; i++) {
             mNames[i] = mClusters.get(i).generateCaption(mContext);
         }
+
+        mItemCount = n;
+        mSignature = signature;
+        mNewestDate = maxTime;
+        mFullRunItemCount = n;
+        mChanged = true;
     }
 
     @Override
@@ -21,16 +21,49 @@ import android.graphics.Canvas;
 import android.util.Log;
 import com.android.gallery3d.filtershow.pipeline.Buffer;
 import com.android.gallery3d.filtershow.pipeline.CacheProcessing;
+import com.android.gallery3d.util.Metrics;
 
-import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * Pool of the bitmaps used by the filtershow pipelines.
+ *
+ * The bitmaps given back with cache() are kept up to a budget in bytes, in
+ * buckets by size class: class c holds the bitmaps of more than 2^(c-1) and
+ * up to 2^c bytes. A request is served from its own class if one of the
+ * first bitmaps there is large enough, or else from the next class, and the
+ * bitmap is reconfigured to the requested size. Both take constant time.
+ * When the pool goes over its budget, the bitmaps given back first are
+ * dropped first.
+ *
+ * The bitmaps given out are accounted by type, see getTrackingName(). The
+ * reuse rate and allocations are reported as filtershow.bitmap_cache.*.
+ */
 public class BitmapCache {
     private static final String LOGTAG = "BitmapCache";
-    private HashMap<Long, ArrayList<WeakReference<Bitmap>>>
-            mBitmapCache = new HashMap<Long, ArrayList<WeakReference<Bitmap>>>();
-    private final int mMaxItemsPerKey = 4;
+
+    // Bitmaps looked at in the class of a request before trying the next one
+    private static final int MAX_PROBES = 4;
+    private static final int CLASS_COUNT = 64;
+
+    private static final Metrics.HitRatio sReuse =
+            Metrics.hitRatio("filtershow.bitmap_cache.reuse");
+    private static final Metrics.Counter sAllocatedBytes =
+            Metrics.counter("filtershow.bitmap_cache.allocated_bytes");
+    private static final Metrics.Counter sEvictions =
+            Metrics.counter("filtershow.bitmap_cache.evictions");
+
+    // All the pooled bitmaps with their size class, oldest first. Bitmap
+    // doesn't override equals() and hashCode(), the maps are by identity.
+    private final LinkedHashMap<Bitmap, Integer> mPool = new LinkedHashMap<Bitmap, Integer>();
+    @SuppressWarnings("unchecked")
+    private final LinkedHashSet<Bitmap>[] mClasses = new LinkedHashSet[CLASS_COUNT];
+    private final long mMaxBytes = Runtime.getRuntime().maxMemory() / 8;
+    private long mBytes = 0;
 
     private static final boolean DEBUG = false;
     private CacheProcessing mCacheProcessing;
@@ -49,39 +82,12 @@ public class BitmapCache {
     public final static int PREVIEW_CACHE_NO_ROOT = 12;
     public static final int PREVIEW_CACHE_NO_APPLY = 13;
     public final static int TRACKING_COUNT = 14;
-    private int[] mTracking = new int[TRACKING_COUNT];
-
-    class BitmapTracking {
-        Bitmap bitmap;
-        int type;
-    }
 
-    private ArrayList<BitmapTracking> mBitmapTracking = new ArrayList<BitmapTracking>();
-
-    private void track(Bitmap bitmap, int type) {
-        for (int i = 0; i < mBitmapTracking.size(); i++) {
-            BitmapTracking tracking = mBitmapTracking.get(i);
-            if (tracking.bitmap == bitmap) {
-                Log.e(LOGTAG, "giving a bitmap already given!!!");
-            }
-        }
-        BitmapTracking tracking = new BitmapTracking();
-        tracking.bitmap = bitmap;
-        tracking.type = type;
-        mBitmapTracking.add(tracking);
-        mTracking[tracking.type] ++;
-    }
-
-    private void untrack(Bitmap bitmap) {
-        for (int i = 0; i < mBitmapTracking.size(); i++) {
-            BitmapTracking tracking = mBitmapTracking.get(i);
-            if (tracking.bitmap == bitmap) {
-                mTracking[tracking.type] --;
-                mBitmapTracking.remove(i);
-                return;
-            }
-        }
-    }
+    // Type each bitmap given out was asked for, until it is given back
+    private final WeakHashMap<Bitmap, Integer> mGivenOut = new WeakHashMap<Bitmap, Integer>();
+    private final long[] mRequests = new long[TRACKING_COUNT];
+    private final long[] mReuses = new long[TRACKING_COUNT];
+    private final long[] mAllocatedBytes = new long[TRACKING_COUNT];
 
     public String getTrackingName(int i) {
         switch (i) {
@@ -102,14 +108,23 @@ public class BitmapCache {
         return "UNKNOWN";
     }
 
-    public void showBitmapCounts() {
+    public synchronized void showBitmapCounts() {
         if (!DEBUG) {
             return;
         }
-        Log.v(LOGTAG, "\n--- showBitmap --- ");
+        // Bitmaps given out and collected without coming back are not
+        // in mGivenOut anymore, count the ones still there.
+        int[] givenOut = new int[TRACKING_COUNT];
+        for (Integer type : mGivenOut.values()) {
+            givenOut[type]++;
+        }
+        Log.v(LOGTAG, "\n--- showBitmap --- " + mPool.size() + " pooled bitmaps in "
+                + mBytes + " bytes");
         for (int i = 0; i < TRACKING_COUNT; i++) {
-            if (mTracking[i] != 0) {
-                Log.v(LOGTAG, getTrackingName(i) + " => " + mTracking[i]);
+            if (mRequests[i] != 0) {
+                Log.v(LOGTAG, getTrackingName(i) + " => " + givenOut[i] + " out, "
+                        + mReuses[i] + "/" + mRequests[i] + " reused, "
+                        + mAllocatedBytes[i] + " bytes allocated");
             }
         }
     }
@@ -134,68 +149,78 @@ public class BitmapCache {
             Log.e(LOGTAG, "Trying to cache a bitmap still used in the pipeline");
             return false;
         }
-        if (DEBUG) {
-            untrack(bitmap);
-        }
-        if (!bitmap.isMutable()) {
+        mGivenOut.remove(bitmap);
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
             Log.e(LOGTAG, "Trying to cache a non mutable bitmap");
             return true;
         }
-        Long key = calcKey(bitmap.getWidth(), bitmap.getHeight());
-        ArrayList<WeakReference<Bitmap>> list = mBitmapCache.get(key);
-        if (list == null) {
-            list = new ArrayList<WeakReference<Bitmap>>();
-            mBitmapCache.put(key, list);
-        }
-        int i = 0;
-        while (i < list.size()) {
-            if (list.get(i).get() == null) {
-                list.remove(i);
-            } else {
-                i++;
-            }
+        if (mPool.containsKey(bitmap)) {
+            return true; // bitmap already in the cache
         }
-        for (i = 0; i < list.size(); i++) {
-            if (list.get(i).get() == null) {
-                list.remove(i);
-            }
+        int bytes = bitmap.getAllocationByteCount();
+        if (bytes > mMaxBytes) {
+            return true;
         }
-        if (list.size() < mMaxItemsPerKey) {
-            for (i = 0; i < list.size(); i++) {
-                WeakReference<Bitmap> ref = list.get(i);
-                if (ref.get() == bitmap) {
-                    return true; // bitmap already in the cache
-                }
-            }
-            list.add(new WeakReference<Bitmap>(bitmap));
+        int sizeClass = getSizeClass(bytes);
+        mPool.put(bitmap, sizeClass);
+        if (mClasses[sizeClass] == null) {
+            mClasses[sizeClass] = new LinkedHashSet<Bitmap>();
+        }
+        mClasses[sizeClass].add(bitmap);
+        mBytes += bytes;
+
+        Iterator<Map.Entry<Bitmap, Integer>> iterator = mPool.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<Bitmap, Integer> entry = iterator.next();
+            Bitmap evicted = entry.getKey();
+            mClasses[entry.getValue()].remove(evicted);
+            mBytes -= evicted.getAllocationByteCount();
+            iterator.remove();
+            sEvictions.increment();
         }
         return true;
     }
 
     public synchronized Bitmap getBitmap(int w, int h, int type) {
-        Long key = calcKey(w, h);
-        WeakReference<Bitmap> ref = null;
-        ArrayList<WeakReference<Bitmap>> list = mBitmapCache.get(key);
-        if (list != null && list.size() > 0) {
-            ref = list.remove(0);
-            if (list.size() == 0) {
-                mBitmapCache.remove(key);
+        long bytes = (long) w * h * 4;
+        Bitmap bitmap = null;
+        if (bytes <= mMaxBytes) {
+            int sizeClass = getSizeClass(bytes);
+            bitmap = take(sizeClass, bytes, MAX_PROBES);
+            if (bitmap == null && sizeClass + 1 < CLASS_COUNT) {
+                // Anything in the next class is large enough
+                bitmap = take(sizeClass + 1, bytes, 1);
             }
         }
-        Bitmap bitmap = null;
-        if (ref != null) {
-            bitmap = ref.get();
+        if (bitmap != null && (bitmap.getWidth() != w || bitmap.getHeight() != h
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888)) {
+            try {
+                bitmap.reconfigure(w, h, Bitmap.Config.ARGB_8888);
+            } catch (RuntimeException e) {
+                Log.w(LOGTAG, "could not reconfigure a bitmap to " + w + "x" + h, e);
+                bitmap = null;
+            }
         }
-        if (bitmap == null
-                || bitmap.getWidth() != w
-                || bitmap.getHeight() != h) {
+        boolean reused = bitmap != null;
+        if (bitmap == null) {
             bitmap = Bitmap.createBitmap(
                     w, h, Bitmap.Config.ARGB_8888);
+            sAllocatedBytes.add(bytes);
+            if (type >= 0 && type < TRACKING_COUNT) {
+                mAllocatedBytes[type] += bytes;
+            }
             showBitmapCounts();
         }
+        sReuse.record(reused);
+        if (type >= 0 && type < TRACKING_COUNT) {
+            mRequests[type]++;
+            if (reused) {
+                mReuses[type]++;
+            }
+        }
+        mGivenOut.put(bitmap, type);
 
         if (DEBUG) {
-            track(bitmap, type);
             if (mCacheProcessing != null && mCacheProcessing.contains(bitmap)) {
                 Log.e(LOGTAG, "Trying to give a bitmap used in the pipeline");
             }
@@ -203,6 +228,26 @@ public class BitmapCache {
         return bitmap;
     }
 
+    // Takes out of the pool one of the first probes bitmaps of sizeClass
+    // that can hold bytes, if any.
+    private Bitmap take(int sizeClass, long bytes, int probes) {
+        LinkedHashSet<Bitmap> bitmaps = mClasses[sizeClass];
+        if (bitmaps == null) {
+            return null;
+        }
+        Iterator<Bitmap> iterator = bitmaps.iterator();
+        for (int i = 0; i < probes && iterator.hasNext(); i++) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getAllocationByteCount() >= bytes) {
+                iterator.remove();
+                mPool.remove(bitmap);
+                mBytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
     public synchronized Bitmap getBitmapCopy(Bitmap source, int type) {
         Bitmap bitmap = getBitmap(source.getWidth(), source.getHeight(), type);
         Canvas canvas = new Canvas(bitmap);
@@ -210,7 +255,11 @@ public class BitmapCache {
         return bitmap;
     }
 
-    private Long calcKey(long w, long h) {
-        return (w << 32) | h;
+    // Smallest c such that bytes <= 2^c
+    private static int getSizeClass(long bytes) {
+        if (bytes <= 1) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(bytes - 1);
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.filtershow.filters;
+
+import android.graphics.Bitmap;
+
+/**
+ * 3D color lookup tables of SIZE x SIZE x SIZE entries, stored in bitmaps
+ * laid out like the looks of ImageFilterFx: the entry for (r, g, b) is the
+ * pixel at (r + b * SIZE, g). They are applied with trilinear interpolation.
+ *
+ * To bake a chain of color transforms (see ImageFilter.isColorTransform())
+ * into a table, apply the filters to the bitmap returned by createIdentity().
+ */
+public class ColorLut {
+    public static final int SIZE = 33;
+
+    // Entry i is for the color component i * STEP.
+    private static final int STEP = 256 / (SIZE - 1);
+
+    public static Bitmap createIdentity() {
+        int[] colors = new int[SIZE * SIZE * SIZE];
+        int i = 0;
+        for (int g = 0; g < SIZE; g++) {
+            for (int b = 0; b < SIZE; b++) {
+                for (int r = 0; r < SIZE; r++) {
+                    colors[i++] = 0xFF000000 | (value(r) << 16) | (value(g) << 8) | value(b);
+                }
+            }
+        }
+        Bitmap lut = Bitmap.createBitmap(SIZE * SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        lut.setPixels(colors, 0, SIZE * SIZE, 0, 0, SIZE * SIZE, SIZE);
+        return lut;
+    }
+
+    // The last entry would be 256, which the filters cannot take; it is for
+    // 255 instead, and the last interval is a bit shorter.
+    private static int value(int entry) {
+        return Math.min(255, entry * STEP);
+    }
+
+    public static void apply(Bitmap lut, Bitmap bitmap) {
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        nativeApplyLut(bitmap, w, h, lut, SIZE);
+    }
+
+    native private static void nativeApplyLut(Bitmap bitmap, int w, int h, Bitmap lut,
+            int size);
+}
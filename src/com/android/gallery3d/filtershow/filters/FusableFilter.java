@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.filtershow.filters;
+
+import android.graphics.Bitmap;
+
+/**
+ * A filter whose output pixel only depends on the input pixel at the same
+ * place, so it can run in a {@link FusedFilterKernel} with other such filters.
+ */
+public interface FusableFilter {
+    /**
+     * Adds what apply() would do with the current representation to the
+     * kernel. The bitmap is the one the kernel will be applied to; a filter
+     * that needs to look at its input first has to apply the kernel.
+     */
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap);
+}
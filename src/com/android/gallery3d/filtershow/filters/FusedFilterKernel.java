@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.filtershow.filters;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * A chain of point-wise filters run in a single pass over a bitmap.
+ *
+ * Each {@link FusableFilter} adds one or more stages. The image is processed
+ * in tiles small enough to stay in the CPU cache, and every stage is run on
+ * a tile before moving to the next one, so the bitmap is read and written
+ * once whatever the number of filters. Consecutive lookup tables are merged
+ * into one when they are added.
+ *
+ * The stages compute exactly what the native code of the individual filters
+ * does, in the same order, so the result is the same as applying them one
+ * after the other. {@link #applyReference} is a plain Java implementation of
+ * the same kernel, to check the native one against.
+ */
+public class FusedFilterKernel {
+    // Per channel lookup tables: 3 x 256 entries in mInts.
+    private static final int STAGE_LUT = 0;
+    // A 4x4 color matrix, laid out as in ColorSpaceMatrix: 16 entries in
+    // mFloats.
+    private static final int STAGE_MATRIX = 1;
+    // A saturation matrix chosen by r - max(g, b): SATURATION_MAP_SIZE x 6
+    // entries in mFloats, {Rt + S, Gt + S, Bt + S, Rt, Gt, Bt} for each.
+    private static final int STAGE_SATURATION_MAP = 2;
+    // A new HSV value (0..4080) for each max(r, g, b): 256 entries in mInts.
+    private static final int STAGE_VALUE_MAP = 3;
+
+    public static final int SATURATION_MAP_SIZE = 511;
+    public static final int MAX_VALUE = 4080;
+
+    // Number of pixels processed at a time by the Java implementation; the
+    // native one uses the same.
+    private static final int TILE_PIXELS = 4096;
+
+    // (type, offset) pairs.
+    private int[] mStages = new int[8];
+    private int mStageCount = 0;
+    private int[] mInts = new int[3 * 256];
+    private int mIntCount = 0;
+    private float[] mFloats = new float[16];
+    private int mFloatCount = 0;
+
+    public boolean isEmpty() {
+        return mStageCount == 0;
+    }
+
+    public int getStageCount() {
+        return mStageCount;
+    }
+
+    public void reset() {
+        mStageCount = 0;
+        mIntCount = 0;
+        mFloatCount = 0;
+    }
+
+    /**
+     * Adds per channel lookup tables of 256 entries. A null table leaves the
+     * channel unchanged. Only the low 8 bits of an entry are used.
+     */
+    public void addLut(int[] red, int[] green, int[] blue) {
+        if (red == null && green == null && blue == null) {
+            return;
+        }
+        int[][] luts = { red, green, blue };
+        if (mStageCount > 0 && mStages[2 * (mStageCount - 1)] == STAGE_LUT) {
+            // Merge with the previous tables.
+            int offset = mStages[2 * (mStageCount - 1) + 1];
+            for (int c = 0; c < 3; c++) {
+                if (luts[c] == null) {
+                    continue;
+                }
+                int base = offset + 256 * c;
+                for (int i = 0; i < 256; i++) {
+                    mInts[base + i] = luts[c][mInts[base + i]] & 0xFF;
+                }
+            }
+            return;
+        }
+        int offset = allocInts(3 * 256);
+        for (int c = 0; c < 3; c++) {
+            int base = offset + 256 * c;
+            for (int i = 0; i < 256; i++) {
+                mInts[base + i] = luts[c] == null ? i : luts[c][i] & 0xFF;
+            }
+        }
+        addStage(STAGE_LUT, offset);
+    }
+
+    /**
+     * Adds a color matrix: r' = clamp((int) (r * m[0] + g * m[4] + b * m[8]
+     * + m[12])) and likewise for g' and b' with the next columns.
+     */
+    public void addColorMatrix(float[] matrix) {
+        int offset = allocFloats(16);
+        System.arraycopy(matrix, 0, mFloats, offset, 16);
+        addStage(STAGE_MATRIX, offset);
+    }
+
+    /**
+     * Adds a saturation matrix which depends on the pixel. Entry
+     * r - max(g, b) + 255 of the map holds {Rt + S, Gt + S, Bt + S, Rt, Gt,
+     * Bt} and r' = clamp(r * (Rt + S) + g * Gt + b * Bt), etc.
+     */
+    public void addSaturationMap(float[] map) {
+        int offset = allocFloats(SATURATION_MAP_SIZE * 6);
+        System.arraycopy(map, 0, mFloats, offset, SATURATION_MAP_SIZE * 6);
+        addStage(STAGE_SATURATION_MAP, offset);
+    }
+
+    /**
+     * Adds a change of the value in the HSV space of hsv.c. The map gives the
+     * new value, between 0 and MAX_VALUE, for each max(r, g, b).
+     */
+    public void addValueMap(int[] map) {
+        int offset = allocInts(256);
+        System.arraycopy(map, 0, mInts, offset, 256);
+        addStage(STAGE_VALUE_MAP, offset);
+    }
+
+    public void apply(Bitmap bitmap) {
+        if (mStageCount == 0) {
+            return;
+        }
+        nativeApplyFilter(bitmap, bitmap.getWidth(), bitmap.getHeight(),
+                Arrays.copyOf(mStages, 2 * mStageCount), mInts, mFloats);
+    }
+
+    public void applyReference(Bitmap bitmap) {
+        if (mStageCount == 0) {
+            return;
+        }
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        int rows = Math.max(1, TILE_PIXELS / w);
+        int[] pixels = new int[w * rows];
+        for (int y = 0; y < h; y += rows) {
+            int n = Math.min(rows, h - y);
+            bitmap.getPixels(pixels, 0, w, 0, y, w, n);
+            for (int i = 0; i < mStageCount; i++) {
+                applyStage(mStages[2 * i], mStages[2 * i + 1], pixels, w * n);
+            }
+            bitmap.setPixels(pixels, 0, w, 0, y, w, n);
+        }
+    }
+
+    native private void nativeApplyFilter(Bitmap bitmap, int w, int h,
+            int[] stages, int[] ints, float[] floats);
+
+    private void addStage(int type, int offset) {
+        if (2 * mStageCount == mStages.length) {
+            mStages = Arrays.copyOf(mStages, 2 * mStages.length);
+        }
+        mStages[2 * mStageCount] = type;
+        mStages[2 * mStageCount + 1] = offset;
+        mStageCount++;
+    }
+
+    private int allocInts(int count) {
+        if (mIntCount + count > mInts.length) {
+            mInts = Arrays.copyOf(mInts, Math.max(2 * mInts.length, mIntCount + count));
+        }
+        int offset = mIntCount;
+        mIntCount += count;
+        return offset;
+    }
+
+    private int allocFloats(int count) {
+        if (mFloatCount + count > mFloats.length) {
+            mFloats = Arrays.copyOf(mFloats,
+                    Math.max(2 * mFloats.length, mFloatCount + count));
+        }
+        int offset = mFloatCount;
+        mFloatCount += count;
+        return offset;
+    }
+
+    private void applyStage(int type, int offset, int[] pixels, int count) {
+        int[] ints = mInts;
+        float[] m = mFloats;
+        int[] hsv = new int[3];
+        for (int i = 0; i < count; i++) {
+            int p = pixels[i];
+            int r = (p >> 16) & 0xFF;
+            int g = (p >> 8) & 0xFF;
+            int b = p & 0xFF;
+            switch (type) {
+                case STAGE_LUT:
+                    r = ints[offset + r];
+                    g = ints[offset + 256 + g];
+                    b = ints[offset + 512 + b];
+                    break;
+                case STAGE_MATRIX: {
+                    float rf = r * m[offset] + g * m[offset + 4] + b * m[offset + 8]
+                            + m[offset + 12];
+                    float gf = r * m[offset + 1] + g * m[offset + 5] + b * m[offset + 9]
+                            + m[offset + 13];
+                    float bf = r * m[offset + 2] + g * m[offset + 6] + b * m[offset + 10]
+                            + m[offset + 14];
+                    r = clamp((int) rf);
+                    g = clamp((int) gf);
+                    b = clamp((int) bf);
+                    break;
+                }
+                case STAGE_SATURATION_MAP: {
+                    int t = offset + 6 * (r - Math.max(g, b) + 255);
+                    float rf = r * m[t] + g * m[t + 4] + b * m[t + 5];
+                    float gf = r * m[t + 3] + g * m[t + 1] + b * m[t + 5];
+                    float bf = r * m[t + 3] + g * m[t + 4] + b * m[t + 2];
+                    r = clamp((int) rf);
+                    g = clamp((int) gf);
+                    b = clamp((int) bf);
+                    break;
+                }
+                case STAGE_VALUE_MAP: {
+                    rgb2hsv(r, g, b, hsv);
+                    hsv[0] = ints[offset + (hsv[0] >> 4)];
+                    int rgb = hsv2rgb(hsv);
+                    r = (rgb >> 16) & 0xFF;
+                    g = (rgb >> 8) & 0xFF;
+                    b = rgb & 0xFF;
+                    break;
+                }
+            }
+            pixels[i] = (p & 0xFF000000) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    public static int clamp(int c) {
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+
+    // The conversions below are the ones of jni/filters/hsv.c, which work on
+    // 4 bit fixed point values: v and s go from 0 to MAX_VALUE, h from 0 to
+    // 4095.
+    private static final int ABITS = 4;
+    private static final int HSCALE = 256;
+
+    static void rgb2hsv(int ri, int gi, int bi, int[] hsv) {
+        int k1 = 255 << ABITS;
+        int k2 = HSCALE << ABITS;
+        int iMax;
+        int iMin;
+        if (ri > gi) {
+            iMax = Math.max(ri, bi);
+            iMin = Math.min(gi, bi);
+        } else {
+            iMax = Math.max(gi, bi);
+            iMin = Math.min(ri, bi);
+        }
+        int chroma = iMax - iMin;
+        int rv = iMax << ABITS;
+        int rs = rv == 0 ? 0 : (k1 * chroma) / iMax;
+        int rh;
+        if (rs == 0) {
+            rh = 0;
+        } else if (ri == iMax) {
+            rh = (k2 * (6 * chroma + gi - bi)) / (6 * chroma);
+            if (rh >= k2) rh -= k2;
+        } else if (gi == iMax) {
+            rh = (k2 * (2 * chroma + bi - ri)) / (6 * chroma);
+        } else {
+            rh = (k2 * (4 * chroma + ri - gi)) / (6 * chroma);
+        }
+        hsv[0] = rv;
+        hsv[1] = rs;
+        hsv[2] = rh;
+    }
+
+    // Returns the color as 0x00RRGGBB.
+    static int hsv2rgb(int[] hsv) {
+        int k1 = 255 << ABITS;
+        int k2 = HSCALE << ABITS;
+        int k3 = 1 << (ABITS - 1);
+        int cv = hsv[0];
+        int cs = hsv[1];
+        int ch = hsv[2];
+        int rr = 0;
+        int rg = 0;
+        int rb = 0;
+        int m = (cv * (k1 - cs)) / k1;
+        if (cs == 0) {
+            rr = rg = rb = cv >> ABITS;
+        } else {
+            int h = (6 * ch) / k2;
+            int x = ((cv * cs) / k2) * (k2 - Math.abs(6 * ch - 2 * (h >> 1) * k2 - k2));
+            x = ((x + cv * (k1 - cs)) / k1 + k3) >> ABITS;
+            m = m >> ABITS;
+            cv = cv >> ABITS;
+            switch (h) {
+                case 0: rr = cv; rg = x; rb = m; break;
+                case 1: rr = x; rg = cv; rb = m; break;
+                case 2: rr = m; rg = cv; rb = x; break;
+                case 3: rr = m; rg = x; rb = cv; break;
+                case 4: rr = x; rg = m; rb = cv; break;
+                case 5: rr = cv; rg = m; rb = x; break;
+            }
+        }
+        return ((rr & 0xFF) << 16) | ((rg & 0xFF) << 8) | (rb & 0xFF);
+    }
+}
@@ -68,6 +68,22 @@ public abstract class ImageFilter implements Cloneable {
 
     public boolean supportsAllocationInput() { return false; }
 
+    /**
+     * Returns true if the filter maps each color to a color, whatever the
+     * image and the position of the pixel. Such filters can be baked into a
+     * ColorLut.
+     */
+    public boolean isColorTransform() { return false; }
+
+    /**
+     * Returns how many pixels around a pixel the filter looks at to compute
+     * it, or -1 if it needs the whole image. Filters with a margin can
+     * render an image tile by tile.
+     */
+    public int getTileMargin() {
+        return isColorTransform() ? 0 : -1;
+    }
+
     public void apply(Allocation in, Allocation out) {
         setGeneralParameters();
     }
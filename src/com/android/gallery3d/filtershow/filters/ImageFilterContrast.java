@@ -20,7 +20,7 @@ import com.android.gallery3d.R;
 
 import android.graphics.Bitmap;
 
-public class ImageFilterContrast extends SimpleImageFilter {
+public class ImageFilterContrast extends SimpleImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "CONTRAST";
 
     public ImageFilterContrast() {
@@ -44,6 +44,11 @@ public class ImageFilterContrast extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float strength);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
@@ -55,4 +60,19 @@ public class ImageFilterContrast extends SimpleImageFilter {
         nativeApplyFilter(bitmap, w, h, value);
         return bitmap;
     }
+
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (getParameters() == null) {
+            return;
+        }
+        float value = getParameters().getValue();
+        float m = (float) Math.pow(2, value / 100.);
+        float c = 127 - m * 127;
+        int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = FusedFilterKernel.clamp((int) (m * i + c));
+        }
+        kernel.addLut(lut, lut, lut);
+    }
 }
@@ -20,7 +20,7 @@ import android.graphics.Bitmap;
 
 import com.android.gallery3d.filtershow.imageshow.Spline;
 
-public class ImageFilterCurves extends ImageFilter {
+public class ImageFilterCurves extends ImageFilter implements FusableFilter {
 
     private static final String LOGTAG = "ImageFilterCurves";
     FilterCurvesRepresentation mParameters = new FilterCurvesRepresentation();
@@ -52,6 +52,11 @@ public class ImageFilterCurves extends ImageFilter {
         }
     }
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (!mParameters.getSpline(Spline.RGB).isOriginal()) {
@@ -109,4 +114,24 @@ public class ImageFilterCurves extends ImageFilter {
             }
         }
     }
+
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (!mParameters.getSpline(Spline.RGB).isOriginal()) {
+            int[] rgbGradient = new int[256];
+            populateArray(rgbGradient, Spline.RGB);
+            kernel.addLut(rgbGradient, rgbGradient, rgbGradient);
+        }
+        kernel.addLut(getGradient(Spline.RED), getGradient(Spline.GREEN),
+                getGradient(Spline.BLUE));
+    }
+
+    private int[] getGradient(int curveIndex) {
+        if (mParameters.getSpline(curveIndex).isOriginal()) {
+            return null;
+        }
+        int[] gradient = new int[256];
+        populateArray(gradient, curveIndex);
+        return gradient;
+    }
 }
@@ -38,6 +38,12 @@ public class ImageFilterEdge extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float p);
 
+    @Override
+    public int getTileMargin() {
+        // 3x3 Sobel operator
+        return 1;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
@@ -20,7 +20,7 @@ import com.android.gallery3d.R;
 
 import android.graphics.Bitmap;
 
-public class ImageFilterExposure extends SimpleImageFilter {
+public class ImageFilterExposure extends SimpleImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "EXPOSURE";
     public ImageFilterExposure() {
         mName = "Exposure";
@@ -42,6 +42,11 @@ public class ImageFilterExposure extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float bright);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
@@ -53,4 +58,17 @@ public class ImageFilterExposure extends SimpleImageFilter {
         nativeApplyFilter(bitmap, w, h, value);
         return bitmap;
     }
+
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (getParameters() == null) {
+            return;
+        }
+        int m = (int) (255 - getParameters().getValue());
+        int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = FusedFilterKernel.clamp((255 * i) / m);
+        }
+        kernel.addLut(lut, lut, lut);
+    }
 }
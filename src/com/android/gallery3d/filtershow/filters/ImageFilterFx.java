@@ -55,6 +55,11 @@ public class ImageFilterFx extends ImageFilter {
                                             Bitmap fxBitmap, int fxw, int fxh,
                                             int start, int end);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null || mResources == null) {
@@ -20,7 +20,7 @@ import android.graphics.Bitmap;
 
 import com.android.gallery3d.R;
 
-public class ImageFilterHighlights extends SimpleImageFilter {
+public class ImageFilterHighlights extends SimpleImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "HIGHLIGHTS";
     private static final String LOGTAG = "ImageFilterVignette";
 
@@ -47,11 +47,25 @@ public class ImageFilterHighlights extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float[] luminanceMap);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
             return bitmap;
         }
+        float[] luminanceMap = getLuminanceMap();
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+
+        nativeApplyFilter(bitmap, w, h, luminanceMap);
+        return bitmap;
+    }
+
+    private float[] getLuminanceMap() {
         float p = getParameters().getValue();
         double t = p/100.;
         for (int i = 0; i < 5; i++) {
@@ -65,10 +79,20 @@ public class ImageFilterHighlights extends SimpleImageFilter {
         for (int i = 0; i < luminanceMap.length; i++) {
             luminanceMap[i] = curve[i][1];
         }
-        int w = bitmap.getWidth();
-        int h = bitmap.getHeight();
+        return luminanceMap;
+    }
 
-        nativeApplyFilter(bitmap, w, h, luminanceMap);
-        return bitmap;
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (getParameters() == null) {
+            return;
+        }
+        float[] luminanceMap = getLuminanceMap();
+        int[] map = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int v = (int) (luminanceMap[i] * FusedFilterKernel.MAX_VALUE);
+            map[i] = Math.max(0, Math.min(FusedFilterKernel.MAX_VALUE, v));
+        }
+        kernel.addValueMap(map);
     }
 }
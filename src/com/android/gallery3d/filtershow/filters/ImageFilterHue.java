@@ -21,7 +21,7 @@ import com.android.gallery3d.filtershow.editors.BasicEditor;
 
 import android.graphics.Bitmap;
 
-public class ImageFilterHue extends SimpleImageFilter {
+public class ImageFilterHue extends SimpleImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "HUE";
     private ColorSpaceMatrix cmatrix = null;
 
@@ -46,6 +46,11 @@ public class ImageFilterHue extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float []matrix);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
@@ -61,4 +66,14 @@ public class ImageFilterHue extends SimpleImageFilter {
 
         return bitmap;
     }
+
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (getParameters() == null) {
+            return;
+        }
+        cmatrix.identity();
+        cmatrix.setHue(getParameters().getValue());
+        kernel.addColorMatrix(cmatrix.getMatrix());
+    }
 }
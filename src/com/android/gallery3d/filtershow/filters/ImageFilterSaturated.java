@@ -20,7 +20,7 @@ import com.android.gallery3d.R;
 
 import android.graphics.Bitmap;
 
-public class ImageFilterSaturated extends SimpleImageFilter {
+public class ImageFilterSaturated extends SimpleImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "SATURATED";
     public ImageFilterSaturated() {
         mName = "Saturated";
@@ -43,6 +43,11 @@ public class ImageFilterSaturated extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float saturation);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
@@ -55,4 +60,23 @@ public class ImageFilterSaturated extends SimpleImageFilter {
         nativeApplyFilter(bitmap, w, h, value);
         return bitmap;
     }
+
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (getParameters() == null) {
+            return;
+        }
+        int p = getParameters().getValue();
+        float s = 1 + p / 100.0f;
+        float ms = 1.0f - s;
+        float rt = 0.2999f * ms;
+        float gt = 0.587f * ms;
+        float bt = 0.114f * ms;
+        float[] matrix = {
+                rt + s, rt, rt, 0,
+                gt, gt + s, gt, 0,
+                bt, bt, bt + s, 0,
+                0, 0, 0, 1 };
+        kernel.addColorMatrix(matrix);
+    }
 }
@@ -20,7 +20,7 @@ import com.android.gallery3d.R;
 
 import android.graphics.Bitmap;
 
-public class ImageFilterShadows extends SimpleImageFilter {
+public class ImageFilterShadows extends SimpleImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "SHADOWS";
     public ImageFilterShadows() {
         mName = "Shadows";
@@ -43,6 +43,11 @@ public class ImageFilterShadows extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float  factor);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
@@ -55,4 +60,40 @@ public class ImageFilterShadows extends SimpleImageFilter {
         nativeApplyFilter(bitmap, w, h, p);
         return bitmap;
     }
+
+    // Same as in shadows.c.
+    private static final double[] SHADOW_FILTER_MAP = {
+            -0.00591,  0.0001,
+             1.16488,  0.01668,
+            -0.18027, -0.06791,
+            -0.12625,  0.09001,
+             0.15065, -0.03897
+    };
+
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (getParameters() == null) {
+            return;
+        }
+        float p = getParameters().getValue();
+        double s = (p >= 0) ? p : p / 5;
+        double[] poly = new double[5];
+        for (int i = 0; i < 5; i++) {
+            poly[i] = SHADOW_FILTER_MAP[2 * i] + SHADOW_FILTER_MAP[2 * i + 1] * s;
+        }
+        int[] map = new int[256];
+        for (int i = 0; i < 256; i++) {
+            double x = (i << 4) / 4080.;
+            double f = x;
+            double sum = poly[0] + poly[1] * f;
+            for (int j = 2; j < 5; j++) {
+                f *= x;
+                sum += poly[j] * f;
+            }
+            double v = sum * 4080;
+            if (v > 4080) v = 4080;
+            map[i] = (int) ((v > 0) ? v : 0);
+        }
+        kernel.addValueMap(map);
+    }
 }
@@ -47,6 +47,12 @@ public class ImageFilterSharpen extends ImageFilterRS {
         mParameters = parameters;
     }
 
+    @Override
+    public int getTileMargin() {
+        // 3x3 convolution
+        return 1;
+    }
+
     @Override
     protected void resetAllocations() {
         // nothing to do
@@ -20,7 +20,7 @@ import com.android.gallery3d.R;
 
 import android.graphics.Bitmap;
 
-public class ImageFilterVibrance extends SimpleImageFilter {
+public class ImageFilterVibrance extends SimpleImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "VIBRANCE";
     public ImageFilterVibrance() {
         mName = "Vibrance";
@@ -42,6 +42,11 @@ public class ImageFilterVibrance extends SimpleImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, float bright);
 
+    @Override
+    public boolean isColorTransform() {
+        return true;
+    }
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         if (getParameters() == null) {
@@ -54,4 +59,29 @@ public class ImageFilterVibrance extends SimpleImageFilter {
 
         return bitmap;
     }
+
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        if (getParameters() == null) {
+            return;
+        }
+        // The saturation only depends on r - max(g, b).
+        float vib = getParameters().getValue() / 100.f;
+        float[] map = new float[FusedFilterKernel.SATURATION_MAP_SIZE * 6];
+        for (int i = 0; i < FusedFilterKernel.SATURATION_MAP_SIZE; i++) {
+            float red = (i - 255) / 256.f;
+            float s = (float) (vib / (1 + Math.exp(-red * 3))) + 1;
+            float ms = 1.0f - s;
+            float rt = 0.2999f * ms;
+            float gt = 0.587f * ms;
+            float bt = 0.114f * ms;
+            map[6 * i] = rt + s;
+            map[6 * i + 1] = gt + s;
+            map[6 * i + 2] = bt + s;
+            map[6 * i + 3] = rt;
+            map[6 * i + 4] = gt;
+            map[6 * i + 5] = bt;
+        }
+        kernel.addSaturationMap(map);
+    }
 }
@@ -21,7 +21,7 @@ import com.android.gallery3d.filtershow.editors.ImageOnlyEditor;
 
 import android.graphics.Bitmap;
 
-public class ImageFilterWBalance extends ImageFilter {
+public class ImageFilterWBalance extends ImageFilter implements FusableFilter {
     private static final String SERIALIZATION_NAME = "WBALANCE";
     private static final String TAG = "ImageFilterWBalance";
 
@@ -49,6 +49,9 @@ public class ImageFilterWBalance extends ImageFilter {
 
     native protected void nativeApplyFilter(Bitmap bitmap, int w, int h, int locX, int locY);
 
+    native protected void nativeEstimateWhite(Bitmap bitmap, int w, int h, int locX, int locY,
+            int[] white);
+
     @Override
     public Bitmap apply(Bitmap bitmap, float scaleFactor, int quality) {
         int w = bitmap.getWidth();
@@ -57,4 +60,25 @@ public class ImageFilterWBalance extends ImageFilter {
         return bitmap;
     }
 
+    @Override
+    public void addToKernel(FusedFilterKernel kernel, Bitmap bitmap) {
+        // The white is estimated from the input of this filter.
+        if (!kernel.isEmpty()) {
+            kernel.apply(bitmap);
+            kernel.reset();
+        }
+        int[] white = new int[3];
+        nativeEstimateWhite(bitmap, bitmap.getWidth(), bitmap.getHeight(), -1, -1, white);
+        int min = Math.min(white[0], Math.min(white[1], white[2]));
+        int max = Math.max(white[0], Math.max(white[1], white[2]));
+        float avg = (min + max) / 2.f;
+        int[][] luts = new int[3][256];
+        for (int c = 0; c < 3; c++) {
+            float scale = avg / white[c];
+            for (int i = 0; i < 256; i++) {
+                luts[c][i] = FusedFilterKernel.clamp((int) (i * scale));
+            }
+        }
+        kernel.addLut(luts[0], luts[1], luts[2]);
+    }
 }
@@ -20,8 +20,10 @@ import android.graphics.Bitmap;
 import android.util.Log;
 
 import com.android.gallery3d.filtershow.cache.BitmapCache;
+import com.android.gallery3d.filtershow.filters.ColorLut;
 import com.android.gallery3d.filtershow.filters.FilterRepresentation;
 import com.android.gallery3d.filtershow.imageshow.GeometryMathUtils;
+import com.android.gallery3d.util.Metrics;
 
 import java.util.ArrayList;
 import java.util.Vector;
@@ -30,11 +32,19 @@ public class CacheProcessing {
     private static final String LOGTAG = "CacheProcessing";
     private static final boolean DEBUG = false;
     private static final boolean NO_CACHING = false;
-    private Vector<CacheStep> mSteps = new Vector<CacheStep>();
+    // Number of baked color lookup tables kept, most recently used first.
+    private static final int MAX_BAKED_LUTS = 8;
+    // How often the rendering starts from a result in the StepCache
+    private static final Metrics.HitRatio sStepCacheHits =
+            Metrics.hitRatio("filtershow.step_cache.hits");
+    private Vector<CacheStep> mBakedLuts = new Vector<CacheStep>();
 
     static class CacheStep {
         ArrayList<FilterRepresentation> representations;
-        Bitmap cache;
+        // A step of consecutive color transforms is applied with a ColorLut
+        // baked from them.
+        boolean colorTransform;
+        Bitmap lut;
 
         public CacheStep() {
             representations = new ArrayList<FilterRepresentation>();
@@ -67,16 +77,27 @@ public class CacheProcessing {
             return true;
         }
 
-        public static Vector<CacheStep> buildSteps(Vector<FilterRepresentation> filters) {
+        public boolean needsLut() {
+            return colorTransform && representations.size() > 1;
+        }
+
+        public static Vector<CacheStep> buildSteps(Vector<FilterRepresentation> filters,
+                FilterEnvironment environment) {
             Vector<CacheStep> steps = new Vector<CacheStep>();
             CacheStep step = new CacheStep();
             for (int i = 0; i < filters.size(); i++) {
                 FilterRepresentation representation = filters.elementAt(i);
-                if (step.canMergeWith(representation)) {
+                boolean colorTransform = environment.isColorTransform(representation);
+                if (step.representations.isEmpty()) {
+                    step.colorTransform = colorTransform;
+                }
+                if (step.canMergeWith(representation)
+                        || (colorTransform && step.colorTransform)) {
                     step.add(representation.copy());
                 } else {
                     steps.add(step);
                     step = new CacheStep();
+                    step.colorTransform = colorTransform;
                     step.add(representation.copy());
                 }
             }
@@ -109,6 +130,12 @@ public class CacheProcessing {
                     Log.v(LOGTAG, "Apply geometry to bitmap " + cacheBitmap);
                 }
                 cacheBitmap = GeometryMathUtils.applyGeometryRepresentations(geometry, cacheBitmap);
+            } else if (lut != null) {
+                if (DEBUG) {
+                    Log.v(LOGTAG, "Apply lut of " + representations.size()
+                            + " filters to bitmap " + cacheBitmap);
+                }
+                ColorLut.apply(lut, cacheBitmap);
             } else {
                 for (FilterRepresentation representation : representations) {
                     if (DEBUG) {
@@ -131,6 +158,18 @@ public class CacheProcessing {
     public Bitmap process(Bitmap originalBitmap,
                           Vector<FilterRepresentation> filters,
                           FilterEnvironment environment) {
+        return process(originalBitmap, originalBitmap, filters, environment);
+    }
+
+    /**
+     * Applies the filters to originalBitmap, starting from the result of as
+     * many steps as possible found in the StepCache. The results there are
+     * found by source, which stands for originalBitmap: callers building the
+     * original bitmap for each call pass what they built it from.
+     */
+    public Bitmap process(Object source, Bitmap originalBitmap,
+                          Vector<FilterRepresentation> filters,
+                          FilterEnvironment environment) {
 
         if (filters.size() == 0) {
             return environment.getBitmapCopy(originalBitmap, BitmapCache.PREVIEW_CACHE_NO_FILTERS);
@@ -141,59 +180,22 @@ public class CacheProcessing {
         if (DEBUG) {
             displayFilters(filters);
         }
-        Vector<CacheStep> steps = CacheStep.buildSteps(filters);
-        // New set of filters, let's clear the cache and rebuild it.
-        if (steps.size() != mSteps.size()) {
-            mSteps = steps;
-        }
-
-        if (DEBUG) {
-            displaySteps(mSteps);
-        }
-
-        // First, let's find how similar we are in our cache
-        // compared to the current list of filters
-        int similarUpToIndex = -1;
-        boolean similar = true;
+        Vector<CacheStep> steps = CacheStep.buildSteps(filters, environment);
+        StepCache.Key[] keys = new StepCache.Key[steps.size()];
+        StepCache.Key key = new StepCache.Key(source, originalBitmap.getWidth(),
+                originalBitmap.getHeight(), environment.getScaleFactor(),
+                environment.getQuality());
         for (int i = 0; i < steps.size(); i++) {
-            CacheStep newStep = steps.elementAt(i);
-            CacheStep cacheStep = mSteps.elementAt(i);
-            if (similar) {
-                similar = newStep.equals(cacheStep);
-            }
-            if (similar) {
-                similarUpToIndex = i;
-            } else {
-                mSteps.remove(i);
-                mSteps.insertElementAt(newStep, i);
-                environment.cache(cacheStep.cache);
-            }
-        }
-        if (DEBUG) {
-            Log.v(LOGTAG, "similar up to index " + similarUpToIndex);
-        }
-
-        // Now, let's get the earliest cached result in our pipeline
-        Bitmap cacheBitmap = null;
-        int findBaseImageIndex = similarUpToIndex;
-        if (findBaseImageIndex > -1) {
-            while (findBaseImageIndex > 0
-                    && mSteps.elementAt(findBaseImageIndex).cache == null) {
-                findBaseImageIndex--;
-            }
-            cacheBitmap = mSteps.elementAt(findBaseImageIndex).cache;
-        }
-
-        if (DEBUG) {
-            Log.v(LOGTAG, "found baseImageIndex: " + findBaseImageIndex + " max is "
-                    + mSteps.size() + " cacheBitmap: " + cacheBitmap);
+            key = new StepCache.Key(key, steps.elementAt(i).representations);
+            keys[i] = key;
         }
 
         if (NO_CACHING) {
-            cacheBitmap = environment.getBitmapCopy(originalBitmap,
+            Bitmap cacheBitmap = environment.getBitmapCopy(originalBitmap,
                     BitmapCache.PREVIEW_CACHE_NO_ROOT);
-            for (int i = 0; i < mSteps.size(); i++) {
-                CacheStep step = mSteps.elementAt(i);
+            for (int i = 0; i < steps.size(); i++) {
+                CacheStep step = steps.elementAt(i);
+                bakeLut(step, environment);
                 Bitmap prev = cacheBitmap;
                 cacheBitmap = step.apply(environment, cacheBitmap);
                 if (prev != cacheBitmap) {
@@ -203,71 +205,81 @@ public class CacheProcessing {
             return cacheBitmap;
         }
 
-        Bitmap originalCopy = null;
-        int lastPositionCached = -1;
-        for (int i = findBaseImageIndex; i < mSteps.size(); i++) {
-            if (i == -1 || cacheBitmap == null) {
-                cacheBitmap = environment.getBitmapCopy(originalBitmap,
-                        BitmapCache.PREVIEW_CACHE_NO_ROOT);
-                originalCopy = cacheBitmap;
-                if (DEBUG) {
-                    Log.v(LOGTAG, "i: " + i + " cacheBitmap: " + cacheBitmap + " w: "
-                            + cacheBitmap.getWidth() + " h: " + cacheBitmap.getHeight()
-                            + " got from original Bitmap: " + originalBitmap + " w: "
-                            + originalBitmap.getWidth() + " h: " + originalBitmap.getHeight());
-                }
-                if (i == -1) {
-                    continue;
-                }
-            }
-            CacheStep step = mSteps.elementAt(i);
-            if (step.cache == null) {
-                if (DEBUG) {
-                    Log.v(LOGTAG, "i: " + i + " get new copy for cacheBitmap "
-                            + cacheBitmap + " apply...");
-                }
-                cacheBitmap = environment.getBitmapCopy(cacheBitmap, BitmapCache.PREVIEW_CACHE);
-                cacheBitmap = step.apply(environment, cacheBitmap);
-                step.cache = cacheBitmap;
-                lastPositionCached = i;
+        // Let's get the latest step whose result is already known, whichever
+        // pipeline computed it.
+        StepCache stepCache = StepCache.getCache();
+        Bitmap cacheBitmap = null;
+        int findBaseImageIndex = steps.size() - 1;
+        while (findBaseImageIndex >= 0) {
+            cacheBitmap = stepCache.get(keys[findBaseImageIndex]);
+            if (cacheBitmap != null) {
+                break;
             }
+            findBaseImageIndex--;
         }
-        environment.cache(originalCopy);
+        sStepCacheHits.record(cacheBitmap != null);
 
         if (DEBUG) {
-            Log.v(LOGTAG, "now let's cleanup the cache...");
-            displayNbBitmapsInCache();
+            Log.v(LOGTAG, "found baseImageIndex: " + findBaseImageIndex + " max is "
+                    + steps.size() + " cacheBitmap: " + cacheBitmap);
+            displaySteps(steps, keys);
         }
 
-        // Let's see if we can cleanup the cache for unused bitmaps
-        for (int i = 0; i < similarUpToIndex; i++) {
-            CacheStep currentStep = mSteps.elementAt(i);
-            Bitmap bitmap = currentStep.cache;
-            currentStep.cache = null;
-            environment.cache(bitmap);
+        for (int i = findBaseImageIndex + 1; i < steps.size(); i++) {
+            CacheStep step = steps.elementAt(i);
+            bakeLut(step, environment);
+            // the bitmaps in the step cache are never modified
+            if (cacheBitmap == null) {
+                cacheBitmap = environment.getBitmapCopy(originalBitmap,
+                        BitmapCache.PREVIEW_CACHE_NO_ROOT);
+            } else {
+                cacheBitmap = environment.getBitmapCopy(cacheBitmap, BitmapCache.PREVIEW_CACHE);
+            }
+            cacheBitmap = step.apply(environment, cacheBitmap);
+            if (environment.needsStop()) {
+                // not a valid result, don't keep it
+                return cacheBitmap;
+            }
+            stepCache.put(keys[i], cacheBitmap);
         }
+        return environment.getBitmapCopy(cacheBitmap, BitmapCache.PREVIEW_CACHE_NO_APPLY);
+    }
 
-        if (DEBUG) {
-            Log.v(LOGTAG, "cleanup done...");
-            displayNbBitmapsInCache();
+    // Sets the lut of a step which needs one, either from a previous step
+    // with the same representations or by applying them to an identity lut.
+    // Moving a slider only bakes a new lut of ColorLut.SIZE^3 pixels.
+    private void bakeLut(CacheStep step, FilterEnvironment environment) {
+        if (step.lut != null || !step.needsLut()) {
+            return;
         }
-        if (lastPositionCached != -1) {
-            // The last element will never be reused, remove it from the cache.
-            mSteps.elementAt(lastPositionCached).cache = null;
+        for (int i = 0; i < mBakedLuts.size(); i++) {
+            CacheStep baked = mBakedLuts.elementAt(i);
+            if (baked.equals(step)) {
+                step.lut = baked.lut;
+                mBakedLuts.remove(i);
+                mBakedLuts.insertElementAt(baked, 0);
+                return;
+            }
         }
-        if (contains(cacheBitmap)) {
-            return environment.getBitmapCopy(cacheBitmap, BitmapCache.PREVIEW_CACHE_NO_APPLY);
+        Bitmap lut = ColorLut.createIdentity();
+        for (FilterRepresentation representation : step.representations) {
+            lut = environment.applyRepresentation(representation, lut);
+        }
+        if (environment.needsStop()) {
+            return;
+        }
+        step.lut = lut;
+        CacheStep baked = new CacheStep();
+        baked.representations = step.representations;
+        baked.lut = lut;
+        mBakedLuts.insertElementAt(baked, 0);
+        if (mBakedLuts.size() > MAX_BAKED_LUTS) {
+            mBakedLuts.remove(MAX_BAKED_LUTS);
         }
-        return cacheBitmap;
     }
 
     public boolean contains(Bitmap bitmap) {
-        for (int i = 0; i < mSteps.size(); i++) {
-            if (mSteps.elementAt(i).cache == bitmap) {
-                return true;
-            }
-        }
-        return false;
+        return StepCache.getCache().contains(bitmap);
     }
 
     private void displayFilters(Vector<FilterRepresentation> filters) {
@@ -279,28 +291,15 @@ public class CacheProcessing {
         Log.v(LOGTAG, "<<<------");
     }
 
-    private void displaySteps(Vector<CacheStep> filters) {
+    private void displaySteps(Vector<CacheStep> steps, StepCache.Key[] keys) {
         Log.v(LOGTAG, "------>>>");
-        for (int i = 0; i < filters.size(); i++) {
-            CacheStep newStep = filters.elementAt(i);
-            CacheStep step = mSteps.elementAt(i);
-            boolean similar = step.equals(newStep);
+        StepCache stepCache = StepCache.getCache();
+        for (int i = 0; i < steps.size(); i++) {
+            CacheStep step = steps.elementAt(i);
             Log.v(LOGTAG, "[" + i + "] - " + step.getName()
-                    + " similar rep ? " + (similar ? "YES" : "NO")
-                    + " -- bitmap: " + step.cache);
+                    + " -- bitmap: " + stepCache.get(keys[i]));
         }
         Log.v(LOGTAG, "<<<------");
     }
 
-    private void displayNbBitmapsInCache() {
-        int nbBitmapsCached = 0;
-        for (int i = 0; i < mSteps.size(); i++) {
-            CacheStep step = mSteps.elementAt(i);
-            if (step.cache != null) {
-                nbBitmapsCached++;
-            }
-        }
-        Log.v(LOGTAG, "nb bitmaps in cache: " + nbBitmapsCached + " / " + mSteps.size());
-    }
-
 }
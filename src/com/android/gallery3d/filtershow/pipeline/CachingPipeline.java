@@ -226,11 +226,9 @@ public class CachingPipeline implements PipelineInterface {
             if (bitmap == null) {
                 return;
             }
-            bitmap = mEnvironment.getBitmapCopy(bitmap, BitmapCache.HIGHRES);
-            bitmap = preset.applyGeometry(bitmap, mEnvironment);
-
             mEnvironment.setQuality(FilterEnvironment.QUALITY_PREVIEW);
-            Bitmap bmp = preset.apply(bitmap, mEnvironment);
+            // The steps shared with the previous requests are in the StepCache
+            Bitmap bmp = mCachedProcessing.process(bitmap, preset.getFilters(), mEnvironment);
             if (!mEnvironment.needsStop()) {
                 request.setBitmap(bmp);
             } else {
@@ -349,9 +347,10 @@ public class CachingPipeline implements PipelineInterface {
                     mEnvironment.setQuality(FilterEnvironment.QUALITY_PREVIEW);
                 }
 
+                Bitmap source = null;
                 if (request.getType() == RenderingRequest.ICON_RENDERING) {
                     Rect iconBounds = request.getIconBounds();
-                    Bitmap source = MasterImage.getImage().getThumbnailBitmap();
+                    source = MasterImage.getImage().getThumbnailBitmap();
                     if (iconBounds.width() > source.getWidth() * 2) {
                         source = MasterImage.getImage().getLargeThumbnailBitmap();
                     }
@@ -372,7 +371,21 @@ public class CachingPipeline implements PipelineInterface {
                         bitmap = mEnvironment.getBitmapCopy(source, BitmapCache.ICON);
                     }
                 }
-                Bitmap bmp = preset.apply(bitmap, mEnvironment);
+                Bitmap bmp;
+                if (source != null) {
+                    // Icons are drawn from the same thumbnail again and again,
+                    // they share the steps in the StepCache.
+                    Vector<FilterRepresentation> filters = new Vector<FilterRepresentation>();
+                    for (FilterRepresentation representation : preset.getFilters()) {
+                        if (representation.getFilterType() != FilterRepresentation.TYPE_GEOMETRY) {
+                            filters.add(representation);
+                        }
+                    }
+                    bmp = mCachedProcessing.process(source, bitmap, filters, mEnvironment);
+                    mEnvironment.cache(bitmap);
+                } else {
+                    bmp = preset.apply(bitmap, mEnvironment);
+                }
                 if (!mEnvironment.needsStop()) {
                     request.setBitmap(bmp);
                 }
@@ -412,6 +425,30 @@ public class CachingPipeline implements PipelineInterface {
         }
     }
 
+    /**
+     * Renders one band of the final image, see TiledRenderer. Unlike
+     * renderFinalImage(), it doesn't hold the global lock: each thread
+     * rendering bands has its own pipeline and filters.
+     */
+    public synchronized Bitmap renderFinalTile(Bitmap bitmap, ImagePreset preset) {
+        if (getRenderScriptContext() == null) {
+            return bitmap;
+        }
+        setupEnvironment(preset, false);
+        mEnvironment.setQuality(FilterEnvironment.QUALITY_FINAL);
+        mEnvironment.setScaleFactor(1.0f);
+        return preset.applyFilters(bitmap, -1, -1, mEnvironment);
+    }
+
+    /**
+     * Frees the resources the filters kept while rendering bands, once the
+     * last band is rendered.
+     */
+    public synchronized void freeTileResources() {
+        // No filter is used by an empty preset, so all of them are freed.
+        mFiltersManager.freeFilterResources(new ImagePreset());
+    }
+
     public Bitmap renderGeometryIcon(Bitmap bitmap, ImagePreset preset) {
         return GeometryMathUtils.applyGeometryRepresentations(preset.getGeometryFilters(), bitmap);
     }
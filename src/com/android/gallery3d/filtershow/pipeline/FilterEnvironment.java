@@ -25,10 +25,13 @@ import com.android.gallery3d.filtershow.cache.BitmapCache;
 import com.android.gallery3d.filtershow.filters.FilterRepresentation;
 import com.android.gallery3d.filtershow.filters.FilterUserPresetRepresentation;
 import com.android.gallery3d.filtershow.filters.FiltersManagerInterface;
+import com.android.gallery3d.filtershow.filters.FusableFilter;
+import com.android.gallery3d.filtershow.filters.FusedFilterKernel;
 import com.android.gallery3d.filtershow.filters.ImageFilter;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.List;
 
 public class FilterEnvironment {
     private static final String LOGTAG = "FilterEnvironment";
@@ -141,6 +144,36 @@ public class FilterEnvironment {
         return ret;
     }
 
+    public boolean isColorTransform(FilterRepresentation representation) {
+        ImageFilter filter = mFiltersManager.getFilterForRepresentation(representation);
+        return filter != null && filter.isColorTransform();
+    }
+
+    public boolean isFusable(FilterRepresentation representation) {
+        return mFiltersManager.getFilterForRepresentation(representation)
+                instanceof FusableFilter;
+    }
+
+    // Applies a run of representations for which isFusable() is true in a
+    // single pass over the bitmap. The result is the same as applying them
+    // one by one.
+    public Bitmap applyFused(List<FilterRepresentation> representations, Bitmap bitmap) {
+        if (representations.size() == 1) {
+            return applyRepresentation(representations.get(0), bitmap);
+        }
+        FusedFilterKernel kernel = new FusedFilterKernel();
+        for (FilterRepresentation representation : representations) {
+            ImageFilter filter = mFiltersManager.getFilterForRepresentation(representation);
+            filter.useRepresentation(representation);
+            filter.setEnvironment(this);
+            ((FusableFilter) filter).addToKernel(kernel, bitmap);
+            filter.setGeneralParameters();
+            filter.setEnvironment(null);
+        }
+        kernel.apply(bitmap);
+        return bitmap;
+    }
+
     public PipelineInterface getPipeline() {
         return mPipeline;
     }
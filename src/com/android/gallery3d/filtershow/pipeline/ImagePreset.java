@@ -36,6 +36,7 @@ import com.android.gallery3d.filtershow.filters.FilterRotateRepresentation;
 import com.android.gallery3d.filtershow.filters.FilterStraightenRepresentation;
 import com.android.gallery3d.filtershow.filters.FilterUserPresetRepresentation;
 import com.android.gallery3d.filtershow.filters.FiltersManager;
+import com.android.gallery3d.filtershow.filters.FiltersManagerInterface;
 import com.android.gallery3d.filtershow.filters.ImageFilter;
 import com.android.gallery3d.filtershow.imageshow.GeometryMathUtils;
 import com.android.gallery3d.filtershow.imageshow.MasterImage;
@@ -215,6 +216,33 @@ public class ImagePreset {
         return true;
     }
 
+    /**
+     * Returns how many rows a band of the image needs above and below it to
+     * be rendered as it is in the whole image, or -1 if the preset can't be
+     * rendered by bands.
+     */
+    public int getTileMargin(FiltersManagerInterface filtersManager) {
+        int margin = 0;
+        for (FilterRepresentation representation : mFilters) {
+            if (representation.getFilterType() == FilterRepresentation.TYPE_GEOMETRY) {
+                if (!representation.isNil()) {
+                    return -1;
+                }
+                continue;
+            }
+            if (representation.getFilterType() == FilterRepresentation.TYPE_BORDER) {
+                return -1;
+            }
+            ImageFilter filter = filtersManager.getFilterForRepresentation(representation);
+            if (filter == null || filter.getTileMargin() < 0) {
+                return -1;
+            }
+            // the filters are applied one after the other
+            margin += filter.getTileMargin();
+        }
+        return margin;
+    }
+
     public boolean same(ImagePreset preset) {
         if (preset == null) {
             return false;
@@ -507,6 +535,8 @@ public class ImagePreset {
             if (to == -1) {
                 to = mFilters.size();
             }
+            // Consecutive point-wise filters are run together in one pass.
+            ArrayList<FilterRepresentation> fused = new ArrayList<FilterRepresentation>();
             for (int i = from; i < to; i++) {
                 FilterRepresentation representation = mFilters.elementAt(i);
                 if (representation.getFilterType() == FilterRepresentation.TYPE_GEOMETRY) {
@@ -519,6 +549,14 @@ public class ImagePreset {
                     // TODO: might be worth getting rid of applyBorder.
                     continue;
                 }
+                if (environment.isFusable(representation)) {
+                    fused.add(representation);
+                    continue;
+                }
+                bitmap = applyFused(fused, bitmap, environment);
+                if (environment.needsStop()) {
+                    return bitmap;
+                }
                 Bitmap tmp = bitmap;
                 bitmap = environment.applyRepresentation(representation, bitmap);
                 if (tmp != bitmap) {
@@ -528,11 +566,26 @@ public class ImagePreset {
                     return bitmap;
                 }
             }
+            bitmap = applyFused(fused, bitmap, environment);
         }
 
         return bitmap;
     }
 
+    private Bitmap applyFused(ArrayList<FilterRepresentation> fused, Bitmap bitmap,
+            FilterEnvironment environment) {
+        if (fused.isEmpty()) {
+            return bitmap;
+        }
+        Bitmap tmp = bitmap;
+        bitmap = environment.applyFused(fused, bitmap);
+        if (tmp != bitmap) {
+            environment.cache(tmp);
+        }
+        fused.clear();
+        return bitmap;
+    }
+
     public void applyBorder(Allocation in, Allocation out,
             boolean copyOut, FilterEnvironment environment) {
         FilterRepresentation border = getFilterRepresentationForType(
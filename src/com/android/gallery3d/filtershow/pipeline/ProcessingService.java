@@ -75,6 +75,8 @@ public class ProcessingService extends Service {
         if (mUpdatePreviewTask == null) {
             return;
         }
+        // the steps computed for the previous image are of no use anymore
+        StepCache.getCache().clear();
         mUpdatePreviewTask.setOriginal(originalBitmap);
         mHighresRenderingRequestTask.setOriginal(originalBitmap);
         mFullresRenderingRequestTask.setOriginal(originalBitmap);
@@ -320,6 +322,7 @@ public class ProcessingService extends Service {
         FiltersManager.getManager().freeRSFilterScripts();
         FiltersManager.getHighresManager().freeRSFilterScripts();
         FiltersManager.reset();
+        StepCache.getCache().clear();
         CachingPipeline.destroyRenderScriptContext();
     }
 
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.filtershow.pipeline;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.gallery3d.filtershow.filters.FilterRepresentation;
+import com.android.gallery3d.util.Metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of the steps of CacheProcessing, shared by all the pipelines. A
+ * result is found by what it was computed from: the source bitmap, the scale
+ * and quality of the rendering, and the chain of steps applied to the
+ * source. Going back to an earlier state of the preset, with undo or by
+ * toggling a filter, finds the results computed for it.
+ *
+ * The results take up to a budget in bytes; the least recently used ones are
+ * dropped first. They are never modified nor given back to the BitmapCache,
+ * so a bitmap obtained from get() stays valid after it is dropped. The keys
+ * only hold their source weakly, so the budget covers all the memory held
+ * here. With the BitmapCache pool, which has the same budget, the caches of
+ * filtershow hold at most a quarter of the heap.
+ */
+public class StepCache {
+    private static final String LOGTAG = "StepCache";
+    private static final boolean DEBUG = false;
+
+    private static final Metrics.Counter sEvictions =
+            Metrics.counter("filtershow.step_cache.evictions");
+
+    private static StepCache sInstance = null;
+
+    private final LinkedHashMap<Key, Bitmap> mResults =
+            new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+    private final long mMaxBytes;
+    private long mBytes = 0;
+
+    /**
+     * Identifies the result of a chain of steps. The root key is for the
+     * source itself, each step adds a key with the root as ancestor.
+     */
+    public static class Key {
+        private final Key mParent;
+        // The results of a collected source are not found anymore and
+        // get dropped as the least recently used ones.
+        private final WeakReference<Object> mSource;
+        private final int mWidth;
+        private final int mHeight;
+        private final float mScale;
+        private final int mQuality;
+        private final ArrayList<FilterRepresentation> mRepresentations;
+        private final int mHash;
+
+        public Key(Object source, int width, int height, float scale, int quality) {
+            mParent = null;
+            mSource = new WeakReference<Object>(source);
+            mWidth = width;
+            mHeight = height;
+            mScale = scale;
+            mQuality = quality;
+            mRepresentations = null;
+            int hash = System.identityHashCode(source);
+            hash = 31 * hash + width;
+            hash = 31 * hash + height;
+            hash = 31 * hash + Float.floatToIntBits(scale);
+            mHash = 31 * hash + quality;
+        }
+
+        // The representations must not be modified afterwards.
+        public Key(Key parent, ArrayList<FilterRepresentation> representations) {
+            mParent = parent;
+            mSource = parent.mSource;
+            mWidth = parent.mWidth;
+            mHeight = parent.mHeight;
+            mScale = parent.mScale;
+            mQuality = parent.mQuality;
+            mRepresentations = representations;
+            // FilterRepresentation has no hashCode() matching its equals(),
+            // the names are enough to spread the keys.
+            int hash = parent.mHash;
+            for (FilterRepresentation representation : representations) {
+                String name = representation.getSerializationName();
+                hash = 31 * hash + (name != null ? name.hashCode() : 0);
+            }
+            mHash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            if (mHash != key.mHash) {
+                return false;
+            }
+            if (mParent == null || key.mParent == null) {
+                Object source = mSource.get();
+                return mParent == key.mParent
+                        && source != null
+                        && source == key.mSource.get()
+                        && mWidth == key.mWidth
+                        && mHeight == key.mHeight
+                        && mScale == key.mScale
+                        && mQuality == key.mQuality;
+            }
+            if (mRepresentations.size() != key.mRepresentations.size()) {
+                return false;
+            }
+            for (int i = 0; i < mRepresentations.size(); i++) {
+                if (!mRepresentations.get(i).equals(key.mRepresentations.get(i))) {
+                    return false;
+                }
+            }
+            return mParent.equals(key.mParent);
+        }
+    }
+
+    public static synchronized StepCache getCache() {
+        if (sInstance == null) {
+            sInstance = new StepCache(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return sInstance;
+    }
+
+    private StepCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized Bitmap get(Key key) {
+        return mResults.get(key);
+    }
+
+    /**
+     * Keeps bitmap as the result for key. The caller must not modify the
+     * bitmap nor give it to the BitmapCache afterwards.
+     */
+    public synchronized void put(Key key, Bitmap bitmap) {
+        Bitmap previous = mResults.put(key, bitmap);
+        if (previous != null) {
+            mBytes -= previous.getByteCount();
+        }
+        mBytes += bitmap.getByteCount();
+        Iterator<Map.Entry<Key, Bitmap>> iterator = mResults.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<Key, Bitmap> entry = iterator.next();
+            if (entry.getValue() == bitmap) {
+                continue;
+            }
+            mBytes -= entry.getValue().getByteCount();
+            iterator.remove();
+            sEvictions.increment();
+        }
+        if (DEBUG) {
+            Log.v(LOGTAG, "put " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", "
+                    + mResults.size() + " results in " + mBytes + " bytes");
+        }
+    }
+
+    public synchronized boolean contains(Bitmap bitmap) {
+        return mResults.containsValue(bitmap);
+    }
+
+    public synchronized void clear() {
+        mResults.clear();
+        mBytes = 0;
+    }
+}
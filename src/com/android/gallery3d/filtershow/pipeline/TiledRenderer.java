@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.filtershow.pipeline;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.Log;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.filtershow.cache.ImageLoader;
+import com.android.gallery3d.filtershow.filters.FiltersManager;
+import com.android.gallery3d.jpegstream.JPEGOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the final image band by band on all the cores, and streams the
+ * result into a JPEGOutputStream. Only the bands being rendered or waiting to
+ * be written are in memory, whatever the size of the image.
+ *
+ * Each band is decoded from the source with the rows its filters look at
+ * around it (see ImagePreset.getTileMargin()), and rendered by a worker with
+ * its own decoder, filters and pipeline, as the filters keep state while
+ * rendering.
+ */
+public class TiledRenderer {
+    private static final String LOGTAG = "TiledRenderer";
+
+    // Size of a band, whatever the width of the image
+    private static final int BAND_PIXELS = 1 << 20;
+    private static final int MIN_BAND_HEIGHT = 16;
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    // Bands rendered ahead of the one being written
+    private static final int MAX_PENDING_BANDS = NUM_THREADS + 1;
+
+    private final Context mContext;
+    private final Uri mSource;
+    private final ImagePreset mPreset;
+    private final int mMargin;
+    private final int mOrientation;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private int mWidth;
+    private int mHeight;
+    private int mBandHeight;
+
+    private final ConcurrentLinkedQueue<Worker> mIdleWorkers =
+            new ConcurrentLinkedQueue<Worker>();
+    private final ArrayList<Worker> mWorkers = new ArrayList<Worker>();
+    private final ConcurrentLinkedQueue<byte[]> mBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private static class Band {
+        byte[] data;
+        int offset;
+        int length;
+    }
+
+    public TiledRenderer(Context context, Uri source, ImagePreset preset) {
+        mContext = context;
+        mSource = source;
+        mPreset = preset;
+        mMargin = preset.getTileMargin(FiltersManager.getManager());
+        mOrientation = ImageLoader.getMetadataOrientation(context, source);
+        Rect bounds = ImageLoader.loadBitmapBounds(context, source);
+        mSourceWidth = bounds.width();
+        mSourceHeight = bounds.height();
+        mWidth = mSourceWidth;
+        mHeight = mSourceHeight;
+        if (mOrientation == ImageLoader.ORI_ROTATE_90
+                || mOrientation == ImageLoader.ORI_ROTATE_270
+                || mOrientation == ImageLoader.ORI_TRANSPOSE
+                || mOrientation == ImageLoader.ORI_TRANSVERSE) {
+            mWidth = mSourceHeight;
+            mHeight = mSourceWidth;
+        }
+        if (mWidth > 0) {
+            mBandHeight = Math.max(MIN_BAND_HEIGHT, BAND_PIXELS / mWidth);
+        }
+    }
+
+    public boolean canRender() {
+        return mMargin >= 0 && mWidth > 0 && mHeight > 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Renders the image into out, which has to be set up for an image of
+     * getWidth() x getHeight() in JpegConfig.FORMAT_RGBA. Returns false if
+     * the image could not be rendered.
+     */
+    public boolean render(JPEGOutputStream out) {
+        ForkJoinPool pool = new ForkJoinPool(NUM_THREADS);
+        LinkedList<Future<Band>> pending = new LinkedList<Future<Band>>();
+        try {
+            int top = 0;
+            while (top < mHeight || !pending.isEmpty()) {
+                while (top < mHeight && pending.size() < MAX_PENDING_BANDS) {
+                    int bottom = Math.min(top + mBandHeight, mHeight);
+                    pending.add(pool.submit(new BandTask(top, bottom)));
+                    top = bottom;
+                }
+                Band band = pending.removeFirst().get();
+                out.write(band.data, band.offset, band.length);
+                mBuffers.add(band.data);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Log.w(LOGTAG, "interrupted while rendering " + mSource, e);
+        } catch (ExecutionException e) {
+            Log.w(LOGTAG, "could not render a band of " + mSource, e.getCause());
+        } catch (IOException e) {
+            Log.w(LOGTAG, "could not write " + mSource, e);
+        } finally {
+            for (Future<Band> future : pending) {
+                future.cancel(false);
+            }
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Log.w(LOGTAG, "interrupted while stopping the workers", e);
+            }
+            release();
+        }
+        return false;
+    }
+
+    private void release() {
+        synchronized (mWorkers) {
+            for (Worker worker : mWorkers) {
+                worker.release();
+            }
+            mWorkers.clear();
+        }
+        mIdleWorkers.clear();
+        mBuffers.clear();
+    }
+
+    // Returns the rectangle of the source image that ends up in the rows
+    // top to bottom of the oriented image, see ImageLoader.orientBitmap().
+    private Rect getSourceRect(int top, int bottom) {
+        int w = mSourceWidth;
+        int h = mSourceHeight;
+        switch (mOrientation) {
+            case ImageLoader.ORI_ROTATE_90:
+            case ImageLoader.ORI_TRANSPOSE:
+                return new Rect(top, 0, bottom, h);
+            case ImageLoader.ORI_ROTATE_270:
+            case ImageLoader.ORI_TRANSVERSE:
+                return new Rect(w - bottom, 0, w - top, h);
+            case ImageLoader.ORI_ROTATE_180:
+            case ImageLoader.ORI_FLIP_VERT:
+                return new Rect(0, h - bottom, w, h - top);
+            default:
+                return new Rect(0, top, w, bottom);
+        }
+    }
+
+    private class BandTask implements Callable<Band> {
+        private final int mTop;
+        private final int mBottom;
+
+        BandTask(int top, int bottom) {
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        @Override
+        public Band call() throws IOException {
+            Worker worker = mIdleWorkers.poll();
+            if (worker == null) {
+                worker = new Worker();
+                synchronized (mWorkers) {
+                    mWorkers.add(worker);
+                }
+            }
+            try {
+                return worker.render(mTop, mBottom);
+            } finally {
+                mIdleWorkers.add(worker);
+            }
+        }
+    }
+
+    private class Worker {
+        private final BitmapRegionDecoder mDecoder;
+        private final FiltersManager mFiltersManager = new FiltersManager();
+        private final CachingPipeline mPipeline;
+        private Bitmap mBand; // reused to decode the next band
+
+        Worker() throws IOException {
+            InputStream is = null;
+            try {
+                is = mContext.getContentResolver().openInputStream(mSource);
+                mDecoder = BitmapRegionDecoder.newInstance(is, false);
+            } finally {
+                Utils.closeSilently(is);
+            }
+            mFiltersManager.setFilterResources(mContext.getResources());
+            mPipeline = new CachingPipeline(mFiltersManager, "Tiles");
+        }
+
+        Band render(int top, int bottom) throws IOException {
+            int haloTop = Math.max(top - mMargin, 0);
+            int haloBottom = Math.min(bottom + mMargin, mHeight);
+            Rect region = getSourceRect(haloTop, haloBottom);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            // The decoder doesn't resize the bitmap it reuses
+            if (mBand != null && mBand.getWidth() == region.width()
+                    && mBand.getHeight() == region.height()) {
+                options.inBitmap = mBand;
+            }
+            Bitmap decoded = mDecoder.decodeRegion(region, options);
+            if (decoded == null) {
+                throw new IOException("could not decode " + region);
+            }
+            Bitmap bitmap = ImageLoader.orientBitmap(decoded, mOrientation);
+            Bitmap result = mPipeline.renderFinalTile(bitmap, mPreset);
+            if (result.getWidth() != mWidth
+                    || result.getHeight() != haloBottom - haloTop) {
+                throw new IOException("filters changed the size of the band");
+            }
+            // A filter that returns a new bitmap puts its input in the cache
+            if (bitmap == decoded && result != decoded) {
+                mBand = null;
+            } else {
+                mBand = decoded;
+            }
+
+            Band band = new Band();
+            band.data = mBuffers.poll();
+            if (band.data == null) {
+                band.data = new byte[(mBandHeight + 2 * mMargin) * mWidth * 4];
+            }
+            result.copyPixelsToBuffer(ByteBuffer.wrap(band.data));
+            band.offset = (top - haloTop) * mWidth * 4;
+            band.length = (bottom - top) * mWidth * 4;
+            return band;
+        }
+
+        void release() {
+            mDecoder.recycle();
+            mPipeline.freeTileResources();
+            mFiltersManager.freeRSFilterScripts();
+            mPipeline.reset();
+        }
+    }
+}
@@ -41,6 +41,9 @@ import com.android.gallery3d.filtershow.imageshow.MasterImage;
 import com.android.gallery3d.filtershow.pipeline.CachingPipeline;
 import com.android.gallery3d.filtershow.pipeline.ImagePreset;
 import com.android.gallery3d.filtershow.pipeline.ProcessingService;
+import com.android.gallery3d.filtershow.pipeline.TiledRenderer;
+import com.android.gallery3d.jpegstream.JPEGOutputStream;
+import com.android.gallery3d.jpegstream.JpegConfig;
 import com.android.gallery3d.util.XmpUtilHelper;
 
 import java.io.File;
@@ -287,6 +290,53 @@ public class SaveImage {
         return ret;
     }
 
+    /**
+     * Same as putExifData() for an image rendered by bands.
+     */
+    public boolean putExifData(File file, ExifInterface exif, TiledRenderer renderer,
+            int jpegCompressQuality) {
+        boolean ret = false;
+        OutputStream s = null;
+        try {
+            s = exif.getExifWriterStream(file.getAbsolutePath());
+            JPEGOutputStream jpeg = new JPEGOutputStream(s, renderer.getWidth(),
+                    renderer.getHeight(), (jpegCompressQuality > 0) ? jpegCompressQuality : 1,
+                    JpegConfig.FORMAT_RGBA);
+            s = jpeg;
+            if (renderer.render(jpeg)) {
+                s.flush();
+                s.close();
+                s = null;
+                ret = true;
+            }
+        } catch (FileNotFoundException e) {
+            Log.w(LOGTAG, "File not found: " + file.getAbsolutePath(), e);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not write exif: ", e);
+        } finally {
+            Utils.closeSilently(s);
+        }
+        return ret;
+    }
+
+    private Uri linkSavedImage(ImagePreset preset, Uri newSourceUri, Uri savedUri,
+            Object xmp, boolean flatten, long time) {
+        Uri uri = null;
+        putPanoramaXMPData(mDestinationFile, xmp);
+        // mDestinationFile will save the newSourceUri info in the XMP.
+        if (!flatten) {
+            XmpPresets.writeFilterXMP(mContext, newSourceUri,
+                    mDestinationFile, preset);
+            uri = updateFile(mContext, savedUri, mDestinationFile, time);
+        } else {
+            ContentValues values = getContentValues(mContext, mSelectedImageUri,
+                    mDestinationFile, time);
+            Object result = mContext.getContentResolver().insert(
+                    Images.Media.EXTERNAL_CONTENT_URI, values);
+        }
+        return uri;
+    }
+
     private Uri resetToOriginalImageIfNeeded(ImagePreset preset, boolean doAuxBackup) {
         Uri uri = null;
         if (!preset.hasModifications()) {
@@ -390,6 +440,28 @@ public class SaveImage {
             }
         }
 
+        // Presets whose filters only look at pixels close to the one they
+        // compute are rendered by bands, on all the cores, without loading
+        // the whole image.
+        if (sizeFactor == 1f) {
+            TiledRenderer renderer = new TiledRenderer(mContext, newSourceUri, preset);
+            if (renderer.canRender()) {
+                updateProgress();
+                Object xmp = getPanoramaXMPData(newSourceUri, preset);
+                ExifInterface exif = getExifData(newSourceUri);
+                long time = System.currentTimeMillis();
+                updateExifData(exif, time);
+                updateProgress();
+                if (putExifData(mDestinationFile, exif, renderer, quality)) {
+                    updateProgress();
+                    uri = linkSavedImage(preset, newSourceUri, savedUri, xmp, flatten, time);
+                    updateProgress();
+                    return uri;
+                }
+                resetProgress();
+            }
+        }
+
         // Stopgap fix for low-memory devices.
         while (noBitmap) {
             try {
@@ -427,19 +499,7 @@ public class SaveImage {
 
                 // If we succeed in writing the bitmap as a jpeg, return a uri.
                 if (putExifData(mDestinationFile, exif, bitmap, quality)) {
-                    putPanoramaXMPData(mDestinationFile, xmp);
-                    // mDestinationFile will save the newSourceUri info in the XMP.
-                    if (!flatten) {
-                        XmpPresets.writeFilterXMP(mContext, newSourceUri,
-                                mDestinationFile, preset);
-                        uri = updateFile(mContext, savedUri, mDestinationFile, time);
-
-                    } else {
-
-                        ContentValues values = getContentValues(mContext, mSelectedImageUri, mDestinationFile, time);
-                        Object result = mContext.getContentResolver().insert(
-                                Images.Media.EXTERNAL_CONTENT_URI, values);
-                    }
+                    uri = linkSavedImage(preset, newSourceUri, savedUri, xmp, flatten, time);
                 }
                 updateProgress();
 
@@ -24,9 +24,9 @@ public class FadeInTexture extends FadeTexture implements Texture {
     private static final String TAG = "FadeInTexture";
 
     private final int mColor;
-    private final TiledTexture mTexture;
+    private final AsyncTexture mTexture;
 
-    public FadeInTexture(int color, TiledTexture texture) {
+    public FadeInTexture(int color, AsyncTexture texture) {
         super(texture.getWidth(), texture.getHeight(), texture.isOpaque());
         mColor = color;
         mTexture = texture;
@@ -180,6 +180,23 @@ public interface GLCanvas {
             Bitmap bitmap,
             int format, int type);
 
+    /**
+     * Calls glTexSubImage2D to upload pixels from a buffer to the texture.
+     *
+     * @param texture The target texture to write to.
+     * @param xOffset Specifies a texel offset in the x direction within the
+     *            texture array.
+     * @param yOffset Specifies a texel offset in the y direction within the
+     *            texture array.
+     * @param width The width of the pixel rectangle.
+     * @param height The height of the pixel rectangle.
+     * @param format The format of the pixels (e.g. GL_RGBA)
+     * @param type The type of the pixels (e.g. GL_UNSIGNED_BYTE)
+     * @param pixels The pixels, row by row from the top.
+     */
+    public abstract void texSubImage2D(BasicTexture texture, int xOffset, int yOffset,
+            int width, int height, int format, int type, java.nio.Buffer pixels);
+
     /**
      * Generates buffers and uploads the buffer data.
      *
@@ -965,6 +965,15 @@ public class GLES11Canvas implements GLCanvas {
         GLUtils.texSubImage2D(target, 0, xOffset, yOffset, bitmap, format, type);
     }
 
+    @Override
+    public void texSubImage2D(BasicTexture texture, int xOffset, int yOffset,
+            int width, int height, int format, int type, Buffer pixels) {
+        int target = texture.getTarget();
+        mGL.glBindTexture(target, texture.getId());
+        mGL.glTexSubImage2D(target, 0, xOffset, yOffset, width, height,
+                format, type, pixels);
+    }
+
     @Override
     public int uploadBuffer(FloatBuffer buf) {
         return uploadBuffer(buf, Float.SIZE / Byte.SIZE);
@@ -938,6 +938,17 @@ public class GLES20Canvas implements GLCanvas {
         GLUtils.texSubImage2D(target, 0, xOffset, yOffset, bitmap, format, type);
     }
 
+    @Override
+    public void texSubImage2D(BasicTexture texture, int xOffset, int yOffset,
+            int width, int height, int format, int type, Buffer pixels) {
+        int target = texture.getTarget();
+        GLES20.glBindTexture(target, texture.getId());
+        checkError();
+        GLES20.glTexSubImage2D(target, 0, xOffset, yOffset, width, height,
+                format, type, pixels);
+        checkError();
+    }
+
     @Override
     public int uploadBuffer(FloatBuffer buf) {
         return uploadBuffer(buf, FLOAT_SIZE);
@@ -26,6 +26,9 @@ package com.android.gallery3d.glrenderer;
 // Texture
 // -- ColorTexture
 // -- FadeInTexture
+// -- AsyncTexture
+//    -- TiledTexture
+//    -- ThumbnailAtlas.Region
 // -- BasicTexture
 //    -- UploadedTexture
 //       -- BitmapTexture
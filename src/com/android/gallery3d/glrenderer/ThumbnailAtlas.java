@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.glrenderer;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.RectF;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.ui.GLRoot;
+import com.android.gallery3d.ui.GLRoot.OnGLIdleListener;
+import com.android.gallery3d.util.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import javax.microedition.khronos.opengles.GL11;
+
+// ThumbnailAtlas packs small bitmaps into a few large textures (pages), so
+// a grid of thumbnails needs a handful of textures instead of one or more
+// for each thumbnail.
+//
+// A page is divided into square cells which hold a bitmap of at most
+// cellSize x cellSize pixels plus a border of BORDER_SIZE on each side. The
+// border repeats the edge pixels of the bitmap, so the linear filtering
+// near the edges doesn't pick up the neighbouring cell.
+//
+// Each bitmap added to the atlas is a Region. A Region gets a cell when it
+// is uploaded, which happens on the GL thread when it is idle (as many
+// regions as fit in the idle slice). If all the cells are taken, the cell
+// drawn least recently is taken over; its region uploads again the next
+// time it is asked whether it is ready.
+//
+// The pixels are staged in one direct buffer, reused for every upload: the
+// bitmap is copied to the end of it, then its rows are copied, with the
+// border, to the start, and the result is uploaded with one texSubImage2D.
+public class ThumbnailAtlas implements OnGLIdleListener {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ThumbnailAtlas";
+
+    private static final int PAGE_SIZE = 2048;
+    private static final int BORDER_SIZE = 1;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private static final Metrics.Histogram sUploadTime =
+            Metrics.histogram("texture.atlas_upload");
+    private static final Metrics.Counter sEvictionCount =
+            Metrics.counter("texture.atlas_evictions");
+
+    private final GLRoot mGLRoot;
+    private final int mCellSize;
+    private final int mCellStride;
+    private final int mCellsPerRow;
+    private final int mCellsPerPage;
+
+    private final Page[] mPages;
+    private final Region[] mCellOwners;
+    private final long[] mCellLastUse;
+    private final int[] mFreeCells;
+    private int mFreeCount;
+    private long mUseCount;
+
+    private final ArrayDeque<Region> mUploadQueue = new ArrayDeque<Region>();
+    private boolean mIsQueued = false;
+    private ByteBuffer mStagingBuffer;
+
+    private final RectF mSrcRect = new RectF();
+    private final RectF mDestRect = new RectF();
+
+    private static class Page extends BasicTexture {
+        // Incremented each time the page gets a new GL texture, which
+        // invalidates the content uploaded to the previous one.
+        public int generation;
+
+        public Page(int width, int height) {
+            setSize(width, height);
+        }
+
+        public void prepare(GLCanvas canvas) {
+            mId = canvas.getGLId().generateTexture();
+            canvas.initializeTextureSize(this, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE);
+            canvas.setTextureParameters(this);
+            mState = STATE_LOADED;
+            setAssociatedCanvas(canvas);
+            ++generation;
+        }
+
+        @Override
+        protected boolean onBind(GLCanvas canvas) {
+            // The regions only draw pages they have been uploaded to.
+            return isLoaded();
+        }
+
+        @Override
+        protected int getTarget() {
+            return GL11.GL_TEXTURE_2D;
+        }
+
+        @Override
+        public boolean isOpaque() {
+            return false;
+        }
+    }
+
+    public class Region implements AsyncTexture {
+        private final int mWidth;
+        private final int mHeight;
+        private Bitmap mBitmap;
+        private int mCell = -1;
+        // The generation of the page when the region was uploaded to it.
+        private int mGeneration;
+        private boolean mQueued;
+
+        private Region(Bitmap bitmap) {
+            mBitmap = bitmap;
+            mWidth = bitmap.getWidth();
+            mHeight = bitmap.getHeight();
+        }
+
+        @Override
+        public boolean isReady() {
+            synchronized (ThumbnailAtlas.this) {
+                if (mBitmap == null) return false;
+                if (isUploaded(this)) return true;
+                // The cell was taken over or the page was lost.
+                if (!mQueued) queueUpload(this);
+                return false;
+            }
+        }
+
+        @Override
+        public void recycle() {
+            synchronized (ThumbnailAtlas.this) {
+                // A queued region is skipped when it is dequeued.
+                mBitmap = null;
+                freeCell(this);
+            }
+        }
+
+        @Override
+        public void draw(GLCanvas canvas, int x, int y, int w, int h) {
+            synchronized (ThumbnailAtlas.this) {
+                if (!isUploaded(this)) return;
+                setRects(this, x, y, w, h);
+                canvas.drawTexture(getPage(mCell), mSrcRect, mDestRect);
+            }
+        }
+
+        @Override
+        public void drawMixed(GLCanvas canvas, int color, float ratio,
+                int x, int y, int w, int h) {
+            synchronized (ThumbnailAtlas.this) {
+                if (!isUploaded(this)) return;
+                setRects(this, x, y, w, h);
+                canvas.drawMixed(getPage(mCell), color, ratio, mSrcRect, mDestRect);
+            }
+        }
+
+        @Override
+        public void draw(GLCanvas canvas, int x, int y) {
+            draw(canvas, x, y, mWidth, mHeight);
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public boolean isOpaque() {
+            return false;
+        }
+    }
+
+    // Creates an atlas for the given number of bitmaps of at most
+    // cellSize x cellSize pixels.
+    public ThumbnailAtlas(GLRoot glRoot, int cellSize, int capacity) {
+        mGLRoot = glRoot;
+        mCellSize = cellSize;
+        mCellStride = cellSize + 2 * BORDER_SIZE;
+        mCellsPerRow = PAGE_SIZE / mCellStride;
+        mCellsPerPage = mCellsPerRow * mCellsPerRow;
+        if (mCellsPerPage == 0) capacity = 0;
+
+        int pageCount = capacity == 0 ? 0 : (capacity - 1) / mCellsPerPage + 1;
+        mPages = new Page[pageCount];
+        mCellOwners = new Region[capacity];
+        mCellLastUse = new long[capacity];
+        mFreeCells = new int[capacity];
+        // Hand out the cells in order, so a page is only created when the
+        // ones before it are full.
+        for (int i = 0; i < capacity; ++i) {
+            mFreeCells[i] = capacity - 1 - i;
+        }
+        mFreeCount = capacity;
+    }
+
+    // Returns a region for the bitmap, or null if the bitmap can't be put
+    // in this atlas (it is too large or not ARGB_8888). The bitmap must not
+    // be changed or recycled before the region is.
+    public synchronized Region add(Bitmap bitmap) {
+        if (mFreeCells.length == 0
+                || bitmap.getWidth() > mCellSize
+                || bitmap.getHeight() > mCellSize
+                || bitmap.getConfig() != Config.ARGB_8888) {
+            return null;
+        }
+        return new Region(bitmap);
+    }
+
+    // Puts the region at the end of the upload queue, unless it is already
+    // queued or uploaded.
+    public synchronized void upload(Region region) {
+        if (region.mQueued || region.mBitmap == null || isUploaded(region)) {
+            return;
+        }
+        queueUpload(region);
+    }
+
+    public synchronized void clearUploads() {
+        for (Region region : mUploadQueue) {
+            region.mQueued = false;
+        }
+        mUploadQueue.clear();
+    }
+
+    // Frees the pages and the staging buffer. The regions still alive
+    // upload again when they are asked whether they are ready.
+    public synchronized void freeResources() {
+        clearUploads();
+        for (int i = 0, n = mPages.length; i < n; ++i) {
+            if (mPages[i] != null) mPages[i].recycle();
+        }
+        mStagingBuffer = null;
+    }
+
+    private void queueUpload(Region region) {
+        region.mQueued = true;
+        mUploadQueue.addLast(region);
+        if (mIsQueued) return;
+        mIsQueued = true;
+        mGLRoot.addOnGLIdleListener(this);
+    }
+
+    @Override
+    public boolean onGLIdle(GLCanvas canvas, boolean renderRequested, long dueTime) {
+        synchronized (this) {
+            long now = System.nanoTime();
+            long uploadTime = 0;
+            boolean uploaded = false;
+            while (now + uploadTime < dueTime && !mUploadQueue.isEmpty()) {
+                Region region = mUploadQueue.removeFirst();
+                region.mQueued = false;
+                if (region.mBitmap == null || isUploaded(region)) continue;
+                uploadRegion(canvas, region);
+                uploaded = true;
+                long t1 = System.nanoTime();
+                sUploadTime.record((t1 - now) / 1000);
+                uploadTime = t1 - now;
+                now = t1;
+            }
+            if (uploaded) mGLRoot.requestRender();
+            mIsQueued = !mUploadQueue.isEmpty();
+
+            // return true to keep this listener in the queue
+            return mIsQueued;
+        }
+    }
+
+    private boolean isUploaded(Region region) {
+        if (region.mCell < 0) return false;
+        Page page = mPages[region.mCell / mCellsPerPage];
+        return page.isLoaded() && page.generation == region.mGeneration;
+    }
+
+    private void uploadRegion(GLCanvas canvas, Region region) {
+        Bitmap bitmap = region.mBitmap;
+        if (region.mCell < 0) allocateCell(region);
+        Page page = getPage(region.mCell);
+        if (!page.isLoaded()) page.prepare(canvas);
+
+        int width = region.mWidth + 2 * BORDER_SIZE;
+        int height = region.mHeight + 2 * BORDER_SIZE;
+        ByteBuffer pixels = stagePixels(bitmap);
+        canvas.texSubImage2D(page, getCellX(region.mCell), getCellY(region.mCell),
+                width, height, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, pixels);
+        region.mGeneration = page.generation;
+    }
+
+    // Copies the pixels of the bitmap, with the border, to the start of the
+    // staging buffer. Returns the buffer positioned at the first pixel.
+    private ByteBuffer stagePixels(Bitmap bitmap) {
+        int cellBytes = mCellStride * mCellStride * BYTES_PER_PIXEL;
+        if (mStagingBuffer == null) {
+            mStagingBuffer = ByteBuffer.allocateDirect(
+                    cellBytes + mCellSize * mCellSize * BYTES_PER_PIXEL);
+        }
+        ByteBuffer buffer = mStagingBuffer;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int rowBytes = width * BYTES_PER_PIXEL;
+        int stride = (width + 2 * BORDER_SIZE) * BYTES_PER_PIXEL;
+
+        buffer.clear();
+        buffer.position(cellBytes);
+        bitmap.copyPixelsToBuffer(buffer);
+
+        ByteBuffer src = buffer.duplicate();
+        buffer.clear();
+        for (int y = 0; y < height; ++y) {
+            int start = cellBytes + y * rowBytes;
+            src.limit(start + rowBytes).position(start);
+            int rowStart = (y + BORDER_SIZE) * stride;
+            buffer.position(rowStart + BORDER_SIZE * BYTES_PER_PIXEL);
+            buffer.put(src);
+            buffer.putInt(rowStart, buffer.getInt(rowStart + BYTES_PER_PIXEL));
+            buffer.putInt(rowStart + stride - BYTES_PER_PIXEL,
+                    buffer.getInt(rowStart + stride - 2 * BYTES_PER_PIXEL));
+        }
+        copyRow(buffer, BORDER_SIZE, 0, stride);
+        copyRow(buffer, height, height + BORDER_SIZE, stride);
+
+        buffer.position(0);
+        buffer.limit((height + 2 * BORDER_SIZE) * stride);
+        return buffer;
+    }
+
+    private static void copyRow(ByteBuffer buffer, int from, int to, int stride) {
+        ByteBuffer src = buffer.duplicate();
+        src.limit((from + 1) * stride).position(from * stride);
+        buffer.position(to * stride);
+        buffer.put(src);
+    }
+
+    private void allocateCell(Region region) {
+        int cell;
+        if (mFreeCount > 0) {
+            cell = mFreeCells[--mFreeCount];
+        } else {
+            // Take over the cell drawn least recently.
+            cell = 0;
+            for (int i = 1, n = mCellLastUse.length; i < n; ++i) {
+                if (mCellLastUse[i] < mCellLastUse[cell]) cell = i;
+            }
+            Region owner = mCellOwners[cell];
+            sEvictionCount.increment();
+            owner.mCell = -1;
+            owner.mGeneration = 0;
+        }
+        mCellOwners[cell] = region;
+        mCellLastUse[cell] = ++mUseCount;
+        region.mCell = cell;
+    }
+
+    private void freeCell(Region region) {
+        int cell = region.mCell;
+        if (cell < 0) return;
+        mCellOwners[cell] = null;
+        mFreeCells[mFreeCount++] = cell;
+        region.mCell = -1;
+        region.mGeneration = 0;
+    }
+
+    private Page getPage(int cell) {
+        int index = cell / mCellsPerPage;
+        Page page = mPages[index];
+        if (page == null) {
+            // The last page only needs to be as tall as its rows of cells.
+            int rows = mCellsPerRow;
+            if (index == mPages.length - 1) {
+                int cells = mCellOwners.length - index * mCellsPerPage;
+                rows = Math.min(rows, (cells - 1) / mCellsPerRow + 1);
+            }
+            page = new Page(PAGE_SIZE, Utils.nextPowerOf2(rows * mCellStride));
+            mPages[index] = page;
+        }
+        return page;
+    }
+
+    private int getCellX(int cell) {
+        return (cell % mCellsPerPage) % mCellsPerRow * mCellStride;
+    }
+
+    private int getCellY(int cell) {
+        return (cell % mCellsPerPage) / mCellsPerRow * mCellStride;
+    }
+
+    private void setRects(Region region, int x, int y, int w, int h) {
+        mCellLastUse[region.mCell] = ++mUseCount;
+        float left = getCellX(region.mCell) + BORDER_SIZE;
+        float top = getCellY(region.mCell) + BORDER_SIZE;
+        mSrcRect.set(left, top, left + region.mWidth, top + region.mHeight);
+        mDestRect.set(x, y, x + w, y + h);
+    }
+}
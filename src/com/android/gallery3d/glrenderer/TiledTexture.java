@@ -27,6 +27,7 @@ import android.graphics.RectF;
 
 import com.android.gallery3d.ui.GLRoot;
 import com.android.gallery3d.ui.GLRoot.OnGLIdleListener;
+import com.android.gallery3d.util.Metrics;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -35,12 +36,15 @@ import java.util.ArrayList;
 // split into tiles. By doing so, we may increase the time required to
 // upload the whole bitmap but we reduce the time of uploading each tile
 // so it make the animation more smooth and prevents jank.
-public class TiledTexture implements Texture {
+public class TiledTexture implements AsyncTexture {
     private static final int CONTENT_SIZE = 254;
     private static final int BORDER_SIZE = 1;
     private static final int TILE_SIZE = CONTENT_SIZE + 2 * BORDER_SIZE;
     private static final int INIT_CAPACITY = 8;
 
+    private static final Metrics.Histogram sTileUploadTime =
+            Metrics.histogram("texture.tile_upload");
+
     private static Tile sFreeTileHead = null;
     private static final Object sFreeTileLock = new Object();
 
@@ -95,6 +99,7 @@ public class TiledTexture implements Texture {
                         mGlRoot.requestRender();
                     }
                     long t1 = System.nanoTime();
+                    sTileUploadTime.record((t1 - now) / 1000);
                     uploadTime = t1 - now;
                     now = t1;
                 }
@@ -216,11 +221,13 @@ public class TiledTexture implements Texture {
         mTiles = list.toArray(new Tile[list.size()]);
     }
 
+    @Override
     public boolean isReady() {
         return mUploadIndex == mTiles.length;
     }
 
     // Can be called in UI thread.
+    @Override
     public void recycle() {
         synchronized (mTiles) {
             for (int i = 0, n = mTiles.length; i < n; ++i) {
@@ -270,6 +277,7 @@ public class TiledTexture implements Texture {
 
     // Draws a mixed color of this texture and a specified color onto the
     // a rectangle. The used color is: from * (1 - ratio) + to * ratio.
+    @Override
     public void drawMixed(GLCanvas canvas, int color, float ratio,
             int x, int y, int width, int height) {
         RectF src = mSrcRect;
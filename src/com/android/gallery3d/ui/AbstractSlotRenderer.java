@@ -43,6 +43,11 @@ public abstract class AbstractSlotRenderer implements SlotView.SlotRenderer {
         mFrameSelected = new NinePatchTexture(context, R.drawable.grid_selected);
     }
 
+    @Override
+    public void onScrollVelocityChanged(float velocity) {
+        // Do nothing
+    }
+
     protected void drawContent(GLCanvas canvas,
             Texture content, int width, int height, int rotation) {
         canvas.save(GLCanvas.SAVE_FLAG_MATRIX);
@@ -34,12 +34,19 @@ import com.android.gallery3d.glrenderer.TextureUploader;
 import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
+import com.android.gallery3d.util.JobLimiter;
 import com.android.gallery3d.util.ThreadPool;
 
 public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
     private static final String TAG = "AlbumSetSlidingWindow";
     private static final int MSG_UPDATE_ALBUM_ENTRY = 1;
 
+    // Cover and label jobs go through an adaptive JobLimiter, like the
+    // thumbnails in AlbumSlidingWindow.
+    private static final int JOB_LIMIT_MIN = 2;
+    private static final int JOB_LIMIT_MAX =
+            Math.max(JOB_LIMIT_MIN, Runtime.getRuntime().availableProcessors());
+
     public static interface Listener {
         public void onSizeChanged(int size);
         public void onContentChanged();
@@ -58,7 +65,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
 
     private final AlbumSetEntry mData[];
     private final SynchronizedHandler mHandler;
-    private final ThreadPool mThreadPool;
+    private final JobLimiter mThreadPool;
     private final AlbumLabelMaker mLabelMaker;
     private final String mLoadingText;
 
@@ -97,7 +104,8 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         mSource = source;
         mData = new AlbumSetEntry[cacheSize];
         mSize = source.size();
-        mThreadPool = activity.getThreadPool();
+        mThreadPool = new JobLimiter(
+                activity.getThreadPool(), JOB_LIMIT_MIN, JOB_LIMIT_MAX);
 
         mLabelMaker = new AlbumLabelMaker(activity.getAndroidContext(), labelSpec);
         mLoadingText = activity.getAndroidContext().getString(R.string.loading);
@@ -133,6 +141,17 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         return slotIndex >= mActiveStart && slotIndex < mActiveEnd;
     }
 
+    // Returns the ThreadPool priority for loading the content of a slot:
+    // visible slots first, then the slots within a screen of them.
+    private int getSlotPriority(int slotIndex) {
+        if (isActiveSlot(slotIndex)) return ThreadPool.PRIORITY_VISIBLE;
+        int span = mActiveEnd - mActiveStart;
+        if (slotIndex >= mActiveStart - span && slotIndex < mActiveEnd + span) {
+            return ThreadPool.PRIORITY_NEAR_VISIBLE;
+        }
+        return ThreadPool.PRIORITY_PREFETCH;
+    }
+
     private void setContentWindow(int contentStart, int contentEnd) {
         if (contentStart == mContentStart && contentEnd == mContentEnd) return;
 
@@ -429,7 +448,8 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(mMediaItem.requestImage(
-                    MediaItem.TYPE_MICROTHUMBNAIL), l);
+                    MediaItem.TYPE_MICROTHUMBNAIL), l,
+                    getSlotPriority(mSlotIndex));
         }
 
         @Override
@@ -493,7 +513,8 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(mLabelMaker.requestLabel(
-                    mTitle, String.valueOf(mTotalCount), mSourceType), l);
+                    mTitle, String.valueOf(mTotalCount), mSourceType), l,
+                    getSlotPriority(mSlotIndex));
         }
 
         @Override
@@ -18,6 +18,7 @@ package com.android.gallery3d.ui;
 
 import android.graphics.Bitmap;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.android.gallery3d.app.AbstractGalleryActivity;
 import com.android.gallery3d.app.AlbumDataLoader;
@@ -25,19 +26,50 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaObject.PanoramaSupportCallback;
+import com.android.gallery3d.data.MediaSet;
 import com.android.gallery3d.data.Path;
+import com.android.gallery3d.glrenderer.AsyncTexture;
 import com.android.gallery3d.glrenderer.Texture;
+import com.android.gallery3d.glrenderer.ThumbnailAtlas;
 import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.JobLimiter;
+import com.android.gallery3d.util.Metrics;
+import com.android.gallery3d.util.ThreadPool;
+
+import java.util.ArrayList;
 
 public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     @SuppressWarnings("unused")
     private static final String TAG = "AlbumSlidingWindow";
 
     private static final int MSG_UPDATE_ENTRY = 0;
-    private static final int JOB_LIMIT = 2;
+    // The JobLimiter adapts the number of concurrent thumbnail jobs between
+    // these bounds; see JobLimiter.
+    private static final int JOB_LIMIT_MIN = 2;
+    private static final int JOB_LIMIT_MAX =
+            Math.max(JOB_LIMIT_MIN, Runtime.getRuntime().availableProcessors());
+
+    // Below this velocity (in slots per second) the window is considered at
+    // rest: the content window is centered on the active window and every
+    // slot in it is loaded.
+    private static final float MIN_SCROLL_VELOCITY = 8;
+    // While scrolling, the content window reaches this far (in seconds of
+    // scrolling) ahead of the active window, keeping at least
+    // 1 / MIN_BEHIND_FRACTION of the spare slots behind it.
+    private static final float LOOKAHEAD_SECONDS = 1;
+    private static final int MIN_BEHIND_FRACTION = 8;
+    // The initial and maximum estimate of the time from requesting a
+    // thumbnail to having it decoded, in milliseconds.
+    private static final int INITIAL_DECODE_TIME = 50;
+    private static final int MAX_DECODE_TIME = 1000;
+
+    // From requesting a thumbnail to having it, including the queueing.
+    private static final Metrics.Histogram sThumbnailTime =
+            Metrics.histogram("album.thumbnail_wait");
+    private static final Metrics.Counter sSkippedCount =
+            Metrics.counter("album.requests_skipped_by_scroll");
 
     public static interface Listener {
         public void onSizeChanged(int size);
@@ -51,7 +83,7 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         public int rotation;
         public int mediaType;
         public boolean isWaitDisplayed;
-        public TiledTexture bitmapTexture;
+        public AsyncTexture bitmapTexture;
         public Texture content;
         private BitmapLoader contentLoader;
         private PanoSupportListener mPanoSupportListener;
@@ -62,6 +94,9 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     private final SynchronizedHandler mHandler;
     private final JobLimiter mThreadPool;
     private final TiledTexture.Uploader mTileUploader;
+    // Holds the thumbnails of the content window. Those which don't fit in
+    // it (not micro thumbnails) get TiledTextures.
+    private final ThumbnailAtlas mAtlas;
 
     private int mSize;
 
@@ -76,6 +111,11 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     private int mActiveRequestCount = 0;
     private boolean mIsActive = false;
 
+    // In slots per second, negative when scrolling towards lower indexes.
+    private float mScrollVelocity = 0;
+    // A moving average of the time taken by the thumbnail requests.
+    private volatile int mDecodeTime = INITIAL_DECODE_TIME;
+
     private class PanoSupportListener implements PanoramaSupportCallback {
         public final AlbumEntry mEntry;
         public PanoSupportListener (AlbumEntry entry) {
@@ -103,8 +143,11 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
             }
         };
 
-        mThreadPool = new JobLimiter(activity.getThreadPool(), JOB_LIMIT);
+        mThreadPool = new JobLimiter(
+                activity.getThreadPool(), JOB_LIMIT_MIN, JOB_LIMIT_MAX);
         mTileUploader = new TiledTexture.Uploader(activity.getGLRoot());
+        mAtlas = new ThumbnailAtlas(activity.getGLRoot(),
+                MediaItem.getTargetSize(MediaItem.TYPE_MICROTHUMBNAIL), cacheSize);
     }
 
     public void setListener(Listener listener) {
@@ -123,6 +166,75 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         return slotIndex >= mActiveStart && slotIndex < mActiveEnd;
     }
 
+    // Returns the ThreadPool priority for loading the content of a slot:
+    // visible slots first, then the slots within a screen of them. While
+    // scrolling, the near slots are those the scroll is heading to, up to
+    // LOOKAHEAD_SECONDS away.
+    private int getSlotPriority(int slotIndex) {
+        if (isActiveSlot(slotIndex)) return ThreadPool.PRIORITY_VISIBLE;
+        int span = mActiveEnd - mActiveStart;
+        int nearStart = mActiveStart - span;
+        int nearEnd = mActiveEnd + span;
+        if (isScrolling()) {
+            int lookahead = span + getLookahead();
+            if (mScrollVelocity > 0) {
+                nearStart = mActiveEnd;
+                nearEnd = mActiveEnd + lookahead;
+            } else {
+                nearStart = mActiveStart - lookahead;
+                nearEnd = mActiveStart;
+            }
+        }
+        if (slotIndex >= nearStart && slotIndex < nearEnd) {
+            return ThreadPool.PRIORITY_NEAR_VISIBLE;
+        }
+        return ThreadPool.PRIORITY_PREFETCH;
+    }
+
+    private boolean isScrolling() {
+        return Math.abs(mScrollVelocity) >= MIN_SCROLL_VELOCITY;
+    }
+
+    // The number of slots scrolled by in LOOKAHEAD_SECONDS.
+    private int getLookahead() {
+        return Math.round(Math.abs(mScrollVelocity) * LOOKAHEAD_SECONDS);
+    }
+
+    // Returns true if the slot will have left the active window (or already
+    // has) by the time a thumbnail requested now is decoded, assuming the
+    // scroll keeps its velocity.
+    private boolean willScrollPast(int slotIndex) {
+        if (!isScrolling()) return false;
+        int slots = mScrollVelocity > 0
+                ? slotIndex - mActiveStart + 1
+                : mActiveEnd - slotIndex;
+        return slots * 1000f < Math.abs(mScrollVelocity) * mDecodeTime;
+    }
+
+    private void recordDecodeTime(long time) {
+        sThumbnailTime.record(time * 1000);
+        int decodeTime = (int) Math.min(time, MAX_DECODE_TIME);
+        mDecodeTime += (decodeTime - mDecodeTime) / 8;
+    }
+
+    // Returns the start of the content window for the active window. At rest
+    // the content window is centered on the active window. While scrolling,
+    // the spare slots go ahead of it, as many as are scrolled by in
+    // LOOKAHEAD_SECONDS (beyond the half they get at rest).
+    private int getContentStart(int start, int end) {
+        int length = mData.length;
+        int contentStart = (start + end) / 2 - length / 2;
+        if (isScrolling()) {
+            int spare = length - (end - start);
+            int ahead = Math.min(spare - spare / MIN_BEHIND_FRACTION,
+                    spare / 2 + getLookahead());
+            contentStart = mScrollVelocity > 0
+                    ? start - (spare - ahead)
+                    : start - ahead;
+        }
+        return Utils.clamp(contentStart, 0, Math.max(0, mSize - length));
+    }
+
     private void setContentWindow(int contentStart, int contentEnd) {
         if (contentStart == mContentStart && contentEnd == mContentEnd) return;
 
@@ -170,41 +282,67 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         mActiveStart = start;
         mActiveEnd = end;
 
-        int contentStart = Utils.clamp((start + end) / 2 - data.length / 2,
-                0, Math.max(0, mSize - data.length));
+        int contentStart = getContentStart(start, end);
         int contentEnd = Math.min(contentStart + data.length, mSize);
         setContentWindow(contentStart, contentEnd);
         updateTextureUploadQueue();
         if (mIsActive) updateAllImageRequests();
     }
 
+    // Sets the scroll velocity, in slots per second. While scrolling, the
+    // content window moves ahead of the active window, the slots ahead are
+    // loaded first, and the slots which would be scrolled past before they
+    // are loaded are skipped. When the scroll stops the skipped slots are
+    // loaded, but the content window stays where it is until the active
+    // window moves.
+    public void setScrollVelocity(float velocity) {
+        boolean wasScrolling = isScrolling();
+        mScrollVelocity = velocity;
+        if (isScrolling()) {
+            setActiveWindow(mActiveStart, mActiveEnd);
+        } else if (wasScrolling) {
+            updateTextureUploadQueue();
+            if (mIsActive) updateAllImageRequests();
+        }
+    }
+
     private void uploadBgTextureInSlot(int index) {
         if (index < mContentEnd && index >= mContentStart) {
             AlbumEntry entry = mData[index % mData.length];
             if (entry.bitmapTexture != null) {
-                mTileUploader.addTexture(entry.bitmapTexture);
+                uploadTexture(entry.bitmapTexture);
             }
         }
     }
 
+    private void uploadTexture(AsyncTexture texture) {
+        if (texture instanceof ThumbnailAtlas.Region) {
+            mAtlas.upload((ThumbnailAtlas.Region) texture);
+        } else {
+            mTileUploader.addTexture((TiledTexture) texture);
+        }
+    }
+
     private void updateTextureUploadQueue() {
         if (!mIsActive) return;
         mTileUploader.clear();
+        mAtlas.clearUploads();
 
         // add foreground textures
         for (int i = mActiveStart, n = mActiveEnd; i < n; ++i) {
             AlbumEntry entry = mData[i % mData.length];
             if (entry.bitmapTexture != null) {
-                mTileUploader.addTexture(entry.bitmapTexture);
+                uploadTexture(entry.bitmapTexture);
             }
         }
 
-        // add background textures
+        // add background textures, ahead of the scroll first
+        boolean backward = mScrollVelocity < 0;
         int range = Math.max(
                 (mContentEnd - mActiveEnd), (mActiveStart - mContentStart));
         for (int i = 0; i < range; ++i) {
-            uploadBgTextureInSlot(mActiveEnd + i);
-            uploadBgTextureInSlot(mActiveStart - i - 1);
+            uploadBgTextureInSlot(backward ? mActiveStart - i - 1 : mActiveEnd + i);
+            uploadBgTextureInSlot(backward ? mActiveEnd + i : mActiveStart - i - 1);
         }
     }
 
@@ -213,12 +351,14 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     //         |---------|---------------|---------|
     //                   |<-  active  ->|
     //         |<-------- cached range ----------->|
+    // (mirrored when scrolling towards lower indexes)
     private void requestNonactiveImages() {
+        boolean backward = mScrollVelocity < 0;
         int range = Math.max(
                 (mContentEnd - mActiveEnd), (mActiveStart - mContentStart));
         for (int i = 0 ;i < range; ++i) {
-            requestSlotImage(mActiveEnd + i);
-            requestSlotImage(mActiveStart - 1 - i);
+            requestSlotImage(backward ? mActiveStart - 1 - i : mActiveEnd + i);
+            requestSlotImage(backward ? mActiveEnd + i : mActiveStart - 1 - i);
         }
     }
 
@@ -227,6 +367,10 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         if (slotIndex < mContentStart || slotIndex >= mContentEnd) return false;
         AlbumEntry entry = mData[slotIndex % mData.length];
         if (entry.content != null || entry.item == null) return false;
+        if (willScrollPast(slotIndex)) {
+            sSkippedCount.increment();
+            return false;
+        }
 
         // Set up the panorama callback
         entry.mPanoSupportListener = new PanoSupportListener(entry);
@@ -255,6 +399,7 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         AlbumEntry data[] = mData;
         int index = slotIndex % data.length;
         AlbumEntry entry = data[index];
+        if (entry == null) return;
         if (entry.contentLoader != null) entry.contentLoader.recycle();
         if (entry.bitmapTexture != null) entry.bitmapTexture.recycle();
         data[index] = null;
@@ -286,8 +431,9 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     }
 
     private class ThumbnailLoader extends BitmapLoader  {
-        private final int mSlotIndex;
+        private int mSlotIndex; // changed when the entry is moved
         private final MediaItem mItem;
+        private long mRequestTime;
 
         public ThumbnailLoader(int slotIndex, MediaItem item) {
             mSlotIndex = slotIndex;
@@ -296,12 +442,17 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
 
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
+            mRequestTime = SystemClock.uptimeMillis();
             return mThreadPool.submit(
-                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this);
+                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this,
+                    getSlotPriority(mSlotIndex));
         }
 
         @Override
         protected void onLoadComplete(Bitmap bitmap) {
+            if (bitmap != null) {
+                recordDecodeTime(SystemClock.uptimeMillis() - mRequestTime);
+            }
             mHandler.obtainMessage(MSG_UPDATE_ENTRY, this).sendToTarget();
         }
 
@@ -309,16 +460,18 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
             Bitmap bitmap = getBitmap();
             if (bitmap == null) return; // error or recycled
             AlbumEntry entry = mData[mSlotIndex % mData.length];
-            entry.bitmapTexture = new TiledTexture(bitmap);
+            AsyncTexture texture = mAtlas.add(bitmap);
+            if (texture == null) texture = new TiledTexture(bitmap);
+            entry.bitmapTexture = texture;
             entry.content = entry.bitmapTexture;
 
             if (isActiveSlot(mSlotIndex)) {
-                mTileUploader.addTexture(entry.bitmapTexture);
+                uploadTexture(entry.bitmapTexture);
                 --mActiveRequestCount;
                 if (mActiveRequestCount == 0) requestNonactiveImages();
                 if (mListener != null) mListener.onContentChanged();
             } else {
-                mTileUploader.addTexture(entry.bitmapTexture);
+                uploadTexture(entry.bitmapTexture);
             }
         }
     }
@@ -345,6 +498,38 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         }
     }
 
+    @Override
+    public void onContentMoved(ArrayList<MediaSet.Change> changes) {
+        if (!mIsActive) return;
+
+        // Take the entries of the items still in the content window, with
+        // their thumbnails, to their new slots.
+        int start = mContentStart;
+        int n = mContentEnd - start;
+        AlbumEntry[] entries = new AlbumEntry[n];
+        for (int i = 0; i < n; ++i) {
+            int from = MediaSet.getIndexBefore(changes, start + i);
+            if (from < start || from >= start + n) continue;
+            entries[i] = mData[from % mData.length];
+            mData[from % mData.length] = null;
+        }
+        for (int i = start; i < start + n; ++i) {
+            freeSlotContent(i);
+        }
+        for (int i = 0; i < n; ++i) {
+            AlbumEntry entry = entries[i];
+            if (entry == null) {
+                prepareSlotContent(start + i);
+            } else {
+                mData[(start + i) % mData.length] = entry;
+                ((ThumbnailLoader) entry.contentLoader).mSlotIndex = start + i;
+            }
+        }
+        updateTextureUploadQueue();
+        updateAllImageRequests();
+        if (mListener != null) mListener.onContentChanged();
+    }
+
     public void resume() {
         mIsActive = true;
         TiledTexture.prepareResources();
@@ -361,5 +546,6 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             freeSlotContent(i);
         }
+        mAtlas.freeResources();
     }
 }
@@ -20,11 +20,11 @@ import com.android.gallery3d.app.AbstractGalleryActivity;
 import com.android.gallery3d.app.AlbumDataLoader;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.Path;
+import com.android.gallery3d.glrenderer.AsyncTexture;
 import com.android.gallery3d.glrenderer.ColorTexture;
 import com.android.gallery3d.glrenderer.FadeInTexture;
 import com.android.gallery3d.glrenderer.GLCanvas;
 import com.android.gallery3d.glrenderer.Texture;
-import com.android.gallery3d.glrenderer.TiledTexture;
 
 public class AlbumSlotRenderer extends AbstractSlotRenderer {
     @SuppressWarnings("unused")
@@ -94,8 +94,8 @@ public class AlbumSlotRenderer extends AbstractSlotRenderer {
     }
 
     private static Texture checkTexture(Texture texture) {
-        return (texture instanceof TiledTexture)
-                && !((TiledTexture) texture).isReady()
+        return (texture instanceof AsyncTexture)
+                && !((AsyncTexture) texture).isReady()
                 ? null
                 : texture;
     }
@@ -191,6 +191,13 @@ public class AlbumSlotRenderer extends AbstractSlotRenderer {
         }
     }
 
+    @Override
+    public void onScrollVelocityChanged(float velocity) {
+        if (mDataWindow != null) {
+            mDataWindow.setScrollVelocity(velocity);
+        }
+    }
+
     @Override
     public void onSlotSizeChanged(int width, int height) {
         // Do nothing
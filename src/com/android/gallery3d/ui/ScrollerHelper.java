@@ -62,6 +62,17 @@ public class ScrollerHelper {
         return mScroller.getCurrVelocity();
     }
 
+    /**
+     * Returns the velocity of the position in pixels per second: negative
+     * if the position is decreasing, 0 if the scroller is not moving.
+     */
+    public float getVelocity() {
+        if (mScroller.isFinished()) return 0;
+        float velocity = mScroller.getCurrVelocity();
+        if (Float.isNaN(velocity)) return 0;
+        return mScroller.getFinalX() < mScroller.getCurrX() ? -velocity : velocity;
+    }
+
     public void setPosition(int position) {
         mScroller.startScroll(
                 position, 0,    // startX, startY
@@ -41,6 +41,10 @@ public class SlotView extends GLView {
     public static final int RENDER_MORE_PASS = 1;
     public static final int RENDER_MORE_FRAME = 2;
 
+    // The renderer is told about a new scroll velocity when it differs from
+    // the last one told by more than this ratio.
+    private static final float VELOCITY_CHANGE_RATIO = 0.25f;
+
     public interface Listener {
         public void onDown(int index);
         public void onUp(boolean followedByLongPress);
@@ -62,6 +66,9 @@ public class SlotView extends GLView {
         public void onVisibleRangeChanged(int visibleStart, int visibleEnd);
         public void onSlotSizeChanged(int width, int height);
         public int renderSlot(GLCanvas canvas, int index, int pass, int width, int height);
+        // The velocity is in slots per second, negative when the visible
+        // slot indexes are decreasing.
+        public void onScrollVelocityChanged(float velocity);
     }
 
     private final GestureDetector mGestureDetector;
@@ -75,6 +82,7 @@ public class SlotView extends GLView {
     private SlotAnimation mAnimation = null;
     private final Layout mLayout = new Layout();
     private int mStartIndex = INDEX_NONE;
+    private float mSlotVelocity = 0;
 
     // whether the down action happened while the view is scrolling.
     private boolean mDownInScrolling;
@@ -108,6 +116,7 @@ public class SlotView extends GLView {
 
     public void setSlotRenderer(SlotRenderer slotDrawer) {
         mRenderer = slotDrawer;
+        mSlotVelocity = 0;
         if (mRenderer != null) {
             mRenderer.onSlotSizeChanged(mLayout.mSlotWidth, mLayout.mSlotHeight);
             mRenderer.onVisibleRangeChanged(getVisibleStart(), getVisibleEnd());
@@ -213,6 +222,19 @@ public class SlotView extends GLView {
         onScrollPositionChanged(position);
     }
 
+    private void updateScrollVelocity() {
+        if (mRenderer == null) return;
+        float velocity = mLayout.getSlotVelocity(mScroller.getVelocity());
+        float last = mSlotVelocity;
+        if (velocity == last) return;
+        if (velocity != 0 && last != 0 && (velocity > 0) == (last > 0)
+                && Math.abs(velocity - last) <= Math.abs(last) * VELOCITY_CHANGE_RATIO) {
+            return;
+        }
+        mSlotVelocity = velocity;
+        mRenderer.onScrollVelocityChanged(velocity);
+    }
+
     protected void onScrollPositionChanged(int newPosition) {
         int limit = mLayout.getScrollLimit();
         mListener.onScrollPositionChanged(newPosition, limit);
@@ -230,6 +252,7 @@ public class SlotView extends GLView {
             case MotionEvent.ACTION_DOWN:
                 mDownInScrolling = !mScroller.isFinished();
                 mScroller.forceFinished();
+                updateScrollVelocity();
                 break;
             case MotionEvent.ACTION_UP:
                 mPaper.onRelease();
@@ -271,6 +294,7 @@ public class SlotView extends GLView {
         more |= mLayout.advanceAnimation(animTime);
         int oldX = mScrollX;
         updateScrollPosition(mScroller.getPosition(), false);
+        updateScrollVelocity();
 
         boolean paperActive = false;
         if (mOverscrollEffect == OVERSCROLL_3D) {
@@ -658,6 +682,20 @@ public class SlotView extends GLView {
             return index >= mSlotCount ? INDEX_NONE : index;
         }
 
+        // Converts a velocity of the scroll position, in pixels per second,
+        // to a velocity of the slot indexes, in slots per second.
+        public float getSlotVelocity(float velocity) {
+            int unitSize = (mIsWide ? mSlotWidth : mSlotHeight) + mSlotGap;
+            if (velocity == 0 || unitSize <= 0) return 0;
+            float slots = velocity * mUnitCount / unitSize;
+            if (mIsWide && View.LAYOUT_DIRECTION_RTL == TextUtils
+                    .getLayoutDirectionFromLocale(Locale.getDefault())) {
+                // If RTL, the indexes decrease as the position increases.
+                slots = -slots;
+            }
+            return slots;
+        }
+
         public int getScrollLimit() {
             int limit = mIsWide ? mContentLength - mWidth : mContentLength - mHeight;
             return limit <= 0 ? 0 : limit;
@@ -21,6 +21,7 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.ShardedBlobCache;
 
 import java.io.File;
 import java.io.IOException;
@@ -31,6 +32,8 @@ public class CacheManager {
     private static final String KEY_CACHE_UP_TO_DATE = "cache-up-to-date";
     private static HashMap<String, BlobCache> sCacheMap =
             new HashMap<String, BlobCache>();
+    private static HashMap<String, ShardedBlobCache> sShardedCacheMap =
+            new HashMap<String, ShardedBlobCache>();
     private static boolean sOldCheckDone = false;
 
     // Return null when we cannot instantiate a BlobCache, e.g.:
@@ -61,6 +64,38 @@ public class CacheManager {
         }
     }
 
+    // Like getCache(), but the cache is split into shardCount independent
+    // BlobCaches so that it can be used by several threads with less
+    // contention. The maxEntries and maxBytes parameters are the totals.
+    // The data files are memory-mapped so that lookups do not need a read
+    // syscall. Any unsharded cache files left under the same name are removed.
+    public static ShardedBlobCache getShardedCache(Context context,
+            String filename, int shardCount, int maxEntries, int maxBytes,
+            int version) {
+        synchronized (sCacheMap) {
+            if (!sOldCheckDone) {
+                removeOldFilesIfNecessary(context);
+                sOldCheckDone = true;
+            }
+            ShardedBlobCache cache = sShardedCacheMap.get(filename);
+            if (cache == null) {
+                File cacheDir = context.getExternalCacheDir();
+                if (cacheDir != null) {
+                    String path = cacheDir.getAbsolutePath() + "/" + filename;
+                    BlobCache.deleteFiles(path);
+                    try {
+                        cache = new ShardedBlobCache(path, shardCount,
+                                maxEntries, maxBytes, false, version, true);
+                        sShardedCacheMap.put(filename, cache);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot instantiate cache!", e);
+                    }
+                }
+            }
+            return cache;
+        }
+    }
+
     // Removes the old files if the data is wiped.
     private static void removeOldFilesIfNecessary(Context context) {
         SharedPreferences pref = PreferenceManager
@@ -79,8 +114,10 @@ public class CacheManager {
             String prefix = cacheDir.getAbsolutePath() + "/";
 
             BlobCache.deleteFiles(prefix + "imgcache");
+            ShardedBlobCache.deleteFiles(prefix + "imgcache");
             BlobCache.deleteFiles(prefix + "rev_geocoding");
             BlobCache.deleteFiles(prefix + "bookmark");
+            BlobCache.deleteFiles(prefix + "time_clusters");
         }
     }
 }
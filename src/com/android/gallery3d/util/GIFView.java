@@ -88,7 +88,7 @@ public class GIFView extends ImageView implements GifAction {
 
     private void startDecode(InputStream is) {
         freeGifDecoder();
-        mGifDecoder = new GifDecoder(is, this);
+        mGifDecoder = new GifDecoder(is, this, GifDecoder.DEFAULT_WINDOW_SIZE);
         mGifDecoder.start();
     }
 
@@ -144,6 +144,10 @@ public class GIFView extends ImageView implements GifAction {
 
     public void parseOk(boolean parseStatus, int frameIndex) {
         if (parseStatus) {
+            if (frameIndex == -1) {
+                // the first frame can be drawn now
+                mRedrawHandler.sendEmptyMessage(0);
+            }
             //indicates the start of a new GIF
             if (mGifDecoder != null && frameIndex == -1
                     && mGifDecoder.getFrameCount() > 1) {
@@ -178,6 +182,9 @@ public class GIFView extends ImageView implements GifAction {
                     return;
                 }
                 GifFrame frame = mGifDecoder.next();
+                if (frame == null) {
+                    return;
+                }
                 mCurrentImage = frame.mImage;
 
                 Message msg = mRedrawHandler.obtainMessage();
@@ -4,8 +4,11 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class GifDecoder extends Thread {
 
@@ -26,6 +29,7 @@ public class GifDecoder extends Thread {
     private int[] mGct; // global color table
     private int[] mLct; // local color table
     private int[] mAct; // active color table
+    private int[] mLctBuffer; // reused for the local color tables
 
     private int mBgIndex; // background color index
     private int mBgColor; // background color
@@ -55,18 +59,51 @@ public class GifDecoder extends Thread {
     // max decoder pixel stack size
     private static final int MaxStackSize = 4096;
 
-    // LZW decoder working arrays
+    // LZW decoder working arrays, kept across frames
     private short[] mPrefix;
     private byte[] mSuffix;
     private byte[] mPixelStack;
     private byte[] mPixels;
+    private int[] mDest; // composited frame in the non-streaming mode
 
     private GifFrame mGifFrame; // frames read from current file
     private int mFrameCount;
 
     private GifAction mGifAction = null;
 
+    // The whole file. It is read from mIS first if needed, and parsed
+    // through mData, which wraps it.
     private byte[] mGifData = null;
+    private ByteBuffer mData;
+
+    // Streaming mode. Parsing only builds an index of the frames, and the
+    // frames are decoded on demand, in order, into a ring of mWindowSize
+    // reusable bitmaps. The memory used does not depend on the number of
+    // frames, and the first frame is ready after the file has been indexed
+    // and a single frame decoded.
+    public static final int DEFAULT_WINDOW_SIZE = 3;
+
+    private boolean mStreaming;
+    private int mWindowSize;
+    private volatile boolean mIndexed;
+
+    // The frame index: the position of each image descriptor in mGifData,
+    // and the graphic control values that apply to it.
+    private int[] mFrameOffset;
+    private int[] mFrameDelay;
+    private int[] mFrameDispose;
+    private int[] mFrameTransIndex; // -1 if no transparent color
+    private int[] mFrameBgColor;
+
+    // The composited image of frame mDecodedFrame, and the image before it
+    // for frames disposed with "restore to previous".
+    private int[] mCanvas;
+    private int[] mSavedCanvas;
+    private int mDecodedFrame = -1;
+    private GifFrame[] mRing;
+    // Frame mDecodedFrame, for the UI thread to draw without waiting for the
+    // decoder lock.
+    private volatile GifFrame mLastFrame;
 
     public GifDecoder(byte[] data, GifAction act) {
         mGifData = data;
@@ -78,15 +115,27 @@ public class GifDecoder extends Thread {
         mGifAction = act;
     }
 
+    // Creates a decoder in streaming mode, which keeps at most windowSize
+    // decoded frames.
+    public GifDecoder(InputStream is, GifAction act, int windowSize) {
+        mIS = is;
+        mGifAction = act;
+        mStreaming = true;
+        mWindowSize = Math.max(2, windowSize);
+    }
+
     public void run() {
-        if (mIS != null) {
+        if (mStreaming) {
+            indexStream();
+        } else {
             readStream();
-        } else if (mGifData != null) {
-            readByte();
         }
     }
 
     public void free() {
+        if (mStreaming) {
+            freeRing();
+        }
         freeFrame();
         freeIS();
         freeImage();
@@ -101,6 +150,9 @@ public class GifDecoder extends Thread {
     }
 
     public int getDelay(int n) {
+        if (mStreaming) {
+            return (mIndexed && n >= 0 && n < mFrameCount) ? mFrameDelay[n] : -1;
+        }
         mDelay = -1;
         if ((n >= 0) && (n < mFrameCount)) {
             GifFrame f = getFrame(n);
@@ -112,6 +164,11 @@ public class GifDecoder extends Thread {
     }
 
     public int[] getDelays() {
+        if (mStreaming) {
+            int[] d = new int[mFrameCount];
+            if (mIndexed) System.arraycopy(mFrameDelay, 0, d, 0, mFrameCount);
+            return d;
+        }
         GifFrame f = mGifFrame;
         int[] d = new int[mFrameCount];
         int i = 0;
@@ -128,6 +185,10 @@ public class GifDecoder extends Thread {
     }
 
     public Bitmap getImage() {
+        if (mStreaming) {
+            GifFrame frame = mLastFrame;
+            return frame == null ? null : frame.mImage;
+        }
         return getFrameImage(0);
     }
 
@@ -136,7 +197,12 @@ public class GifDecoder extends Thread {
     }
 
     private void setPixels() {
-        int[] dest = new int[mWidth * mHeight];
+        int size = mWidth * mHeight;
+        if (mDest == null || mDest.length < size) {
+            mDest = new int[size];
+        }
+        int[] dest = mDest;
+        boolean filled = false;
         // fill in starting image contents based on last image's dispose code
         if (mLastDispose > 0) {
             if (mLastDispose == 3) {
@@ -150,6 +216,7 @@ public class GifDecoder extends Thread {
             }
             if (mLastImage != null) {
                 mLastImage.getPixels(dest, 0, mWidth, 0, 0, mWidth, mHeight);
+                filled = true;
                 // copy pixels
                 if (mLastDispose == 2) {
                     // fill last image rect area with background color
@@ -168,6 +235,17 @@ public class GifDecoder extends Thread {
             }
         }
 
+        if (!filled) {
+            Arrays.fill(dest, 0, size, 0);
+        }
+
+        drawPixels(dest);
+        mImage = Bitmap.createBitmap(dest, mWidth, mHeight, Config.ARGB_4444);
+    }
+
+    // Copies the pixels of the current image rectangle into dest, mapping
+    // them through the active color table. Transparent pixels are skipped.
+    private void drawPixels(int[] dest) {
         // copy each source line to the appropriate place in the destination
         int pass = 1;
         int inc = 8;
@@ -213,7 +291,6 @@ public class GifDecoder extends Thread {
                 }
             }
         }
-        mImage = Bitmap.createBitmap(dest, mWidth, mHeight, Config.ARGB_4444);
     }
 
     public Bitmap getFrameImage(int n) {
@@ -226,10 +303,16 @@ public class GifDecoder extends Thread {
     }
 
     public GifFrame getCurrentFrame() {
+        if (mStreaming) {
+            return mLastFrame;
+        }
         return mCurrentFrame;
     }
 
     public GifFrame getFrame(int n) {
+        if (mStreaming) {
+            return decodeFrame(n);
+        }
         GifFrame frame = mGifFrame;
         int i = 0;
         while (frame != null) {
@@ -260,9 +343,20 @@ public class GifDecoder extends Thread {
 
     public void reset() {
         mCurrentFrame = mGifFrame;
+        if (mStreaming) mIsShow = false;
     }
 
     public GifFrame next() {
+        if (mStreaming) {
+            int n = 0;
+            if (mIsShow && mFrameCount > 0) {
+                synchronized (this) {
+                    n = (mDecodedFrame + 1) % mFrameCount;
+                }
+            }
+            mIsShow = true;
+            return decodeFrame(n);
+        }
         if (mIsShow == false) {
             mIsShow = true;
             return mGifFrame;
@@ -281,15 +375,26 @@ public class GifDecoder extends Thread {
         }
     }
 
-    private int readByte() {
-        mIS = new ByteArrayInputStream(mGifData);
-        mGifData = null;
-        return readStream();
+    // Reads the file into mGifData if it was given as a stream, and wraps
+    // it in mData. Returns false if it cannot be read.
+    private boolean openData() {
+        if (mIS != null) {
+            mGifData = readFully(mIS);
+            try {
+                mIS.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mIS = null;
+        }
+        if (mGifData == null) return false;
+        mData = ByteBuffer.wrap(mGifData);
+        return true;
     }
 
     private int readStream() {
         init();
-        if (mIS != null) {
+        if (openData()) {
             readHeader();
             if (!err()) {
                 readContents();
@@ -301,11 +406,9 @@ public class GifDecoder extends Thread {
                     mGifAction.parseOk(true, -1);
                 }
             }
-            try {
-                mIS.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            // All the frames are decoded, the data is not needed anymore.
+            mData = null;
+            mGifData = null;
         } else {
             mStatus = STATUS_OPEN_ERROR;
             mGifAction.parseOk(false, -1);
@@ -313,11 +416,219 @@ public class GifDecoder extends Thread {
         return mStatus;
     }
 
+    // Reads the whole file, builds the frame index and decodes the first
+    // frame, so that getImage() has it before parseOk() is called.
+    private void indexStream() {
+        init();
+        if (!openData()) {
+            mStatus = STATUS_OPEN_ERROR;
+            mGifAction.parseOk(false, -1);
+            return;
+        }
+        mFrameOffset = new int[16];
+        mFrameDelay = new int[16];
+        mFrameDispose = new int[16];
+        mFrameTransIndex = new int[16];
+        mFrameBgColor = new int[16];
+        readHeader();
+        if (!err()) {
+            readContents();
+        }
+        if (mFrameCount > 0) {
+            // Like readStream(), keep the frames read before a format error.
+            mStatus = STATUS_FINISH;
+            mIndexed = true;
+            if (decodeFrame(0) != null) {
+                mGifAction.parseOk(true, -1);
+            } else {
+                mStatus = STATUS_FORMAT_ERROR;
+                mGifAction.parseOk(false, -1);
+            }
+        } else {
+            mStatus = STATUS_FORMAT_ERROR;
+            mGifAction.parseOk(false, -1);
+        }
+    }
+
+    private static byte[] readFully(InputStream is) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    Math.max(is.available(), 8192));
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.e("GifDecoder", "cannot read gif", e);
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.e("GifDecoder", "gif too large", e);
+            return null;
+        }
+    }
+
+    // Records the image that starts at the current position in the frame
+    // index, and skips its data.
+    private void indexImage() {
+        int offset = mData.position();
+        skipBytes(8); // image position & size
+        int packed = read();
+        if ((packed & 0x80) != 0) {
+            skipBytes(3 * (2 << (packed & 7))); // local color table
+        } else if (mBgIndex == mTransIndex) {
+            mBgColor = 0;
+        }
+        read(); // LZW minimum code size
+        skip();
+        if (err()) {
+            return;
+        }
+
+        if (mFrameCount == mFrameOffset.length) {
+            int size = mFrameCount * 2;
+            mFrameOffset = grow(mFrameOffset, size);
+            mFrameDelay = grow(mFrameDelay, size);
+            mFrameDispose = grow(mFrameDispose, size);
+            mFrameTransIndex = grow(mFrameTransIndex, size);
+            mFrameBgColor = grow(mFrameBgColor, size);
+        }
+        mFrameOffset[mFrameCount] = offset;
+        mFrameDelay[mFrameCount] = mDelay;
+        mFrameDispose[mFrameCount] = mDispose;
+        mFrameTransIndex[mFrameCount] = mTransparency ? mTransIndex : -1;
+        mFrameBgColor[mFrameCount] = mBgColor;
+        mFrameCount++;
+
+        mDispose = 0;
+        mTransparency = false;
+        mDelay = 0;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] result = new int[size];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    // Returns frame n, decoding the frames from the last decoded one (or
+    // from the first one, when going backwards) up to n. Returns null if
+    // the frame cannot be decoded.
+    private synchronized GifFrame decodeFrame(int n) {
+        if (!mIndexed || n < 0 || n >= mFrameCount) return null;
+        if (n < mDecodedFrame) mDecodedFrame = -1;
+        try {
+            while (mDecodedFrame < n) {
+                if (!decodeNextFrame()) return null;
+            }
+        } catch (OutOfMemoryError e) {
+            Log.e("GifDecoder", ">>> log  : " + e.toString());
+            return null;
+        }
+        return mRing[n % mWindowSize];
+    }
+
+    private boolean decodeNextFrame() {
+        int k = mDecodedFrame + 1;
+        int size = mWidth * mHeight;
+        if (mCanvas == null) {
+            mCanvas = new int[size];
+            mRing = new GifFrame[mWindowSize];
+        }
+
+        // Dispose of the previous frame.
+        if (k == 0) {
+            Arrays.fill(mCanvas, 0);
+        } else if (mFrameDispose[k - 1] == 2) {
+            int c = mFrameTransIndex[k - 1] >= 0 ? 0 : mFrameBgColor[k - 1];
+            for (int i = 0; i < mLrh; i++) {
+                int n1 = (mLry + i) * mWidth + mLrx;
+                Arrays.fill(mCanvas, n1, n1 + mLrw, c);
+            }
+        } else if (mFrameDispose[k - 1] == 3 && mSavedCanvas != null) {
+            System.arraycopy(mSavedCanvas, 0, mCanvas, 0, size);
+        }
+        if (mFrameDispose[k] == 3) {
+            if (mSavedCanvas == null) mSavedCanvas = new int[size];
+            System.arraycopy(mCanvas, 0, mSavedCanvas, 0, size);
+        }
+
+        // Decode the frame over the canvas.
+        mData.position(mFrameOffset[k]);
+        mStatus = STATUS_PARSING;
+        mIx = readShort();
+        mIy = readShort();
+        mIw = readShort();
+        mIh = readShort();
+        int packed = read();
+        mLctFlag = (packed & 0x80) != 0;
+        mInterlace = (packed & 0x40) != 0;
+        mLctSize = 2 << (packed & 7);
+        if (mLctFlag) {
+            mLctBuffer = readColorTable(mLctSize, mLctBuffer);
+            mAct = mLctBuffer;
+        } else {
+            mAct = mGct;
+        }
+        if (mAct == null) {
+            mStatus = STATUS_FORMAT_ERROR;
+            return false;
+        }
+        int transIndex = mFrameTransIndex[k];
+        int save = 0;
+        if (transIndex >= 0) {
+            save = mAct[transIndex];
+            mAct[transIndex] = 0;
+        }
+        decodeImageData();
+        drawPixels(mCanvas);
+        if (transIndex >= 0) {
+            mAct[transIndex] = save;
+        }
+        // Clip the rectangle disposed of before the next frame.
+        mLrx = Math.min(mIx, mWidth);
+        mLry = Math.min(mIy, mHeight);
+        mLrw = Math.min(mIw, mWidth - mLrx);
+        mLrh = Math.min(mIh, mHeight - mLry);
+        mStatus = STATUS_FINISH;
+
+        GifFrame frame = mRing[k % mWindowSize];
+        if (frame == null) {
+            frame = new GifFrame(Bitmap.createBitmap(
+                    mWidth, mHeight, Config.ARGB_4444), 0, 0);
+            mRing[k % mWindowSize] = frame;
+        }
+        frame.mImage.setPixels(mCanvas, 0, mWidth, 0, 0, mWidth, mHeight);
+        frame.mDelayInMs = mFrameDelay[k];
+        frame.mDispose = mFrameDispose[k];
+        mDecodedFrame = k;
+        mLastFrame = frame;
+        return true;
+    }
+
+    private synchronized void freeRing() {
+        if (mRing != null) {
+            for (GifFrame frame : mRing) {
+                if (frame != null) frame.mImage.recycle();
+            }
+            mRing = null;
+        }
+        mCanvas = null;
+        mSavedCanvas = null;
+        mDecodedFrame = -1;
+        mLastFrame = null;
+        mIndexed = false;
+    }
+
+    // Decodes the LZW data of the current image into mPixels. The data
+    // blocks are read straight from mGifData, and the working arrays are
+    // kept across frames, so nothing is allocated per frame.
     private void decodeImageData() {
         int NullCode = -1;
         int npix = mIw * mIh;
         int available, clear, code_mask, code_size, end_of_information, in_code, old_code,
-                bits, code, count, i, datum, data_size, first, top, bi, pi;
+                bits, code, count, i, datum, data_size, first, top, pi;
 
         if ((mPixels == null) || (mPixels.length < npix)) {
             mPixels = new byte[npix]; // allocate new pixel array
@@ -331,6 +642,11 @@ public class GifDecoder extends Thread {
         if (mPixelStack == null) {
             mPixelStack = new byte[MaxStackSize + 1];
         }
+        short[] prefix = mPrefix;
+        byte[] suffix = mSuffix;
+        byte[] pixelStack = mPixelStack;
+        byte[] pixels = mPixels;
+
         // Initialize GIF data stream decoder.
         data_size = read();
         clear = 1 << data_size;
@@ -340,27 +656,34 @@ public class GifDecoder extends Thread {
         code_size = data_size + 1;
         code_mask = (1 << code_size) - 1;
         for (code = 0; code < clear; code++) {
-            mPrefix[code] = 0;
-            mSuffix[code] = (byte) code;
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
         }
 
+        byte[] data = mGifData;
+        int pos = mData.position(); // next byte of the current block
+        int limit = mData.limit();
+
         // Decode GIF pixel stream.
-        datum = bits = count = first = top = pi = bi = 0;
+        datum = bits = count = first = top = pi = 0;
         for (i = 0; i < npix;) {
             if (top == 0) {
                 if (bits < code_size) {
                     // Load bytes until there are enough bits for a code.
                     if (count == 0) {
-                        // Read a new data block.
-                        count = readBlock();
-                        if (count <= 0) {
+                        // Start a new data block. A block terminator is left
+                        // for skip().
+                        if (pos >= limit || data[pos] == 0) {
                             break;
                         }
-                        bi = 0;
+                        count = data[pos++] & 0xff;
+                        if (pos + count > limit) {
+                            mStatus = STATUS_FORMAT_ERROR;
+                            count = limit - pos;
+                        }
                     }
-                    datum += (((int) mBlock[bi]) & 0xff) << bits;
+                    datum += (((int) data[pos++]) & 0xff) << bits;
                     bits += 8;
-                    bi++;
                     count--;
                     continue;
                 }
@@ -382,28 +705,28 @@ public class GifDecoder extends Thread {
                     continue;
                 }
                 if (old_code == NullCode) {
-                    mPixelStack[top++] = mSuffix[code];
+                    pixelStack[top++] = suffix[code];
                     old_code = code;
                     first = code;
                     continue;
                 }
                 in_code = code;
                 if (code == available) {
-                    mPixelStack[top++] = (byte) first;
+                    pixelStack[top++] = (byte) first;
                     code = old_code;
                 }
                 while (code > clear) {
-                    mPixelStack[top++] = mSuffix[code];
-                    code = mPrefix[code];
+                    pixelStack[top++] = suffix[code];
+                    code = prefix[code];
                 }
-                first = ((int) mSuffix[code]) & 0xff;
+                first = ((int) suffix[code]) & 0xff;
                 // Add a new string to the string table,
                 if (available >= MaxStackSize) {
                     break;
                 }
-                mPixelStack[top++] = (byte) first;
-                mPrefix[available] = (short) old_code;
-                mSuffix[available] = (byte) first;
+                pixelStack[top++] = (byte) first;
+                prefix[available] = (short) old_code;
+                suffix[available] = (byte) first;
                 available++;
                 if (((available & code_mask) == 0)
                         && (available < MaxStackSize)) {
@@ -413,13 +736,16 @@ public class GifDecoder extends Thread {
                 old_code = in_code;
             }
 
-            // Pop a pixel off the pixel stack.
-            top--;
-            mPixels[pi++] = mPixelStack[top];
-            i++;
+            // Pop the pixels off the pixel stack.
+            while (top > 0 && i < npix) {
+                pixels[pi++] = pixelStack[--top];
+                i++;
+            }
         }
-        for (i = pi; i < npix; i++) {
-            mPixels[i] = 0; // clear missing pixels
+        // Continue after the current block.
+        mData.position(pos + count);
+        if (pi < npix) {
+            Arrays.fill(pixels, pi, npix, (byte) 0); // clear missing pixels
         }
     }
 
@@ -436,31 +762,24 @@ public class GifDecoder extends Thread {
     }
 
     private int read() {
-        int curByte = 0;
-        try {
-            curByte = mIS.read();
-        } catch (Exception e) {
+        if (!mData.hasRemaining()) return -1;
+        return mData.get() & 0xff;
+    }
+
+    private void skipBytes(int n) {
+        if (n > mData.remaining()) {
             mStatus = STATUS_FORMAT_ERROR;
+            n = mData.remaining();
         }
-        return curByte;
+        mData.position(mData.position() + n);
     }
 
     private int readBlock() {
         mBlockSize = read();
         int n = 0;
         if (mBlockSize > 0) {
-            try {
-                int count = 0;
-                while (n < mBlockSize) {
-                    count = mIS.read(mBlock, n, mBlockSize - n);
-                    if (count == -1) {
-                        break;
-                    }
-                    n += count;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            n = Math.min(mBlockSize, mData.remaining());
+            mData.get(mBlock, 0, n);
             if (n < mBlockSize) {
                 mStatus = STATUS_FORMAT_ERROR;
             }
@@ -468,29 +787,28 @@ public class GifDecoder extends Thread {
         return n;
     }
 
-    private int[] readColorTable(int ncolors) {
+    // Reads a color table of ncolors colors into tab, or into a new array
+    // if tab is null. Returns the table, or null on error.
+    private int[] readColorTable(int ncolors, int[] tab) {
         int nbytes = 3 * ncolors;
-        int[] tab = null;
-        byte[] c = new byte[nbytes];
-        int n = 0;
-        try {
-            n = mIS.read(c);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        if (n < nbytes) {
+        if (mData.remaining() < nbytes) {
             mStatus = STATUS_FORMAT_ERROR;
-        } else {
+            return null;
+        }
+        if (tab == null) {
             tab = new int[256]; // max size to avoid bounds checks
-            int i = 0;
-            int j = 0;
-            while (i < ncolors) {
-                int r = ((int) c[j++]) & 0xff;
-                int g = ((int) c[j++]) & 0xff;
-                int b = ((int) c[j++]) & 0xff;
-                tab[i++] = 0xff000000 | (r << 16) | (g << 8) | b;
-            }
         }
+        byte[] c = mGifData;
+        int j = mData.position();
+        int i = 0;
+        while (i < ncolors) {
+            int r = ((int) c[j++]) & 0xff;
+            int g = ((int) c[j++]) & 0xff;
+            int b = ((int) c[j++]) & 0xff;
+            tab[i++] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+        Arrays.fill(tab, ncolors, 256, 0);
+        mData.position(j);
         return tab;
     }
 
@@ -501,7 +819,11 @@ public class GifDecoder extends Thread {
             int code = read();
             switch (code) {
                 case 0x2C: // image separator
-                    readImage();
+                    if (mStreaming) {
+                        indexImage();
+                    } else {
+                        readImage();
+                    }
                     break;
                 case 0x21: // extension
                     code = read();
@@ -560,7 +882,7 @@ public class GifDecoder extends Thread {
         }
         readLSD();
         if (mGctFlag && !err()) {
-            mGct = readColorTable(mGctSize);
+            mGct = readColorTable(mGctSize, null);
             mBgColor = mGct[mBgIndex];
         }
     }
@@ -577,7 +899,8 @@ public class GifDecoder extends Thread {
         // 4-5 - reserved
         mLctSize = 2 << (packed & 7); // 6-8 - local color table size
         if (mLctFlag) {
-            mLct = readColorTable(mLctSize); // read table
+            mLctBuffer = readColorTable(mLctSize, mLctBuffer); // read table
+            mLct = mLctBuffer;
             mAct = mLct; // make local table active
         } else {
             mAct = mGct; // make global table active
@@ -603,9 +926,6 @@ public class GifDecoder extends Thread {
                 return;
             }
             mFrameCount++;
-            // create new image to receive frame data
-            mImage = Bitmap.createBitmap(mWidth, mHeight, Config.ARGB_4444);
-            // createImage(mWidth, mHeight);
             setPixels(); // transfer pixel data to image
             if (mGifFrame == null) {
                 mGifFrame = new GifFrame(mImage, mDelay, mDispose);
@@ -681,7 +1001,10 @@ public class GifDecoder extends Thread {
      */
     private void skip() {
         do {
-            readBlock();
+            mBlockSize = read();
+            if (mBlockSize > 0) {
+                skipBytes(mBlockSize);
+            }
         } while ((mBlockSize > 0) && !err());
     }
 
@@ -708,6 +1031,7 @@ public class GifDecoder extends Thread {
             mIS = null;
         }
         mGifData = null;
+        mData = null;
     }
 
     private void freeImage() {
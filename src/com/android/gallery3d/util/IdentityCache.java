@@ -19,14 +19,15 @@ package com.android.gallery3d.util;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+// A map with weakly referenced values. It is safe for concurrent use, and
+// get() does not block.
 public class IdentityCache<K, V> {
 
-    private final HashMap<K, Entry<K, V>> mWeakMap =
-            new HashMap<K, Entry<K, V>>();
-    private ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
+    private final ConcurrentHashMap<K, Entry<K, V>> mWeakMap =
+            new ConcurrentHashMap<K, Entry<K, V>>();
+    private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
 
     public IdentityCache() {
     }
@@ -40,39 +41,44 @@ public class IdentityCache<K, V> {
         }
     }
 
+    @SuppressWarnings("unchecked")
     private void cleanUpWeakMap() {
         Entry<K, V> entry = (Entry<K, V>) mQueue.poll();
         while (entry != null) {
-            mWeakMap.remove(entry.mKey);
+            // The key may have been mapped to a new entry meanwhile.
+            mWeakMap.remove(entry.mKey, entry);
             entry = (Entry<K, V>) mQueue.poll();
         }
     }
 
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
         cleanUpWeakMap();
         Entry<K, V> entry = mWeakMap.put(
                 key, new Entry<K, V>(key, value, mQueue));
         return entry == null ? null : entry.get();
     }
 
-    public synchronized V get(K key) {
+    // If the key is not mapped to a live value, maps it to the given value
+    // and returns null. Otherwise returns the current value.
+    public V putIfAbsent(K key, V value) {
         cleanUpWeakMap();
-        Entry<K, V> entry = mWeakMap.get(key);
-        return entry == null ? null : entry.get();
+        Entry<K, V> entry = new Entry<K, V>(key, value, mQueue);
+        while (true) {
+            Entry<K, V> old = mWeakMap.putIfAbsent(key, entry);
+            if (old == null) return null;
+            V current = old.get();
+            if (current != null) return current;
+            if (mWeakMap.replace(key, old, entry)) return null;
+        }
     }
 
-    // This is currently unused.
-    /*
-    public synchronized void clear() {
-        mWeakMap.clear();
-        mQueue = new ReferenceQueue<V>();
+    public V get(K key) {
+        Entry<K, V> entry = mWeakMap.get(key);
+        return entry == null ? null : entry.get();
     }
-    */
 
     // This is for debugging only
-    public synchronized ArrayList<K> keys() {
-        Set<K> set = mWeakMap.keySet();
-        ArrayList<K> result = new ArrayList<K>(set);
-        return result;
+    public ArrayList<K> keys() {
+        return new ArrayList<K>(mWeakMap.keySet());
     }
 }
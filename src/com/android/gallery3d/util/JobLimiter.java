@@ -20,9 +20,26 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 
 // Limit the number of concurrent jobs that has been submitted into a ThreadPool
+//
+// The limit is either fixed, or adaptive between a minimum and a maximum. In
+// adaptive mode the limit is adjusted once per round (a round ends when as
+// many jobs as the current limit have completed), AIMD-style:
+//
+//   - If the average latency of the jobs in the round is more than
+//     LATENCY_BACKOFF_FACTOR times the best round seen, running that many
+//     jobs at once is only making each of them slower (typically contention
+//     on slow storage), so the limit is halved.
+//   - Otherwise, if jobs had to wait here during the round and the pool has
+//     no jobs waiting for a thread or a CPU slot, there is spare capacity,
+//     so the limit is raised by one. The pool is checked as each job
+//     finishes.
+//
+// The best latency drifts up slowly so the limiter recovers when the work
+// itself gets heavier (e.g. larger images).
 @SuppressWarnings("rawtypes")
 public class JobLimiter implements FutureListener {
     private static final String TAG = "JobLimiter";
@@ -34,9 +51,28 @@ public class JobLimiter implements FutureListener {
     private static final int STATE_DONE = 1;
     private static final int STATE_CANCELLED = 2;
 
-    private final LinkedList<JobWrapper<?>> mJobs = new LinkedList<JobWrapper<?>>();
+    // Waiting jobs, one queue per ThreadPool priority.
+    private final ArrayList<LinkedList<JobWrapper<?>>> mJobs =
+            new ArrayList<LinkedList<JobWrapper<?>>>(ThreadPool.PRIORITY_COUNT);
     private final ThreadPool mPool;
+    private final int mMinLimit;
+    private final int mMaxLimit;
     private int mLimit;
+    private int mRunning;
+
+    private static final int LATENCY_BACKOFF_FACTOR = 2;
+    private static final int BEST_LATENCY_DRIFT_SHIFT = 4;
+
+    // The statistics of the current round.
+    private int mRoundJobs;
+    private long mRoundLatency;     // in nanoseconds, summed over the round
+    private long mRoundStart;
+    private boolean mRoundWaited;
+    private boolean mRoundSaturated;
+
+    private long mBestLatency;      // average latency of the best round
+    private long mLastLatency;      // average latency of the last round
+    private float mThroughput;      // jobs per second in the last round
 
     private static class JobWrapper<T> implements Future<T>, Job<T> {
         private int mState = STATE_INIT;
@@ -44,10 +80,15 @@ public class JobLimiter implements FutureListener {
         private Future<T> mDelegate;
         private FutureListener<T> mListener;
         private T mResult;
+        private final int mPriority;
+        private final JobLimiter mOwner;
 
-        public JobWrapper(Job<T> job, FutureListener<T> listener) {
+        public JobWrapper(JobLimiter owner, Job<T> job,
+                FutureListener<T> listener, int priority) {
+            mOwner = owner;
             mJob = job;
             mListener = listener;
+            mPriority = priority;
         }
 
         public synchronized void setFuture(Future<T> future) {
@@ -108,11 +149,15 @@ public class JobLimiter implements FutureListener {
                 job = mJob;
             }
             T result  = null;
+            long start = System.nanoTime();
             try {
                 result = job.run(jc);
             } catch (Throwable t) {
                 Log.w(TAG, "error executing job: " + job, t);
             }
+            // Cancelled jobs usually return early, so they say nothing about
+            // how long a job takes.
+            if (!jc.isCancelled()) mOwner.onJobFinished(System.nanoTime() - start);
             FutureListener<T> listener = null;
             synchronized (this) {
                 if (mState == STATE_CANCELLED) return null;
@@ -129,31 +174,116 @@ public class JobLimiter implements FutureListener {
     }
 
     public JobLimiter(ThreadPool pool, int limit) {
+        this(pool, limit, limit);
+    }
+
+    // Creates an adaptive limiter whose limit starts at minLimit and stays
+    // within [minLimit, maxLimit].
+    public JobLimiter(ThreadPool pool, int minLimit, int maxLimit) {
+        Utils.assertTrue(minLimit > 0 && minLimit <= maxLimit);
         mPool = Utils.checkNotNull(pool);
-        mLimit = limit;
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = minLimit;
+        mRoundStart = System.nanoTime();
+        for (int i = 0; i < ThreadPool.PRIORITY_COUNT; ++i) {
+            mJobs.add(new LinkedList<JobWrapper<?>>());
+        }
+    }
+
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, ThreadPool.PRIORITY_VISIBLE);
     }
 
-    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener);
-        mJobs.addLast(future);
+    // Jobs with a higher priority (a lower value) are started first; see
+    // ThreadPool.submit(job, listener, priority).
+    public synchronized <T> Future<T> submit(Job<T> job,
+            FutureListener<T> listener, int priority) {
+        JobWrapper<T> future = new JobWrapper<T>(
+                this, Utils.checkNotNull(job), listener, priority);
+        mJobs.get(priority).addLast(future);
         submitTasksIfAllowed();
         return future;
     }
 
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void submitTasksIfAllowed() {
-        while (mLimit > 0 && !mJobs.isEmpty()) {
-            JobWrapper wrapper = mJobs.removeFirst();
+        while (mRunning < mLimit) {
+            JobWrapper wrapper = pollJob();
+            if (wrapper == null) return;
             if (!wrapper.isCancelled()) {
-                --mLimit;
-                wrapper.setFuture(mPool.submit(wrapper, this));
+                ++mRunning;
+                wrapper.setFuture(mPool.submit(wrapper, this, wrapper.mPriority));
+            }
+        }
+        if (!mRoundWaited) mRoundWaited = hasWaitingJobs();
+    }
+
+    private boolean hasWaitingJobs() {
+        for (int i = 0; i < ThreadPool.PRIORITY_COUNT; ++i) {
+            if (!mJobs.get(i).isEmpty()) return true;
+        }
+        return false;
+    }
+
+    private synchronized void onJobFinished(long latency) {
+        mRoundLatency += latency;
+        if (mPool.isSaturated()) mRoundSaturated = true;
+        if (++mRoundJobs < mLimit) return;
+
+        long now = System.nanoTime();
+        long average = mRoundLatency / mRoundJobs;
+        mThroughput = mRoundJobs * 1e9f / Math.max(1, now - mRoundStart);
+        mLastLatency = average;
+
+        if (mBestLatency == 0 || average < mBestLatency) {
+            mBestLatency = average;
+        } else {
+            mBestLatency += mBestLatency >> BEST_LATENCY_DRIFT_SHIFT;
+        }
+
+        if (mMinLimit < mMaxLimit) {
+            if (average > mBestLatency * LATENCY_BACKOFF_FACTOR) {
+                mLimit = Math.max(mMinLimit, mLimit / 2);
+            } else if (mRoundWaited && !mRoundSaturated) {
+                mLimit = Math.min(mMaxLimit, mLimit + 1);
             }
         }
+
+        mRoundJobs = 0;
+        mRoundLatency = 0;
+        mRoundStart = now;
+        mRoundWaited = hasWaitingJobs();
+        mRoundSaturated = false;
+        submitTasksIfAllowed();
+    }
+
+    // The current limit on the number of concurrently running jobs.
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    // The number of jobs completed per second in the last round.
+    public synchronized float getThroughput() {
+        return mThroughput;
+    }
+
+    // The average job latency, in milliseconds, in the last round.
+    public synchronized float getLatencyMillis() {
+        return mLastLatency / 1e6f;
+    }
+
+    private JobWrapper<?> pollJob() {
+        for (int i = 0; i < ThreadPool.PRIORITY_COUNT; ++i) {
+            LinkedList<JobWrapper<?>> jobs = mJobs.get(i);
+            if (!jobs.isEmpty()) return jobs.removeFirst();
+        }
+        return null;
     }
 
     @Override
     public synchronized void onFutureDone(Future future) {
-        ++mLimit;
+        --mRunning;
         submitTasksIfAllowed();
     }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import android.content.Context;
+import android.location.Address;
+import android.util.Log;
+
+import com.android.gallery3d.common.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+// A reverse geocoder answering from a local file of populated places. The
+// address of a point is the locality, admin area and country of the nearest
+// place, as long as it is within MAX_DISTANCE_DEGREES.
+//
+// The file is memory-mapped. All integers are big-endian.
+//
+// header:
+//   int magic       MAGIC
+//   int count       number of places
+//   int records     offset of the first place record
+//   int strings     offset of the string table
+//
+// place record (RECORD_SIZE bytes), sorted by geohash:
+//   int geohash     GEOHASH_BITS-bit geohash of the place
+//   int latitude    in microdegrees
+//   int longitude   in microdegrees
+//   int locality    string offset of the place name
+//   int adminArea   string offset of the admin area, or -1
+//   int country     string offset of the country code, which is directly
+//                   followed by the country name
+//
+// string (offsets are relative to the string table):
+//   short length    number of bytes
+//   byte[length]    UTF-8
+//
+// To find the nearest place we look at the 3x3 block of geohash cells around
+// the point, each cell being a contiguous range of records. If the nearest
+// place found is closer than the size of a cell, no place outside the block
+// can be closer. Otherwise we try again with cells twice as large.
+public class OfflineGeocoder implements ReverseGeocoder.Backend {
+    private static final String TAG = "OfflineGeocoder";
+
+    private static final String PLACES_FILE = "places.bin";
+    private static final String SYSTEM_PLACES_FILE = "/system/etc/gallery_places.bin";
+
+    private static final int MAGIC = 0x504c4331; // "PLC1"
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 24;
+    static final int GEOHASH_BITS = 30;
+
+    // The search starts with cells of about 2.4km x 4.9km (at the equator).
+    private static final int START_BITS = 26;
+    // About 50km. Points farther than that from any place have no address.
+    private static final double MAX_DISTANCE_DEGREES = 0.45;
+
+    private static OfflineGeocoder sInstance;
+    private static boolean sOpened;
+
+    private final ByteBuffer mData;
+    private final int mCount;
+    private final int mRecords;
+    private final int mStrings;
+
+    // Returns the geocoder for the place file installed on this device, or
+    // null if there is none (or it is unreadable).
+    public static synchronized OfflineGeocoder getInstance(Context context) {
+        if (!sOpened) {
+            sOpened = true;
+            File file = new File(context.getFilesDir(), PLACES_FILE);
+            if (!file.isFile()) file = new File(SYSTEM_PLACES_FILE);
+            if (file.isFile()) {
+                try {
+                    sInstance = open(file);
+                } catch (Throwable t) {
+                    Log.w(TAG, "cannot open " + file, t);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public static OfflineGeocoder open(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            return new OfflineGeocoder(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            Utils.closeSilently(fis);
+        }
+    }
+
+    private OfflineGeocoder(ByteBuffer data) throws IOException {
+        mData = data;
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException("not a place file");
+        }
+        mCount = data.getInt(4);
+        mRecords = data.getInt(8);
+        mStrings = data.getInt(12);
+        if (mCount < 0 || mRecords < HEADER_SIZE
+                || (long) mRecords + (long) mCount * RECORD_SIZE > mStrings
+                || mStrings > data.capacity()) {
+            throw new IOException("bad place file header");
+        }
+    }
+
+    public int getPlaceCount() {
+        return mCount;
+    }
+
+    @Override
+    public boolean shouldCache() {
+        return false;
+    }
+
+    @Override
+    public Address getFromLocation(double latitude, double longitude) {
+        int place = findNearestPlace(latitude, longitude);
+        if (place < 0) return null;
+
+        ByteBuffer data = mData.duplicate();
+        int offset = mRecords + place * RECORD_SIZE;
+        Address address = new Address(Locale.getDefault());
+        address.setLatitude(data.getInt(offset + 4) / 1e6);
+        address.setLongitude(data.getInt(offset + 8) / 1e6);
+        String locality = readString(data, mStrings + data.getInt(offset + 12));
+        address.setFeatureName(locality);
+        address.setLocality(locality);
+        int adminArea = data.getInt(offset + 16);
+        if (adminArea >= 0) {
+            address.setAdminArea(readString(data, mStrings + adminArea));
+        }
+        address.setCountryCode(readString(data, mStrings + data.getInt(offset + 20)));
+        address.setCountryName(readString(data, data.position()));
+        return address;
+    }
+
+    // Returns the index of the place nearest to the point, or -1 if there is
+    // none within MAX_DISTANCE_DEGREES.
+    int findNearestPlace(double latitude, double longitude) {
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int bits = START_BITS; bits > 0; bits -= 2) {
+            int bitsPerAxis = bits / 2;
+            long x = ReverseGeocoder.quantize(longitude,
+                    ReverseGeocoder.LON_MIN, ReverseGeocoder.LON_MAX, bitsPerAxis);
+            long y = ReverseGeocoder.quantize(latitude,
+                    ReverseGeocoder.LAT_MIN, ReverseGeocoder.LAT_MAX, bitsPerAxis);
+            long n = 1L << bitsPerAxis;
+            for (long dy = -1; dy <= 1; dy++) {
+                if (y + dy < 0 || y + dy >= n) continue;
+                for (long dx = -1; dx <= 1; dx++) {
+                    // Wrap around the antimeridian.
+                    long cell = ReverseGeocoder.interleave(
+                            (x + dx + n) % n, y + dy, bits);
+                    int shift = GEOHASH_BITS - bits;
+                    int end = lowerBound((cell + 1) << shift);
+                    for (int i = lowerBound(cell << shift); i < end; i++) {
+                        double d = distance(i, latitude, longitude, cosLat);
+                        if (d < bestDistance) {
+                            bestDistance = d;
+                            best = i;
+                        }
+                    }
+                }
+            }
+            // The smaller side of a cell, in degrees of latitude.
+            double cellSize = Math.min(180.0 / n, 360.0 / n * cosLat);
+            if (bestDistance <= cellSize) break;
+            if (cellSize >= MAX_DISTANCE_DEGREES) break;
+        }
+        return bestDistance <= MAX_DISTANCE_DEGREES ? best : -1;
+    }
+
+    // Returns the index of the first record with a geohash not less than the
+    // given one.
+    private int lowerBound(long geohash) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mData.getInt(mRecords + mid * RECORD_SIZE) < geohash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // An equirectangular approximation of the distance from place i to the
+    // point, in degrees of latitude. Good enough to pick the nearest place.
+    private double distance(int i, double latitude, double longitude,
+            double cosLat) {
+        int offset = mRecords + i * RECORD_SIZE;
+        double dLat = mData.getInt(offset + 4) / 1e6 - latitude;
+        double dLng = Math.abs(mData.getInt(offset + 8) / 1e6 - longitude);
+        if (dLng > 180) dLng = 360 - dLng;
+        dLng *= cosLat;
+        return Math.sqrt(dLat * dLat + dLng * dLng);
+    }
+
+    // Reads the string at the given position and leaves the buffer
+    // positioned right after it.
+    private static String readString(ByteBuffer data, int position) {
+        data.position(position);
+        int length = data.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -23,8 +23,11 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.util.Log;
 
 import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.LruCache;
+import com.android.gallery3d.common.Utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -35,7 +38,6 @@ import java.util.List;
 import java.util.Locale;
 
 public class ReverseGeocoder {
-    @SuppressWarnings("unused")
     private static final String TAG = "ReverseGeocoder";
     public static final int EARTH_RADIUS_METERS = 6378137;
     public static final int LAT_MIN = -90;
@@ -52,7 +54,23 @@ public class ReverseGeocoder {
     private static final String GEO_CACHE_FILE = "rev_geocoding";
     private static final int GEO_CACHE_MAX_ENTRIES = 1000;
     private static final int GEO_CACHE_MAX_BYTES = 500 * 1024;
-    private static final int GEO_CACHE_VERSION = 0;
+    private static final int GEO_CACHE_VERSION = 1;
+
+    // Addresses are cached per geohash cell. Photo locations use ~150m cells
+    // (7 geohash characters); the current location only decides how much of
+    // a name to show, so ~5km cells (5 characters) are enough for it.
+    private static final int FINE_CELL_BITS = 35;
+    private static final int COARSE_CELL_BITS = 25;
+
+    // Decoded addresses shared by all ReverseGeocoder instances.
+    private static final int MEMORY_CACHE_SIZE = 256;
+
+    // How long to remember that the geocoder had no address for a cell.
+    private static final long NO_ADDRESS_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    // The first byte of each mGeoCache entry.
+    private static final int ENTRY_NO_ADDRESS = 0;
+    private static final int ENTRY_ADDRESS = 1;
 
     public static class SetLatLong {
         // The latitude and longitude of the min latitude point.
@@ -69,20 +87,76 @@ public class ReverseGeocoder {
         public double mMaxLonLongitude = LON_MIN;
     }
 
+    // A source of addresses.
+    public interface Backend {
+        // Returns the address at the given point, or null if there is none.
+        // Throws IOException if the backend cannot answer right now (for
+        // example there is no network); such failures are not cached.
+        Address getFromLocation(double latitude, double longitude)
+                throws IOException;
+
+        // Returns true if results should be kept in the address caches.
+        // Backends answering from local data don't need them.
+        boolean shouldCache();
+    }
+
+    // The platform Geocoder, which usually asks a server.
+    private static class PlatformBackend implements Backend {
+        private final Geocoder mGeocoder;
+        private final ConnectivityManager mConnectivityManager;
+
+        PlatformBackend(Context context) {
+            mGeocoder = new Geocoder(context);
+            mConnectivityManager = (ConnectivityManager)
+                    context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+
+        @Override
+        public Address getFromLocation(double latitude, double longitude)
+                throws IOException {
+            NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+            if (networkInfo == null || !networkInfo.isConnected()) {
+                throw new IOException("no network");
+            }
+            List<Address> addresses = mGeocoder.getFromLocation(latitude, longitude, 1);
+            return addresses.isEmpty() ? null : addresses.get(0);
+        }
+
+        @Override
+        public boolean shouldCache() {
+            return true;
+        }
+    }
+
     private Context mContext;
-    private Geocoder mGeocoder;
+    private Backend mBackend;
     private BlobCache mGeoCache;
-    private ConnectivityManager mConnectivityManager;
     private static Address sCurrentAddress; // last known address
 
+    // Values are either an Address or a NoAddress.
+    private static final LruCache<Long, Object> sAddressCache =
+            new LruCache<Long, Object>(MEMORY_CACHE_SIZE);
+
+    private static class NoAddress {
+        final long mExpireTime;
+
+        NoAddress(long expireTime) {
+            mExpireTime = expireTime;
+        }
+    }
+
     public ReverseGeocoder(Context context) {
+        this(context, new PlatformBackend(context));
+    }
+
+    public ReverseGeocoder(Context context, Backend backend) {
         mContext = context;
-        mGeocoder = new Geocoder(mContext);
-        mGeoCache = CacheManager.getCache(context, GEO_CACHE_FILE,
-                GEO_CACHE_MAX_ENTRIES, GEO_CACHE_MAX_BYTES,
-                GEO_CACHE_VERSION);
-        mConnectivityManager = (ConnectivityManager)
-                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mBackend = backend;
+        if (backend.shouldCache()) {
+            mGeoCache = CacheManager.getCache(context, GEO_CACHE_FILE,
+                    GEO_CACHE_MAX_ENTRIES, GEO_CACHE_MAX_BYTES,
+                    GEO_CACHE_VERSION);
+        }
     }
 
     public String computeAddress(SetLatLong set) {
@@ -124,8 +198,8 @@ public class ReverseGeocoder {
         String currentAdminArea = "";
         String currentCountry = Locale.getDefault().getCountry();
         if (location != null) {
-            Address currentAddress = lookupAddress(
-                    location.getLatitude(), location.getLongitude(), true);
+            Address currentAddress = lookupAddress(location.getLatitude(),
+                    location.getLongitude(), COARSE_CELL_BITS, true);
             if (currentAddress == null) {
                 currentAddress = sCurrentAddress;
             } else {
@@ -304,92 +378,38 @@ public class ReverseGeocoder {
 
     public Address lookupAddress(final double latitude, final double longitude,
             boolean useCache) {
-        try {
-            long locationKey = (long) (((latitude + LAT_MAX) * 2 * LAT_MAX
-                    + (longitude + LON_MAX)) * EARTH_RADIUS_METERS);
-            byte[] cachedLocation = null;
-            if (useCache && mGeoCache != null) {
-                cachedLocation = mGeoCache.lookup(locationKey);
-            }
-            Address address = null;
-            NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
-            if (cachedLocation == null || cachedLocation.length == 0) {
-                if (networkInfo == null || !networkInfo.isConnected()) {
-                    return null;
-                }
-                List<Address> addresses = mGeocoder.getFromLocation(latitude, longitude, 1);
-                if (!addresses.isEmpty()) {
-                    address = addresses.get(0);
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    DataOutputStream dos = new DataOutputStream(bos);
-                    Locale locale = address.getLocale();
-                    writeUTF(dos, locale.getLanguage());
-                    writeUTF(dos, locale.getCountry());
-                    writeUTF(dos, locale.getVariant());
-
-                    writeUTF(dos, address.getThoroughfare());
-                    int numAddressLines = address.getMaxAddressLineIndex();
-                    dos.writeInt(numAddressLines);
-                    for (int i = 0; i < numAddressLines; ++i) {
-                        writeUTF(dos, address.getAddressLine(i));
-                    }
-                    writeUTF(dos, address.getFeatureName());
-                    writeUTF(dos, address.getLocality());
-                    writeUTF(dos, address.getAdminArea());
-                    writeUTF(dos, address.getSubAdminArea());
-
-                    writeUTF(dos, address.getCountryName());
-                    writeUTF(dos, address.getCountryCode());
-                    writeUTF(dos, address.getPostalCode());
-                    writeUTF(dos, address.getPhone());
-                    writeUTF(dos, address.getUrl());
-
-                    dos.flush();
-                    if (mGeoCache != null) {
-                        mGeoCache.insert(locationKey, bos.toByteArray());
-                    }
-                    dos.close();
-                }
-            } else {
-                // Parsing the address from the byte stream.
-                DataInputStream dis = new DataInputStream(
-                        new ByteArrayInputStream(cachedLocation));
-                String language = readUTF(dis);
-                String country = readUTF(dis);
-                String variant = readUTF(dis);
-                Locale locale = null;
-                if (language != null) {
-                    if (country == null) {
-                        locale = new Locale(language);
-                    } else if (variant == null) {
-                        locale = new Locale(language, country);
-                    } else {
-                        locale = new Locale(language, country, variant);
-                    }
-                }
-                if (!locale.getLanguage().equals(Locale.getDefault().getLanguage())) {
-                    dis.close();
-                    return lookupAddress(latitude, longitude, false);
-                }
-                address = new Address(locale);
+        return lookupAddress(latitude, longitude, FINE_CELL_BITS, useCache);
+    }
 
-                address.setThoroughfare(readUTF(dis));
-                int numAddressLines = dis.readInt();
-                for (int i = 0; i < numAddressLines; ++i) {
-                    address.setAddressLine(i, readUTF(dis));
+    // Looks up the address of the geohash cell (with the given number of
+    // bits) containing the point. Cached results are looked up in memory
+    // first, then in mGeoCache. If the geocoder has nothing for the cell, that
+    // is remembered for NO_ADDRESS_TTL_MS so we don't ask again.
+    private Address lookupAddress(double latitude, double longitude,
+            int cellBits, boolean useCache) {
+        if (!mBackend.shouldCache()) {
+            try {
+                return mBackend.getFromLocation(latitude, longitude);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        long cell = cellKey(latitude, longitude, cellBits);
+        if (useCache) {
+            Object entry = lookupEntry(cell);
+            if (entry instanceof Address) {
+                Address address = (Address) entry;
+                if (address.getLocale().getLanguage().equals(
+                        Locale.getDefault().getLanguage())) {
+                    return address;
                 }
-                address.setFeatureName(readUTF(dis));
-                address.setLocality(readUTF(dis));
-                address.setAdminArea(readUTF(dis));
-                address.setSubAdminArea(readUTF(dis));
-
-                address.setCountryName(readUTF(dis));
-                address.setCountryCode(readUTF(dis));
-                address.setPostalCode(readUTF(dis));
-                address.setPhone(readUTF(dis));
-                address.setUrl(readUTF(dis));
-                dis.close();
+            } else if (entry != null) {
+                return null;
             }
+        }
+        try {
+            Address address = mBackend.getFromLocation(latitude, longitude);
+            insertEntry(cell, address);
             return address;
         } catch (Exception e) {
             // Ignore.
@@ -397,6 +417,159 @@ public class ReverseGeocoder {
         return null;
     }
 
+    // Returns the cached Address or NoAddress for the cell, or null if there
+    // is none (or the NoAddress has expired).
+    private Object lookupEntry(long cell) {
+        Object entry = sAddressCache.get(cell);
+        if (entry == null) {
+            entry = readEntry(cell);
+            if (entry == null) return null;
+            sAddressCache.put(cell, entry);
+        }
+        if (entry instanceof NoAddress
+                && ((NoAddress) entry).mExpireTime < System.currentTimeMillis()) {
+            return null;
+        }
+        return entry;
+    }
+
+    private void insertEntry(long cell, Address address) {
+        Object entry = address != null ? address : new NoAddress(
+                System.currentTimeMillis() + NO_ADDRESS_TTL_MS);
+        sAddressCache.put(cell, entry);
+        if (mGeoCache == null) return;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            if (address == null) {
+                dos.writeByte(ENTRY_NO_ADDRESS);
+                dos.writeLong(((NoAddress) entry).mExpireTime);
+            } else {
+                dos.writeByte(ENTRY_ADDRESS);
+                writeAddress(dos, address);
+            }
+            dos.close();
+            mGeoCache.insert(Utils.mix64(cell), bos.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "cannot cache address", e);
+        }
+    }
+
+    private Object readEntry(long cell) {
+        if (mGeoCache == null) return null;
+        try {
+            byte[] data = mGeoCache.lookup(Utils.mix64(cell));
+            if (data == null || data.length == 0) return null;
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+            try {
+                if (dis.readByte() == ENTRY_NO_ADDRESS) {
+                    return new NoAddress(dis.readLong());
+                }
+                return readAddress(dis);
+            } finally {
+                dis.close();
+            }
+        } catch (Throwable t) {
+            Log.w(TAG, "cannot read cached address", t);
+            return null;
+        }
+    }
+
+    private static void writeAddress(DataOutputStream dos, Address address)
+            throws IOException {
+        Locale locale = address.getLocale();
+        writeUTF(dos, locale.getLanguage());
+        writeUTF(dos, locale.getCountry());
+        writeUTF(dos, locale.getVariant());
+
+        writeUTF(dos, address.getThoroughfare());
+        int numAddressLines = address.getMaxAddressLineIndex() + 1;
+        dos.writeInt(numAddressLines);
+        for (int i = 0; i < numAddressLines; ++i) {
+            writeUTF(dos, address.getAddressLine(i));
+        }
+        writeUTF(dos, address.getFeatureName());
+        writeUTF(dos, address.getLocality());
+        writeUTF(dos, address.getAdminArea());
+        writeUTF(dos, address.getSubAdminArea());
+
+        writeUTF(dos, address.getCountryName());
+        writeUTF(dos, address.getCountryCode());
+        writeUTF(dos, address.getPostalCode());
+        writeUTF(dos, address.getPhone());
+        writeUTF(dos, address.getUrl());
+    }
+
+    private static Address readAddress(DataInputStream dis) throws IOException {
+        String language = readUTF(dis);
+        String country = readUTF(dis);
+        String variant = readUTF(dis);
+        Locale locale;
+        if (language == null) {
+            locale = Locale.ROOT;
+        } else if (country == null) {
+            locale = new Locale(language);
+        } else if (variant == null) {
+            locale = new Locale(language, country);
+        } else {
+            locale = new Locale(language, country, variant);
+        }
+        Address address = new Address(locale);
+
+        address.setThoroughfare(readUTF(dis));
+        int numAddressLines = dis.readInt();
+        for (int i = 0; i < numAddressLines; ++i) {
+            address.setAddressLine(i, readUTF(dis));
+        }
+        address.setFeatureName(readUTF(dis));
+        address.setLocality(readUTF(dis));
+        address.setAdminArea(readUTF(dis));
+        address.setSubAdminArea(readUTF(dis));
+
+        address.setCountryName(readUTF(dis));
+        address.setCountryCode(readUTF(dis));
+        address.setPostalCode(readUTF(dis));
+        address.setPhone(readUTF(dis));
+        address.setUrl(readUTF(dis));
+        return address;
+    }
+
+    // Returns the geohash of the point truncated to the given number of bits
+    // (5 bits per geohash character). Longitude and latitude bits are
+    // interleaved, longitude first, so a shorter geohash is a prefix of a
+    // longer one.
+    public static long geohash(double latitude, double longitude, int bits) {
+        return interleave(quantize(longitude, LON_MIN, LON_MAX, (bits + 1) / 2),
+                quantize(latitude, LAT_MIN, LAT_MAX, bits / 2), bits);
+    }
+
+    // Interleaves the quantized longitude x and latitude y into a geohash of
+    // the given number of bits. x has (bits + 1) / 2 bits, y has bits / 2.
+    static long interleave(long x, long y, int bits) {
+        int lonBits = (bits + 1) / 2;
+        int latBits = bits / 2;
+        long hash = 0;
+        for (int i = 0; i < bits; i++) {
+            long bit = (i & 1) == 0
+                    ? (x >>> (lonBits - 1 - i / 2)) & 1
+                    : (y >>> (latBits - 1 - i / 2)) & 1;
+            hash = (hash << 1) | bit;
+        }
+        return hash;
+    }
+
+    static long quantize(double value, int min, int max, int bits) {
+        long n = 1L << bits;
+        long q = (long) ((value - min) / (max - min) * n);
+        return Math.max(0, Math.min(n - 1, q));
+    }
+
+    // The cache key of a cell: the geohash tagged with its precision, so
+    // cells of different sizes never share a key.
+    private static long cellKey(double latitude, double longitude, int bits) {
+        return ((long) bits << 58) | geohash(latitude, longitude, bits);
+    }
+
     private String valueIfEqual(String a, String b) {
         return (a != null && b != null && a.equalsIgnoreCase(b)) ? a : null;
     }